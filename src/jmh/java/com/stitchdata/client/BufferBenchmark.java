@@ -0,0 +1,48 @@
+package com.stitchdata.client;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of {@link Buffer#put} into one shared buffer, with
+ * producers taking turns to take full batches the way push does.
+ * Set the number of producer threads with JMH's {@code -t} option;
+ * throughput should grow with the thread count up to the number of
+ * cores, rather than collapse as producers queue up on a lock.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BufferBenchmark {
+
+    private static final int BATCH_SIZE_BYTES = 1000000;
+    private static final byte[] BYTES = new byte[200];
+
+    private final Buffer buffer = new Buffer();
+
+    @Benchmark
+    public Object putAndTake() {
+        buffer.put(new Buffer.Entry(BYTES, null));
+        if (buffer.isReady(BATCH_SIZE_BYTES, Integer.MAX_VALUE) &&
+            buffer.sendPermit.tryAcquire()) {
+            try {
+                return buffer.take(BATCH_SIZE_BYTES, Integer.MAX_VALUE);
+            }
+            finally {
+                buffer.sendPermit.release();
+            }
+        }
+        return null;
+    }
+}
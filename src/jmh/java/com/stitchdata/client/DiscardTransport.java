@@ -0,0 +1,21 @@
+package com.stitchdata.client;
+
+/**
+ * Transport that accepts every batch without sending it anywhere, so
+ * benchmarks measure the client rather than the network.
+ */
+class DiscardTransport implements Transport {
+
+    private static final StitchResponse OK = new StitchResponse(200, "ok", null);
+
+    public StitchResponse send(byte[] body) {
+        return OK;
+    }
+
+    public StitchResponse send(BatchBody body) {
+        return OK;
+    }
+
+    public void close() {
+    }
+}
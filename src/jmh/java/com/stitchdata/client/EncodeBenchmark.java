@@ -0,0 +1,150 @@
+package com.stitchdata.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import com.cognitect.transit.WriteHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to encode one message with {@link
+ * StitchClient#messageToBytes}, for records of different shapes:
+ *
+ * <ul>
+ * <li>narrow: a key and three scalar fields</li>
+ * <li>wide: a key and 100 string and number fields</li>
+ * <li>nested: a key and maps and lists three levels deep</li>
+ * <li>custom: a key and values encoded by a custom WriteHandler</li>
+ * </ul>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodeBenchmark {
+
+    @Param({"narrow", "wide", "nested", "custom"})
+    public String shape;
+
+    private StitchClient client;
+    private StitchMessage message;
+
+    /**
+     * Value with its own write handler, standing in for application
+     * types like money or coordinates.
+     */
+    static class Point {
+        final double x;
+        final double y;
+
+        Point(double x, double y) {
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    static final WriteHandler<Point, List<Double>> POINT_HANDLER = new WriteHandler<Point, List<Double>>() {
+            public String tag(Point p) {
+                return "point";
+            }
+
+            public List<Double> rep(Point p) {
+                return Arrays.asList(p.x, p.y);
+            }
+
+            public String stringRep(Point p) {
+                return null;
+            }
+
+            public <V> WriteHandler<Point, V> getVerboseHandler() {
+                return null;
+            }
+        };
+
+    @Setup
+    public void setUp() {
+        Map<Class,WriteHandler<?,?>> writeHandlers = new HashMap<Class,WriteHandler<?,?>>();
+        writeHandlers.put(Point.class, POINT_HANDLER);
+        client = new StitchClientBuilder()
+            .withTransport(new DiscardTransport())
+            .withTableName("events")
+            .withKeyNames("id")
+            .withWriteHandlers(writeHandlers)
+            .build();
+        message = StitchMessage.newUpsert()
+            .withSequence(System.currentTimeMillis())
+            .withData(record(shape));
+    }
+
+    static Map record(String shape) {
+        Map data = new HashMap();
+        data.put("id", 12345L);
+        switch (shape) {
+        case "narrow":
+            data.put("name", "widget");
+            data.put("price", 19.99);
+            data.put("active", true);
+            break;
+        case "wide":
+            for (int i = 0; i < 50; i++) {
+                data.put("string_" + i, "value " + i);
+                data.put("number_" + i, i * 1000L);
+            }
+            break;
+        case "nested":
+            Map address = new HashMap();
+            address.put("street", "1 Main St");
+            address.put("city", "Philadelphia");
+            Map geo = new HashMap();
+            geo.put("lat", 39.95);
+            geo.put("lon", -75.16);
+            address.put("geo", geo);
+            List items = new ArrayList();
+            for (int i = 0; i < 5; i++) {
+                Map item = new HashMap();
+                item.put("sku", "sku-" + i);
+                item.put("quantity", i);
+                item.put("tags", Arrays.asList("a", "b", "c"));
+                items.add(item);
+            }
+            data.put("address", address);
+            data.put("items", items);
+            break;
+        case "custom":
+            for (int i = 0; i < 5; i++) {
+                data.put("point_" + i, new Point(i, -i));
+            }
+            break;
+        default:
+            throw new IllegalArgumentException(shape);
+        }
+        return data;
+    }
+
+    @Benchmark
+    public byte[] messageToBytes() {
+        return client.messageToBytes(message);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.close();
+    }
+}
@@ -0,0 +1,69 @@
+package com.stitchdata.client;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end throughput of {@link StitchClient#push(StitchMessage)}
+ * into one shared client that delivers to an in-process transport,
+ * covering encoding, buffering, batching, and assembling bodies. Set
+ * the number of producer threads with JMH's {@code -t} option.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PushBenchmark {
+
+    @Param({"false", "true"})
+    public boolean backgroundFlush;
+
+    @Param({"1", "4"})
+    public int maxInFlightBatches;
+
+    private final AtomicLong ids = new AtomicLong();
+    private StitchClient client;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        client = new StitchClientBuilder()
+            .withTransport(new DiscardTransport())
+            .withTableName("events")
+            .withKeyNames("id")
+            .withBatchSizeBytes(1000000)
+            .withBackgroundFlush(backgroundFlush)
+            .withMaxInFlightBatches(maxInFlightBatches)
+            .build();
+    }
+
+    @Benchmark
+    public void push() throws IOException {
+        Map data = EncodeBenchmark.record("narrow");
+        data.put("id", ids.incrementAndGet());
+        client.push(StitchMessage.newUpsert()
+                    .withSequence(System.currentTimeMillis())
+                    .withData(data));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        client.close();
+    }
+}
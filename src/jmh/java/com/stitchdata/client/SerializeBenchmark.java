@@ -0,0 +1,72 @@
+package com.stitchdata.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Time to assemble a batch body from encoded entries into one array
+ * with {@link StitchClient#serializeEntries}, compared to writing a
+ * {@link BatchBody} to a stream, for batches of different numbers of
+ * records of about 200 bytes each.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializeBenchmark {
+
+    @Param({"1", "100", "1000", "10000"})
+    public int records;
+
+    private List<Buffer.Entry> entries;
+
+    @Setup
+    public void setUp() {
+        StitchClient client = new StitchClientBuilder()
+            .withTransport(new DiscardTransport())
+            .withTableName("events")
+            .withKeyNames("id")
+            .build();
+        entries = new ArrayList<Buffer.Entry>();
+        for (int i = 0; i < records; i++) {
+            StitchMessage message = StitchMessage.newUpsert()
+                .withSequence(i)
+                .withData(EncodeBenchmark.record("narrow"));
+            entries.add(new Buffer.Entry(client.messageToBytes(message), null));
+        }
+    }
+
+    @Benchmark
+    public byte[] serializeEntries() {
+        return StitchClient.serializeEntries(entries);
+    }
+
+    @Benchmark
+    public void writeBatchBody(Blackhole blackhole) throws IOException {
+        new BatchBody(entries).writeTo(new OutputStream() {
+                public void write(int b) {
+                    blackhole.consume(b);
+                }
+                public void write(byte[] b, int off, int len) {
+                    blackhole.consume(b);
+                }
+            });
+    }
+}
@@ -0,0 +1,68 @@
+package com.stitchdata.client;
+
+/**
+ * Tunes the batch size threshold between bounds, based on how sends
+ * are going.
+ *
+ * <p>After every request we look at two things. If Stitch pushed
+ * back (a 408, 429, or 5xx response, or an I/O error) or the request
+ * took longer than the target latency, we halve the threshold. If,
+ * once the batch was taken, more data was still waiting in its
+ * buffer than fits in a batch, producers are outpacing us, so we
+ * raise the threshold by a fixed step to send fewer, larger requests.
+ * Otherwise we're keeping up, and the threshold stays where it is.
+ * This is the additive-increase, multiplicative-decrease scheme TCP
+ * uses for its congestion window: it backs off quickly when the
+ * server struggles and probes upward slowly when it doesn't, so
+ * under steady load it settles just below the largest batch the
+ * server handles within the target latency.</p>
+ *
+ * <p>The threshold is shared by all of a client's buffers, but each
+ * request is judged by the backlog of the buffer it came from, so a
+ * batch is compared with the data that would go in the next batch
+ * like it.</p>
+ */
+class AdaptiveBatchSize {
+
+    private final int minBytes;
+    private final int maxBytes;
+    private final long targetLatencyMillis;
+    private final int step;
+
+    private volatile int current;
+
+    AdaptiveBatchSize(int minBytes, int maxBytes, long targetLatencyMillis, int initialBytes) {
+        this.minBytes = minBytes;
+        this.maxBytes = Math.min(maxBytes, Buffer.MAX_BATCH_SIZE_BYTES);
+        this.targetLatencyMillis = targetLatencyMillis;
+        this.step = Math.max(1024, (this.maxBytes - minBytes) / 16);
+        this.current = clamp(initialBytes);
+    }
+
+    int get() {
+        return current;
+    }
+
+    /**
+     * Adjusts the threshold after a request.
+     *
+     * @param latencyMillis how long the request took
+     * @param congested true if Stitch failed or asked us to slow down
+     * @param backlogBytes bytes waiting in the buffer the batch was
+     *                     taken from, not counting the batch itself
+     */
+    synchronized void onRequest(long latencyMillis, boolean congested, long backlogBytes) {
+        int size = current;
+        if (congested || latencyMillis > targetLatencyMillis) {
+            size = size / 2;
+        }
+        else if (backlogBytes > size) {
+            size = size + step;
+        }
+        current = clamp(size);
+    }
+
+    private int clamp(int size) {
+        return Math.max(minBytes, Math.min(maxBytes, size));
+    }
+}
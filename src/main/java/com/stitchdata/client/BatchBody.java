@@ -0,0 +1,79 @@
+package com.stitchdata.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * The body of a batch: a transit JSON array of already-encoded
+ * messages.
+ *
+ * <p>The body isn't assembled into one array. It keeps references to
+ * the encoded entries the client is already holding, and {@link
+ * #writeTo(OutputStream)} writes them one after another, with the
+ * brackets and commas in between. Its length is known up front, so
+ * it can be sent with an exact Content-Length, and the only copy of
+ * the batch in memory is the entries themselves. A body can be
+ * written any number of times, for example when a request is
+ * retried.</p>
+ */
+public final class BatchBody {
+
+    private final List<Buffer.Entry> entries;
+    private final int length;
+
+    BatchBody(List<Buffer.Entry> entries) {
+        this.entries = entries;
+        int size = 2;
+        for (Buffer.Entry entry : entries) {
+            size += entry.bytes.length;
+        }
+        if (entries.size() > 1) {
+            size += entries.size() - 1;
+        }
+        this.length = size;
+    }
+
+    /**
+     * @return the number of bytes {@link #writeTo(OutputStream)}
+     *         writes
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * @return the number of messages in the batch
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Writes the body to the stream. Doesn't flush or close the
+     * stream.
+     *
+     * @param out stream to write to
+     * @throws IOException if the stream throws one
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write('[');
+        for (int i = 0; i < entries.size(); i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            out.write(entries.get(i).bytes);
+        }
+        out.write(']');
+    }
+
+    /**
+     * Copies the body into a new array, for transports that need the
+     * whole body at once.
+     *
+     * @return the body
+     */
+    public byte[] toByteArray() {
+        return StitchClient.serializeEntries(entries);
+    }
+}
@@ -1,70 +1,278 @@
 package com.stitchdata.client;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
-import java.util.LinkedList;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import com.cognitect.transit.Writer;
-import com.cognitect.transit.TransitFactory;
-import com.cognitect.transit.Reader;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Queue of encoded records waiting to be sent.
+ *
+ * <p>Many threads may put entries at once, so producers never take a
+ * lock: entries go on a lock-free deque, and the byte and record
+ * counts are kept in {@link LongAdder}s, which don't contend the way
+ * a single counter would. Taking and removing entries is
+ * synchronized, but only consumers (the thread holding the {@link
+ * #sendPermit}, or a producer discarding old entries) ever hold the
+ * lock. The counts are updated separately from the queue, so {@link
+ * #isReady} may be briefly out of date, which only means a batch is
+ * sent slightly early or late.</p>
+ *
+ * <p>If the client coalesces upserts, entries that have a {@link
+ * Entry#coalesceKey} are put with {@link #putCoalescing}, which does
+ * take the lock, since it has to find and change a pending entry for
+ * the same row.</p>
+ */
 public class Buffer {
 
     static final int MAX_BATCH_SIZE_BYTES = 4000000;
     static final int MAX_MESSAGES_PER_BATCH = 10000;
 
-    private final Queue<Entry> queue = new LinkedList<Entry>();
-    private int availableBytes = 0;
+    private final ConcurrentLinkedDeque<Entry> queue = new ConcurrentLinkedDeque<Entry>();
+    private final LongAdder availableBytes = new LongAdder();
+    private final LongAdder availableRecords = new LongAdder();
 
-    synchronized void put(Entry entry) {
+    // Entries still in the queue that have a coalesceKey, by key.
+    // Guarded by the buffer's lock.
+    private final Map<Object, Entry> pendingByKey = new HashMap<Object, Entry>();
+    // Incremented when a switch_view is put, so that an entry from
+    // before it isn't indexed again when its batch is requeued.
+    // Guarded by the buffer's lock.
+    private long generation;
+
+    /**
+     * Held by whichever thread is sending a batch taken from this
+     * buffer. Batches must be taken and sent while holding the
+     * permit, so that batches from the same buffer are never in
+     * flight at the same time and are delivered in the order they
+     * were taken.
+     */
+    final Semaphore sendPermit = new Semaphore(1);
+
+    /**
+     * Set when a batch from this buffer ran out of retries and was
+     * put back, or is waiting for a retry on a shared runtime, to the
+     * time before which the background scheduler and push shouldn't
+     * try to send from this buffer again. An explicit flush ignores
+     * it.
+     */
+    volatile long holdUntil;
+
+    /**
+     * On a shared runtime, the number of retries already made for the
+     * batch that was put back to wait for its next retry, so the
+     * retry policy picks up where it left off. Only used while
+     * holding the {@link #sendPermit}.
+     */
+    int retries;
+
+    void put(Entry entry) {
         queue.add(entry);
-        availableBytes += entry.bytes.length;
+        availableBytes.add(entry.bytes.length);
+        availableRecords.increment();
     }
 
-    synchronized List<Entry> take(int batchSizeBytes, int batchDelayMillis) {
-        if (queue.isEmpty()) {
+    /**
+     * Puts an entry that has a {@link Entry#coalesceKey}, merging it
+     * with an entry for the same row that hasn't been taken for a
+     * batch yet, if there is one. Stitch only keeps the version with
+     * the highest sequence, so only that version's bytes are kept,
+     * in the pending entry's place in the queue. The other version's
+     * callbackArg and future are added to the pending entry's
+     * superseded list, to be reported along with it.
+     *
+     * @return an entry holding the bytes and write-ahead log segment
+     *         that are no longer needed, or null if there was nothing
+     *         to merge with and the entry was added to the queue
+     */
+    synchronized Entry putCoalescing(Entry entry) {
+        Entry pending = pendingByKey.get(entry.coalesceKey);
+        if (pending == null) {
+            entry.generation = generation;
+            pendingByKey.put(entry.coalesceKey, entry);
+            put(entry);
             return null;
         }
 
-        boolean ready =
-            availableBytes >= batchSizeBytes ||
-            queue.size() >= MAX_MESSAGES_PER_BATCH ||
-            System.currentTimeMillis() - queue.peek().entryTime >= batchDelayMillis;
+        Entry discarded;
+        if (entry.sequence >= pending.sequence) {
+            // Keep the new bytes in the pending entry's place, and
+            // move what it had into a detached entry.
+            discarded = new Entry(pending.bytes, pending.callbackArg, pending.future);
+            discarded.segment = pending.segment;
+            availableBytes.add(entry.bytes.length - pending.bytes.length);
+            pending.bytes = entry.bytes;
+            pending.callbackArg = entry.callbackArg;
+            pending.future = entry.future;
+            pending.segment = entry.segment;
+            pending.sequence = entry.sequence;
+        }
+        else {
+            discarded = entry;
+        }
+        if (pending.superseded == null) {
+            pending.superseded = new ArrayList<Entry>();
+        }
+        pending.superseded.add(discarded);
+        return discarded;
+    }
+
+    /**
+     * Stops coalescing with anything already in the buffer, then puts
+     * the entry. Used for a switch_view, which upserts before it must
+     * not be merged with upserts after it, or a row would move across
+     * the cut-over.
+     */
+    synchronized void putBarrier(Entry entry) {
+        pendingByKey.clear();
+        generation++;
+        if (entry != null) {
+            put(entry);
+        }
+    }
+
+    /**
+     * Puts entries from a batch that couldn't be delivered back at
+     * the front of the buffer, ahead of anything added since, so
+     * they are sent again in their original order. Must be called
+     * while holding the {@link #sendPermit}.
+     */
+    synchronized void requeue(List<Entry> entries) {
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            Entry entry = entries.get(i);
+            queue.addFirst(entry);
+            if (entry.coalesceKey != null && entry.generation == generation) {
+                // A newer version pushed while this one was in flight
+                // stays where it is, behind this one.
+                pendingByKey.putIfAbsent(entry.coalesceKey, entry);
+            }
+            availableBytes.add(entry.bytes.length);
+            availableRecords.increment();
+        }
+    }
 
-        if (!ready) {
+    /**
+     * Removes and returns the oldest entry, or null if the buffer is
+     * empty.
+     */
+    synchronized Entry removeOldest() {
+        Entry entry = queue.poll();
+        if (entry != null) {
+            unindex(entry);
+            availableBytes.add(-entry.bytes.length);
+            availableRecords.decrement();
+        }
+        return entry;
+    }
+
+    /**
+     * Returns true if {@link #take(int, int)} would return a batch
+     * for the given parameters.
+     */
+    boolean isReady(int batchSizeBytes, int batchDelayMillis) {
+        Entry oldest = queue.peek();
+        return oldest != null && (
+            availableBytes.sum() >= batchSizeBytes ||
+            availableRecords.sum() >= MAX_MESSAGES_PER_BATCH ||
+            System.currentTimeMillis() - oldest.entryTime >= batchDelayMillis);
+    }
+
+    /**
+     * Returns the bytes of the entries waiting in the buffer, not
+     * counting any that have been taken for a batch.
+     */
+    long getAvailableBytes() {
+        return availableBytes.sum();
+    }
+
+    /**
+     * Returns the time at which the oldest entry in the buffer was
+     * added, or -1 if the buffer is empty.
+     */
+    long getOldestEntryTime() {
+        Entry oldest = queue.peek();
+        return oldest == null ? -1 : oldest.entryTime;
+    }
+
+    /**
+     * Removes and returns the oldest entries as a batch, or null if
+     * the buffer isn't ready for the given parameters. A batch stops
+     * at whichever limit it reaches first: {@link
+     * #MAX_BATCH_SIZE_BYTES} of body, or {@link
+     * #MAX_MESSAGES_PER_BATCH} entries, so a backlog of small records
+     * is sent as several batches rather than one the gate rejects.
+     */
+    synchronized List<Entry> take(int batchSizeBytes, int batchDelayMillis) {
+        if (!isReady(batchSizeBytes, batchDelayMillis)) {
             return null;
         }
 
         ArrayList<Entry> entries = new ArrayList<Entry>();
 
-        // Start size at 2 to allow for opening and closing brackets
+        // Start size at 2 to allow for opening and closing brackets.
+        // Only threads holding this buffer's lock remove entries, so
+        // the entry we peek at is the one we remove.
         int size = 2;
-        while (!queue.isEmpty() &&
-               size + queue.peek().bytes.length < MAX_BATCH_SIZE_BYTES) {
-            Entry entry = queue.remove();
+        Entry entry;
+        while (entries.size() < MAX_MESSAGES_PER_BATCH &&
+               (entry = queue.peek()) != null &&
+               size + entry.bytes.length < MAX_BATCH_SIZE_BYTES) {
+            queue.remove();
+            unindex(entry);
             // Add size of record plus the comma delimiter
             size += entry.bytes.length + 1;
-            availableBytes -= entry.bytes.length;
+            availableBytes.add(-entry.bytes.length);
+            availableRecords.decrement();
             entries.add(entry);
         }
 
         return entries;
     }
 
+    private void unindex(Entry entry) {
+        if (entry.coalesceKey != null) {
+            pendingByKey.remove(entry.coalesceKey, entry);
+        }
+    }
+
     static class Entry {
         byte[] bytes;
         Object callbackArg;
+        CompletableFuture<Void> future;
+        // The write-ahead log segment holding a copy of this entry,
+        // if any, until the entry is acknowledged.
+        WriteAheadLog.Segment segment;
         private long entryTime;
+        // Set if the client coalesces upserts: the message's table,
+        // key names and key values, and its sequence.
+        Object coalesceKey;
+        long sequence;
+        // The buffer's generation when this entry was indexed
+        long generation;
+        // Entries for the same row that this one replaced, whose
+        // callbackArgs and futures are reported when this entry is
+        // delivered or discarded.
+        List<Entry> superseded;
 
         Entry(byte[] bytes, Object callbackArg) {
+            this(bytes, callbackArg, null);
+        }
+
+        /**
+         * @param future if not null, completed once the batch
+         *               containing this entry has been delivered, or
+         *               completed exceptionally if delivery failed
+         */
+        Entry(byte[] bytes, Object callbackArg, CompletableFuture<Void> future) {
 
             this.bytes = bytes;
             this.entryTime = System.currentTimeMillis();
             this.callbackArg = callbackArg;
+            this.future = future;
 
             // We need two extra bytes for the [ and ] wrapping the record.
             if (bytes.length > MAX_BATCH_SIZE_BYTES - 2) {
@@ -0,0 +1,145 @@
+package com.stitchdata.client;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tracks the bytes and records held by a client, against optional
+ * limits.
+ *
+ * <p>Space for an entry is reserved before the entry is added to a
+ * buffer, and released once the batch containing it has been sent (or
+ * failed), or the entry has been dropped. So the totals include
+ * entries in batches that are in flight.</p>
+ *
+ * <p>Every push reserves space, so reserving never takes a lock.
+ * Space is claimed by adding to the totals and given back if that
+ * overshoots a limit, which means a thread may briefly see the
+ * budget as fuller than it is. Only threads waiting for space
+ * take the lock, and a release only signals if someone is
+ * waiting. The lock is a {@link ReentrantLock} rather than the
+ * object's monitor, so a producer on a virtual thread that waits for
+ * space doesn't pin its carrier thread.</p>
+ */
+class BufferBudget {
+
+    private final long maxBytes;
+    private final int maxRecords;
+
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicInteger records = new AtomicInteger();
+
+    // Incremented on every release, so that a thread that failed to
+    // reserve space can wait for the next release without missing
+    // one that happens in between.
+    private final AtomicLong releases = new AtomicLong();
+    private final AtomicInteger waiters = new AtomicInteger();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+
+    BufferBudget(long maxBytes, int maxRecords) {
+        this.maxBytes = maxBytes;
+        this.maxRecords = maxRecords;
+    }
+
+    /**
+     * Returns true if an entry of the given size could ever fit.
+     */
+    boolean canFit(int entryBytes) {
+        return entryBytes <= maxBytes && maxRecords > 0;
+    }
+
+    /**
+     * Reserves space for an entry if it fits.
+     *
+     * @return true if the space was reserved
+     */
+    boolean tryReserve(int entryBytes) {
+        long newBytes = bytes.addAndGet(entryBytes);
+        if (newBytes > maxBytes || newBytes < 0) {
+            bytes.addAndGet(-entryBytes);
+            return false;
+        }
+        int newRecords = records.incrementAndGet();
+        if (newRecords > maxRecords || newRecords < 0) {
+            records.decrementAndGet();
+            bytes.addAndGet(-entryBytes);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reserves space for an entry regardless of the limits. Used for
+     * entries recovered from a write-ahead log, which we'd rather
+     * hold than lose.
+     */
+    void forceReserve(int entryBytes) {
+        bytes.addAndGet(entryBytes);
+        records.incrementAndGet();
+    }
+
+    void release(int entryBytes, int entryCount) {
+        bytes.addAndGet(-entryBytes);
+        records.addAndGet(-entryCount);
+        releases.incrementAndGet();
+        if (waiters.get() > 0) {
+            lock.lock();
+            try {
+                released.signalAll();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Returns a token to pass to {@link #awaitRelease}.
+     */
+    long getReleases() {
+        return releases.get();
+    }
+
+    /**
+     * Waits until space has been released since the given token was
+     * obtained, or until the timeout expires.
+     */
+    void awaitRelease(long token, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        lock.lock();
+        waiters.incrementAndGet();
+        try {
+            while (releases.get() == token) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return;
+                }
+                released.await(remaining, TimeUnit.MILLISECONDS);
+            }
+        }
+        finally {
+            waiters.decrementAndGet();
+            lock.unlock();
+        }
+    }
+
+    long getMaxBytes() {
+        return maxBytes;
+    }
+
+    int getMaxRecords() {
+        return maxRecords;
+    }
+
+    long getBytes() {
+        return bytes.get();
+    }
+
+    int getRecords() {
+        return records.get();
+    }
+}
@@ -0,0 +1,16 @@
+package com.stitchdata.client;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a message can't be accepted because the client is
+ * holding as many bytes or records as it is allowed to.
+ *
+ * @see BufferFullPolicy
+ */
+public class BufferFullException extends IOException {
+
+    public BufferFullException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,32 @@
+package com.stitchdata.client;
+
+/**
+ * What {@link StitchClient#push(StitchMessage)} does when the client
+ * is holding as many bytes or records as it is allowed to (see {@link
+ * StitchClientBuilder#withMaxBufferedBytes(long)} and {@link
+ * StitchClientBuilder#withMaxBufferedRecords(int)}).
+ */
+public enum BufferFullPolicy {
+
+    /**
+     * Wait for space to become available, up to the timeout set with
+     * {@link StitchClientBuilder#withBlockTimeoutMillis(long)}, then
+     * throw {@link BufferFullException}. If the client isn't sending
+     * batches in the background, the waiting thread sends a batch
+     * itself to make room.
+     */
+    BLOCK,
+
+    /**
+     * Throw {@link BufferFullException} immediately.
+     */
+    FAIL,
+
+    /**
+     * Discard the oldest records that haven't been sent yet to make
+     * room, notifying the {@link DropHandler} if there is one. If
+     * everything the client is holding is already being sent, wait as
+     * with {@link #BLOCK}.
+     */
+    DROP_OLDEST
+}
@@ -0,0 +1,20 @@
+package com.stitchdata.client;
+
+import java.util.List;
+
+/**
+ * Use this to be notified when records are discarded from the buffer
+ * without being sent, because the buffer was full and the client uses
+ * {@link BufferFullPolicy#DROP_OLDEST}.
+ */
+public interface DropHandler {
+
+    /**
+     * Called after records are discarded, with the list of
+     * callbackArgs corresponding to the records that were discarded.
+     *
+     * @param callbackArgs the callbackArgs associated with the records
+     *                     that were discarded.
+     */
+    public void onDrop(List callbackArgs);
+}
@@ -0,0 +1,217 @@
+package com.stitchdata.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Encodes pushed messages on a client's encoder threads, so the
+ * threads that push them don't pay for it.
+ *
+ * <p>Each encoder thread has a bounded queue of messages. A push
+ * just puts the message on a queue, and the thread encodes it and
+ * adds it to the client's buffers. Messages are assigned to threads
+ * by the same hash of table name and key values that assigns them to
+ * buffers, so messages with the same key are encoded by the same
+ * thread, in the order they were pushed. When a thread's queue is
+ * full, pushes to it wait, and when the client's buffers are full,
+ * the thread waits according to the client's {@link
+ * BufferFullPolicy}, so a slow gate still slows down producers.</p>
+ *
+ * <p>An error on an encoder thread can't be thrown to the thread that
+ * pushed the message. Messages pushed with {@link
+ * StitchClient#pushAsync(StitchMessage, Object)} fail their future.
+ * For any other messages, we hold on to the first error and throw it
+ * from the next call to {@link #checkFailure()}, as {@link
+ * FlushScheduler} does for errors on sender threads.</p>
+ *
+ * <p>Once the stage is closed, {@link #submit} and {@link #awaitIdle}
+ * throw an IOException rather than queue work for threads that have
+ * stopped. Both hold the read side of {@code closeLock} while they
+ * put to a queue, so close waits for a put in progress to land, and
+ * the threads finish it before they stop.</p>
+ */
+class EncoderStage implements Closeable {
+
+    private final StitchClient client;
+    private final List<BlockingQueue<Runnable>> queues = new ArrayList<BlockingQueue<Runnable>>();
+    private final List<Thread> threads = new ArrayList<Thread>();
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private boolean closed;
+    private IOException failure;
+
+    EncoderStage(StitchClient client, int threads, int queueSize) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("encoderThreads must be at least 1");
+        }
+        if (queueSize < 1) {
+            throw new IllegalArgumentException("encoderQueueSize must be at least 1");
+        }
+        this.client = client;
+        for (int i = 0; i < threads; i++) {
+            final BlockingQueue<Runnable> queue = new ArrayBlockingQueue<Runnable>(queueSize);
+            Thread thread = new Thread(() -> run(queue), "stitch-encoder-" + (queues.size() + 1));
+            thread.setDaemon(true);
+            queues.add(queue);
+            this.threads.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * Queues the message to be encoded and added to the client's
+     * buffers, waiting if the queue is full.
+     *
+     * @param future if not null, completed exceptionally if the
+     *               message can't be added
+     * @throws IOException if the stage is closed
+     */
+    void submit(final StitchMessage message, int partitionHash,
+                final Object callbackArg, final CompletableFuture<Void> future)
+        throws IOException
+    {
+        put(queues.get(Math.floorMod(partitionHash, queues.size())), () -> {
+                try {
+                    client.enqueueEncoded(message, callbackArg, future);
+                }
+                catch (IOException e) {
+                    onFailure(e);
+                }
+                catch (RuntimeException e) {
+                    if (future != null) {
+                        future.completeExceptionally(e);
+                    }
+                    else {
+                        onFailure(new IOException(e));
+                    }
+                }
+            });
+    }
+
+    /**
+     * Waits until every message submitted before this call has been
+     * added to the client's buffers.
+     *
+     * @throws IOException if the stage is closed
+     */
+    void awaitIdle() throws IOException {
+        CountDownLatch idle;
+        closeLock.readLock().lock();
+        try {
+            checkOpen();
+            idle = markIdle();
+        }
+        finally {
+            closeLock.readLock().unlock();
+        }
+        await(idle);
+    }
+
+    /**
+     * Queues a task on every thread that counts down the returned
+     * latch, so it reaches zero once the threads have finished what
+     * was queued before it.
+     */
+    private CountDownLatch markIdle() throws InterruptedIOException {
+        CountDownLatch idle = new CountDownLatch(queues.size());
+        for (BlockingQueue<Runnable> queue : queues) {
+            putLocked(queue, idle::countDown);
+        }
+        return idle;
+    }
+
+    private static void await(CountDownLatch idle) throws InterruptedIOException {
+        try {
+            idle.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Throws the first error encountered on an encoder thread since
+     * the last call, if any.
+     */
+    synchronized void checkFailure() throws IOException {
+        IOException e = failure;
+        failure = null;
+        if (e != null) {
+            throw e;
+        }
+    }
+
+    /**
+     * Stops the encoder threads once they've finished what was
+     * submitted. Closing again has no effect.
+     */
+    public void close() throws IOException {
+        closeLock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            await(markIdle());
+        }
+        finally {
+            closeLock.writeLock().unlock();
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    private void put(BlockingQueue<Runnable> queue, Runnable task) throws IOException {
+        closeLock.readLock().lock();
+        try {
+            checkOpen();
+            putLocked(queue, task);
+        }
+        finally {
+            closeLock.readLock().unlock();
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Client is closed");
+        }
+    }
+
+    private static void putLocked(BlockingQueue<Runnable> queue, Runnable task) throws InterruptedIOException {
+        try {
+            queue.put(task);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private void run(BlockingQueue<Runnable> queue) {
+        try {
+            while (true) {
+                queue.take().run();
+            }
+        }
+        catch (InterruptedException e) {
+            // Closed
+        }
+    }
+
+    private synchronized void onFailure(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+    }
+}
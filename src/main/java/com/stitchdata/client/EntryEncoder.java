@@ -0,0 +1,212 @@
+package com.stitchdata.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Map;
+import com.cognitect.transit.WriteHandler;
+import com.cognitect.transit.impl.JsonEmitter;
+import com.cognitect.transit.impl.WriteCache;
+import com.cognitect.transit.impl.WriteHandlerMap;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Encodes messages into buffer entries, reusing everything it can
+ * from one message to the next.
+ *
+ * <p>Creating a JSON generator and transit emitter and growing a
+ * fresh output stream for every record made encoding allocate many
+ * times the size of the record it produced. An encoder keeps one of
+ * each and writes every message through them, so the only allocation
+ * that grows with the record is the final copy of the encoded bytes
+ * into the entry.</p>
+ *
+ * <p>A message is written as a transit map without building a map
+ * first. The fields that are the same for every message to a table
+ * are passed in already encoded (see {@link #encodeFields}) and
+ * copied into the output as they are.</p>
+ *
+ * <p>An encoder is not thread-safe; {@link StitchClient} keeps a
+ * small pool of them, and a thread takes one for each message it
+ * encodes. If encoding fails part way through, the generator may be
+ * left inside an unfinished value, so the encoder must be thrown
+ * away.</p>
+ */
+class EntryEncoder {
+
+    // Output buffers that grew past this to hold an unusually large
+    // record are dropped rather than kept for the life of the encoder.
+    static final int MAX_RETAINED_BYTES = 64 * 1024;
+
+    // First element of the array transit writes a map as in JSON
+    private static final String MAP_AS_ARRAY = "^ ";
+
+    private final WriteHandlerMap writeHandlers;
+    private final WriteCache writeCache = new WriteCache(false);
+    private Output out;
+    private JsonGenerator generator;
+    private Emitter emitter;
+
+    EntryEncoder(WriteHandlerMap writeHandlers) {
+        this.writeHandlers = writeHandlers;
+        reset(new Output());
+    }
+
+    private void reset(Output output) {
+        try {
+            out = output;
+            generator = StitchClient.JSON_FACTORY.createGenerator(out);
+            // By default Jackson separates top-level values with a
+            // space, which would end up at the start of every entry
+            // after the first.
+            generator.setRootValueSeparator(null);
+            emitter = new Emitter(generator, writeHandlers);
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Encodes the value as transit JSON without cache codes, and
+     * returns a copy of the encoded bytes.
+     */
+    byte[] encode(Object value) {
+        out.reset();
+        try {
+            emitter.emit(value, false, writeCache);
+            emitter.flushWriter();
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        return finish();
+    }
+
+    /**
+     * Encodes a message as a transit map, the same as {@link
+     * #encode} would encode a map of its fields, but without
+     * building the map.
+     *
+     * @param action value of the action field
+     * @param fields the constant fields, as returned by {@link
+     *               #encodeFields}
+     * @param tableVersion table_version, or null to leave it out
+     * @param sequence sequence, or null to leave it out
+     * @param data data, or null to leave it out
+     * @param record object to write as the data, through its {@link
+     *               RecordCodec}, if data is null; or null to leave
+     *               it out
+     */
+    byte[] encodeMessage(String action, String fields, Object tableVersion, Object sequence,
+                         Map data, Object record) {
+        out.reset();
+        try {
+            generator.writeStartArray();
+            generator.writeString(MAP_AS_ARRAY);
+            generator.writeString("action");
+            generator.writeString(action);
+            // Raw output bypasses the generator's bookkeeping, so we
+            // write the separator ourselves, and the generator still
+            // writes one before the next field.
+            generator.writeRaw(',');
+            generator.writeRaw(fields);
+            writeField("table_version", tableVersion);
+            writeField("sequence", sequence);
+            writeField("data", data);
+            if (data == null && record != null) {
+                generator.writeString("data");
+                writeRecord(record);
+            }
+            generator.writeEndArray();
+            generator.flush();
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        return finish();
+    }
+
+    private void writeField(String name, Object value) throws Exception {
+        if (value != null) {
+            generator.writeString(name);
+            emitter.marshalValue(value, writeCache);
+        }
+    }
+
+    /**
+     * Writes the object's properties as a transit map, the same as
+     * a map of the property names to their values.
+     */
+    private void writeRecord(Object record) throws Exception {
+        RecordCodec codec = RecordCodec.forClass(record.getClass());
+        generator.writeStartArray();
+        generator.writeString(MAP_AS_ARRAY);
+        for (int i = 0; i < codec.size(); i++) {
+            generator.writeString(codec.names[i]);
+            emitter.marshalValue(codec.get(record, i), writeCache);
+        }
+        generator.writeEndArray();
+    }
+
+    /**
+     * Encodes the fields of the map, in order, as they appear inside
+     * an encoded transit map, for passing to {@link #encodeMessage}.
+     * The map must not be empty.
+     */
+    static String encodeFields(Map fields, Map<Class,WriteHandler<?,?>> writeHandlers) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        StitchClient.newEntryWriter(baos, writeHandlers).write(fields);
+        String encoded;
+        try {
+            encoded = baos.toString("UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        String prefix = "[\"" + MAP_AS_ARRAY + "\",";
+        if (!encoded.startsWith(prefix) || !encoded.endsWith("]")) {
+            throw new IllegalArgumentException("Not an encoded map: " + encoded);
+        }
+        return encoded.substring(prefix.length(), encoded.length() - 1);
+    }
+
+    private byte[] finish() {
+        byte[] bytes = out.toByteArray();
+        if (out.capacity() > MAX_RETAINED_BYTES) {
+            reset(new Output());
+        }
+        return bytes;
+    }
+
+    /**
+     * Emitter that can write a value nested inside something else
+     * we're writing. Top-level scalars get wrapped in a quote by
+     * {@link JsonEmitter#emit}, which is only right for a whole
+     * entry.
+     */
+    private static class Emitter extends JsonEmitter {
+
+        Emitter(JsonGenerator generator, WriteHandlerMap writeHandlers) {
+            super(generator, writeHandlers);
+        }
+
+        void marshalValue(Object value, WriteCache writeCache) throws Exception {
+            marshal(value, false, writeCache);
+        }
+    }
+
+    /**
+     * ByteArrayOutputStream that exposes its capacity.
+     */
+    private static class Output extends ByteArrayOutputStream {
+
+        Output() {
+            super(1024);
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.stitchdata.client;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs tasks from many lanes on a fixed set of threads, taking turns
+ * between lanes.
+ *
+ * <p>Each client sharing a {@link StitchRuntime} submits its work to
+ * its own {@link Lane}. Lanes with work waiting are kept in a queue,
+ * and a free thread takes one task from the lane at the head and
+ * then moves the lane to the back if it still has work. A client
+ * with thousands of batches queued for a backfill gets one turn per
+ * round, the same as a client with one, so it can't starve the
+ * others. A lane can still have several tasks running at once, up to
+ * the number of threads, when nobody else is waiting.</p>
+ *
+ * <p>Every time a lane joins the queue, one task is submitted to the
+ * underlying pool to serve it. The lane is in the queue at most once,
+ * and the thread that takes it from the queue is the only one
+ * polling its tasks until it is put back, so a turn always finds a
+ * task.</p>
+ */
+class FairExecutor {
+
+    private final ExecutorService workers;
+    private final ConcurrentLinkedQueue<Lane> ready = new ConcurrentLinkedQueue<Lane>();
+
+    FairExecutor(ExecutorService workers) {
+        this.workers = workers;
+    }
+
+    Lane newLane() {
+        return new Lane();
+    }
+
+    void shutdown() {
+        workers.shutdown();
+    }
+
+    private void runNext() {
+        Lane lane = ready.poll();
+        if (lane == null) {
+            return;
+        }
+        Runnable task = lane.tasks.poll();
+        lane.requeueOrIdle();
+        if (task != null) {
+            task.run();
+        }
+    }
+
+    class Lane implements Executor {
+
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private final AtomicBoolean queued = new AtomicBoolean();
+
+        public void execute(Runnable task) {
+            tasks.add(task);
+            if (queued.compareAndSet(false, true)) {
+                enqueue();
+            }
+        }
+
+        private void requeueOrIdle() {
+            if (!tasks.isEmpty()) {
+                enqueue();
+                return;
+            }
+            queued.set(false);
+            // A task may have been added after we looked, by a thread
+            // that saw the lane still queued.
+            if (!tasks.isEmpty() && queued.compareAndSet(false, true)) {
+                enqueue();
+            }
+        }
+
+        private void enqueue() {
+            ready.add(this);
+            workers.execute(FairExecutor.this::runNext);
+        }
+    }
+}
@@ -16,4 +16,18 @@ public interface FlushHandler {
      *                     that were flushed.
      */
     public void onFlush(List callbackArgs);
+
+    /**
+     * Called after a batch could not be delivered, with the list of
+     * callbackArgs corresponding to the records that were given up
+     * on. Records that the client will send again, because it has a
+     * retry policy, aren't included. Does nothing by default.
+     *
+     * @param callbackArgs the callbackArgs associated with the records
+     *                     that weren't delivered.
+     * @param error the {@link StitchException} or other error that
+     *              caused the failure
+     */
+    default void onFailure(List callbackArgs, Exception error) {
+    }
 }
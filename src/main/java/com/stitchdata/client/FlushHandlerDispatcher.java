@@ -0,0 +1,165 @@
+package com.stitchdata.client;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Calls a client's {@link FlushHandler} on an executor of the
+ * caller's choosing, rather than on the thread that sent the batch.
+ *
+ * <p>A handler that does real work, like committing offsets to
+ * another system, would otherwise hold up the sender thread, and
+ * with it the next batch from that buffer. Here the sender just
+ * queues the callbackArgs and moves on. The handler is called from
+ * one task at a time, in the order batches finished, so it never
+ * sees acknowledgements out of order and needn't be thread-safe. If
+ * it falls behind, acknowledgements for consecutive delivered batches
+ * are passed to it in one call to {@link
+ * FlushHandler#onFlush(List)}. A failure is never merged, so the
+ * handler sees it between the acknowledgements for batches delivered
+ * before it and after it.</p>
+ *
+ * <p>An exception thrown by the handler can't be thrown to the
+ * sender, so we hold on to the first one and throw it from the next
+ * call to {@link #checkFailure()}.</p>
+ */
+class FlushHandlerDispatcher {
+
+    private final FlushHandler handler;
+    private final Executor executor;
+    private final ConcurrentLinkedQueue<Acknowledgement> queue = new ConcurrentLinkedQueue<Acknowledgement>();
+    private final AtomicInteger wip = new AtomicInteger();
+
+    // Acknowledgements queued and not yet passed to the handler
+    private long pending;
+    private RuntimeException failure;
+
+    private static class Acknowledgement {
+        final List callbackArgs;
+        // Null if the batch was delivered
+        final Exception error;
+
+        Acknowledgement(List callbackArgs, Exception error) {
+            this.callbackArgs = callbackArgs;
+            this.error = error;
+        }
+    }
+
+    FlushHandlerDispatcher(FlushHandler handler, Executor executor) {
+        this.handler = handler;
+        this.executor = executor;
+    }
+
+    void onFlush(List callbackArgs) {
+        offer(new Acknowledgement(callbackArgs, null));
+    }
+
+    void onFailure(List callbackArgs, Exception error) {
+        offer(new Acknowledgement(callbackArgs, error));
+    }
+
+    /**
+     * Waits until the handler has been called for everything queued
+     * before this call.
+     */
+    synchronized void awaitIdle() throws InterruptedIOException {
+        try {
+            while (pending > 0) {
+                wait();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Throws the first exception thrown by the handler since the
+     * last call, if any.
+     */
+    synchronized void checkFailure() {
+        RuntimeException e = failure;
+        failure = null;
+        if (e != null) {
+            throw e;
+        }
+    }
+
+    private void offer(Acknowledgement acknowledgement) {
+        synchronized (this) {
+            pending++;
+        }
+        queue.add(acknowledgement);
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        try {
+            executor.execute(this::drain);
+        }
+        catch (RejectedExecutionException e) {
+            // The executor was shut down before the client was
+            // closed. Better late than never.
+            drain();
+        }
+    }
+
+    /**
+     * Passes everything queued to the handler. Only one drain runs at
+     * a time; offers made while it runs just note there is more work.
+     */
+    private void drain() {
+        int missed = wip.get();
+        while (true) {
+            Acknowledgement next = queue.poll();
+            while (next != null) {
+                int count = 1;
+                Acknowledgement current = next;
+                next = queue.poll();
+                List callbackArgs = current.callbackArgs;
+                if (current.error == null && next != null && next.error == null) {
+                    callbackArgs = new ArrayList(callbackArgs);
+                    while (next != null && next.error == null) {
+                        callbackArgs.addAll(next.callbackArgs);
+                        count++;
+                        next = queue.poll();
+                    }
+                }
+                deliver(callbackArgs, current.error, count);
+            }
+            missed = wip.addAndGet(-missed);
+            if (missed == 0) {
+                return;
+            }
+        }
+    }
+
+    private void deliver(List callbackArgs, Exception error, int count) {
+        RuntimeException thrown = null;
+        try {
+            if (error == null) {
+                handler.onFlush(callbackArgs);
+            }
+            else {
+                handler.onFailure(callbackArgs, error);
+            }
+        }
+        catch (RuntimeException e) {
+            thrown = e;
+        }
+        synchronized (this) {
+            if (thrown != null && failure == null) {
+                failure = thrown;
+            }
+            pending -= count;
+            if (pending == 0) {
+                notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package com.stitchdata.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers batches from a client's buffers in the background.
+ *
+ * <p>Without a scheduler, the buffers are only checked when a thread
+ * calls {@link StitchClient#push(StitchMessage)}, so records can sit
+ * in a buffer indefinitely if no more messages arrive. The scheduler
+ * wakes up when the oldest entry in any buffer reaches its deadline
+ * (or immediately if a push fills a batch) and hands every batch
+ * that is ready to the client's sender threads. Producer threads
+ * never send batches themselves.</p>
+ *
+ * <p>Each buffer has at most one batch in flight, guarded by its
+ * {@link Buffer#sendPermit}. While a buffer's batch is in flight,
+ * entries accumulate in that buffer, and the next batch is taken as
+ * soon as the send finishes.</p>
+ *
+ * <p>Clients that share a {@link StitchRuntime} share its timer
+ * thread, which only takes batches from the buffers and hands them
+ * off, so one client's dispatch never waits on another's send.</p>
+ *
+ * <p>Since batches are sent on a sender thread, an error can't be
+ * thrown to the thread that pushed the records. Entries pushed with
+ * {@link StitchClient#pushAsync(StitchMessage, Object)} see the
+ * error through their future. For any other entries, we hold on to
+ * the first error and throw it from the next call to {@link
+ * #checkFailure()}, unless the client has a retry policy and put the
+ * entries back in the buffer to be sent again.</p>
+ */
+class FlushScheduler implements Closeable {
+
+    private final StitchClient client;
+    private final Buffer[] buffers;
+    private final int batchDelayMillis;
+    private final Executor senders;
+    private final ScheduledExecutorService timer;
+    private final boolean ownsTimer;
+
+    // Written only while synchronized, but read without the lock by
+    // scheduleAt, which is called on every push.
+    private volatile ScheduledFuture<?> pending;
+    private volatile long pendingDeadline;
+    private IOException failure;
+    private boolean drainRequested;
+    // Callers waiting for what's buffered to be sent, such as pushAll.
+    // Written only while synchronized.
+    private volatile int draining;
+    private boolean closed;
+
+    /**
+     * @param timer thread to schedule wake-ups on, shared with other
+     *              clients, or null to start one for this client
+     */
+    FlushScheduler(StitchClient client, Buffer[] buffers, int batchDelayMillis, Executor senders,
+                   ScheduledExecutorService timer) {
+        this.client = client;
+        this.buffers = buffers;
+        this.batchDelayMillis = batchDelayMillis;
+        this.senders = senders;
+        this.ownsTimer = timer == null;
+        if (timer == null) {
+            ScheduledThreadPoolExecutor ownTimer = new ScheduledThreadPoolExecutor(1, r -> {
+                    Thread thread = new Thread(r, "stitch-flush-scheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            ownTimer.setRemoveOnCancelPolicy(true);
+            timer = ownTimer;
+        }
+        this.timer = timer;
+    }
+
+    /**
+     * Called after an entry is added to the given buffer. Dispatches
+     * right away if a batch is ready, otherwise makes sure we wake
+     * up when the oldest entry reaches its deadline.
+     */
+    void onPut(Buffer buffer) {
+        boolean ready = draining > 0
+            ? buffer.getOldestEntryTime() >= 0
+            : buffer.isReady(client.getEffectiveBatchSizeBytes(), Integer.MAX_VALUE);
+        if (ready) {
+            scheduleAt(Math.max(System.currentTimeMillis(), buffer.holdUntil));
+        }
+        else {
+            scheduleNext();
+        }
+    }
+
+    /**
+     * Dispatches whatever is in the buffers right away, regardless of
+     * batch size and delay. Used when a producer is waiting for space
+     * in the client's buffer budget, which may be smaller than a
+     * batch.
+     */
+    void drainNow() {
+        synchronized (this) {
+            drainRequested = true;
+        }
+        scheduleAt(System.currentTimeMillis());
+    }
+
+    /**
+     * Dispatches whatever is in the buffers right away, and keeps
+     * doing so as each send finishes, until {@link #stopDraining()}
+     * is called. Unlike {@link StitchClient#flush()}, this doesn't
+     * wait for anything, so a caller can wait for just its own
+     * entries.
+     */
+    void startDraining() {
+        synchronized (this) {
+            draining++;
+        }
+        scheduleAt(System.currentTimeMillis());
+    }
+
+    synchronized void stopDraining() {
+        draining--;
+    }
+
+    /**
+     * Throws the first error encountered on a sender thread since
+     * the last call, if any.
+     */
+    synchronized void checkFailure() throws IOException {
+        IOException e = failure;
+        failure = null;
+        if (e != null) {
+            throw e;
+        }
+    }
+
+    public synchronized void close() {
+        closed = true;
+        if (pending != null) {
+            pending.cancel(false);
+        }
+        if (ownsTimer) {
+            timer.shutdownNow();
+        }
+    }
+
+    /**
+     * Takes a ready batch from every buffer that doesn't already
+     * have one in flight. Runs on the timer thread.
+     */
+    private void dispatch() {
+        boolean drain;
+        synchronized (this) {
+            pending = null;
+            drain = drainRequested || draining > 0;
+            drainRequested = false;
+        }
+        int sizeBytes = drain ? 0 : client.getEffectiveBatchSizeBytes();
+        int delayMillis = drain ? 0 : batchDelayMillis;
+        long now = System.currentTimeMillis();
+        for (Buffer buffer : buffers) {
+            if (buffer.holdUntil > now ||
+                !buffer.isReady(sizeBytes, delayMillis) ||
+                !buffer.sendPermit.tryAcquire()) {
+                continue;
+            }
+            List<Buffer.Entry> batch = buffer.take(sizeBytes, delayMillis);
+            if (batch == null) {
+                buffer.sendPermit.release();
+            }
+            else {
+                send(buffer, batch);
+            }
+        }
+        scheduleNext();
+    }
+
+    /**
+     * Sends the batch on a sender thread, then releases the buffer's
+     * send permit.
+     */
+    private void send(final Buffer buffer, final List<Buffer.Entry> batch) {
+        senders.execute(() -> {
+            try {
+                client.sendBatchInBackground(buffer, batch);
+            }
+            catch (IOException e) {
+                onFailure(batch, e, client.willRetry(e));
+            }
+            catch (RuntimeException e) {
+                onFailure(batch, new IOException(e), false);
+            }
+            finally {
+                buffer.sendPermit.release();
+                onPut(buffer);
+            }
+        });
+    }
+
+    private synchronized void onFailure(List<Buffer.Entry> batch, IOException e, boolean requeued) {
+        // Nothing is lost if the client put the entries back in the
+        // buffer, so there's nothing to report.
+        if (failure == null && !StitchClient.isReportedByFutures(batch) && !requeued) {
+            failure = e;
+        }
+    }
+
+    private void scheduleNext() {
+        long next = -1;
+        for (Buffer buffer : buffers) {
+            long entryTime = buffer.getOldestEntryTime();
+            if (entryTime >= 0) {
+                long due = Math.max(entryTime + batchDelayMillis, buffer.holdUntil);
+                if (next < 0 || due < next) {
+                    next = due;
+                }
+            }
+        }
+        if (next >= 0) {
+            scheduleAt(next);
+        }
+    }
+
+    private void scheduleAt(long deadline) {
+        // Usually a wake-up at or before this deadline is already
+        // pending, and we don't need the lock to see that. dispatch()
+        // clears pending before it looks at the buffers, so if we see
+        // it set, the pending dispatch will see the entry that was
+        // just put.
+        ScheduledFuture<?> current = pending;
+        if (current != null && pendingDeadline <= deadline) {
+            return;
+        }
+        scheduleAtLocked(deadline);
+    }
+
+    private synchronized void scheduleAtLocked(long deadline) {
+        if (pending != null && !pending.isDone() && pendingDeadline <= deadline) {
+            return;
+        }
+        if (pending != null) {
+            pending.cancel(false);
+        }
+        if (closed || timer.isShutdown()) {
+            return;
+        }
+        pendingDeadline = deadline;
+        pending = timer.schedule(
+            this::dispatch,
+            Math.max(0, deadline - System.currentTimeMillis()),
+            TimeUnit.MILLISECONDS);
+    }
+}
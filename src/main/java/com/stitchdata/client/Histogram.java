@@ -0,0 +1,90 @@
+package com.stitchdata.client;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values, accurate to within
+ * about 12%.
+ *
+ * <p>Values below 8 have a bucket each. Above that, each power of two
+ * is split into 8 equal buckets, so a bucket's width is an eighth of
+ * its lower bound. Recording a value is a handful of atomic
+ * increments, and a snapshot walks about 500 buckets.</p>
+ */
+class Histogram {
+
+    private static final int SUB_BUCKETS = 8;
+    private static final int SUB_BUCKET_BITS = 3;
+
+    private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucket(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = bucket % SUB_BUCKETS;
+        return (1L << exponent) + ((long) subBucket << (exponent - SUB_BUCKET_BITS));
+    }
+
+    /**
+     * Returns a summary of the values recorded so far, dividing each
+     * by the given scale (for example, 1000 to report nanoseconds as
+     * microseconds).
+     */
+    HistogramSnapshot snapshot(long scale) {
+        long total = count.sum();
+        long[] copy = new long[counts.length()];
+        long copied = 0;
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = counts.get(i);
+            copied += copy[i];
+        }
+        return new HistogramSnapshot(
+            total,
+            total == 0 ? 0 : sum.sum() / total / scale,
+            percentile(copy, copied, 0.5) / scale,
+            percentile(copy, copied, 0.9) / scale,
+            percentile(copy, copied, 0.99) / scale,
+            max.get() / scale);
+    }
+
+    private static long percentile(long[] counts, long total, double fraction) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return lowerBound(i);
+            }
+        }
+        return lowerBound(counts.length - 1);
+    }
+}
@@ -0,0 +1,319 @@
+package com.stitchdata.client;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+
+/**
+ * Default {@link Transport}, which posts batches to the Stitch import
+ * API.
+ *
+ * <p>Connections are kept in a {@link
+ * PoolingHttpClientConnectionManager} and reused across batches. A
+ * connection is kept alive for as long as the server allows, but no
+ * longer than keepAliveMillis, and connections that have been idle
+ * that long are closed by a background thread. All TLS connections
+ * are created from the same SSL context, so TLS sessions are resumed
+ * rather than renegotiated when a new connection is opened.</p>
+ *
+ * <p>Batches are written to the connection straight from the encoded
+ * entries, without first being copied into one array (see {@link
+ * BatchBody}).</p>
+ *
+ * <p>If compression is enabled, bodies of at least gzipMinBytes are
+ * sent with {@code Content-Encoding: gzip}. The body is compressed
+ * as it is written to the connection, so we never hold a compressed
+ * copy of the batch in memory.</p>
+ */
+class HttpTransport implements Transport {
+
+    static final ContentType CONTENT_TYPE =
+        ContentType.create("application/transit+json");
+
+    private final String url;
+    private final String token;
+    private final CloseableHttpClient httpClient;
+    private final int gzipMinBytes;
+    private final int gzipLevel;
+    private final boolean ownsHttpClient;
+
+    HttpTransport(String url, String token, CloseableHttpClient httpClient) {
+        this(url, token, httpClient, -1, 0);
+    }
+
+    HttpTransport(String url, String token, CloseableHttpClient httpClient, int gzipMinBytes, int gzipLevel) {
+        this(url, token, httpClient, gzipMinBytes, gzipLevel, true);
+    }
+
+    /**
+     * @param gzipMinBytes compress bodies of at least this many
+     *                     bytes, or -1 to never compress
+     * @param gzipLevel compression level, from 0 to 9, or -1 for the
+     *                  default level
+     * @param ownsHttpClient true to close the HTTP client when the
+     *                       transport is closed, or false if it is
+     *                       shared with other transports (see {@link
+     *                       StitchRuntime})
+     */
+    HttpTransport(String url, String token, CloseableHttpClient httpClient, int gzipMinBytes, int gzipLevel,
+                  boolean ownsHttpClient) {
+        this.url = url;
+        this.token = token;
+        this.httpClient = httpClient;
+        this.gzipMinBytes = gzipMinBytes;
+        this.gzipLevel = gzipLevel;
+        this.ownsHttpClient = ownsHttpClient;
+    }
+
+    /**
+     * Creates an HTTP client backed by a connection pool.
+     *
+     * @param maxConnections maximum number of open connections
+     * @param keepAliveMillis maximum time to keep an idle connection
+     * @param connectTimeoutMillis timeout for establishing a connection
+     * @param socketTimeoutMillis timeout waiting for data on an open
+     *                            connection
+     * @param connectionRequestTimeoutMillis timeout waiting for a
+     *                                       connection from the pool
+     */
+    static CloseableHttpClient newHttpClient(
+        int maxConnections,
+        final long keepAliveMillis,
+        int connectTimeoutMillis,
+        int socketTimeoutMillis,
+        int connectionRequestTimeoutMillis)
+    {
+        PoolingHttpClientConnectionManager connectionManager =
+            new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+
+        ConnectionKeepAliveStrategy keepAliveStrategy = (response, context) -> {
+            long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE
+                .getKeepAliveDuration(response, context);
+            return serverKeepAlive > 0
+                ? Math.min(serverKeepAlive, keepAliveMillis)
+                : keepAliveMillis;
+        };
+
+        RequestConfig requestConfig = RequestConfig.custom()
+            .setConnectTimeout(connectTimeoutMillis)
+            .setSocketTimeout(socketTimeoutMillis)
+            .setConnectionRequestTimeout(connectionRequestTimeoutMillis)
+            .build();
+
+        return HttpClients.custom()
+            .setConnectionManager(connectionManager)
+            .setKeepAliveStrategy(keepAliveStrategy)
+            .setDefaultRequestConfig(requestConfig)
+            .evictExpiredConnections()
+            .evictIdleConnections(keepAliveMillis, TimeUnit.MILLISECONDS)
+            .build();
+    }
+
+    public StitchResponse send(byte[] body) throws IOException {
+        return send(new ByteArrayEntity(body, CONTENT_TYPE));
+    }
+
+    public StitchResponse send(BatchBody body) throws IOException {
+        return send(new BatchBodyEntity(body));
+    }
+
+    private StitchResponse send(HttpEntity body) throws IOException {
+        HttpPost request = new HttpPost(url);
+        request.addHeader("Authorization", "Bearer " + token);
+        if (gzipMinBytes >= 0 && body.getContentLength() >= gzipMinBytes) {
+            request.setEntity(new GzipEntity(body, gzipLevel));
+        }
+        else {
+            request.setEntity(body);
+        }
+
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            String reasonPhrase = response.getStatusLine().getReasonPhrase();
+            HttpEntity entity = response.getEntity();
+            ContentType contentType = ContentType.get(entity);
+            JsonObject content = null;
+
+            // Don't attempt to parse body for 5xx responses or if the
+            // Content-Type doesn't explicitly state application/json.
+            if (statusCode < 500 &&
+                contentType != null &&
+                ContentType.APPLICATION_JSON.getMimeType().equals(contentType.getMimeType())) {
+                JsonReader rdr = Json.createReader(entity.getContent());
+                content = rdr.readObject();
+            }
+
+            // Consume whatever is left of the body so the connection
+            // can go back to the pool.
+            EntityUtils.consume(entity);
+            return new StitchResponse(statusCode, reasonPhrase, content, getRetryAfterMillis(response));
+        }
+    }
+
+    /**
+     * Parses the Retry-After header, which is either a number of
+     * seconds or an HTTP date.
+     *
+     * @return the delay in milliseconds, or -1 if there is no valid
+     *         header
+     */
+    static long getRetryAfterMillis(HttpResponse response) {
+        Header header = response.getFirstHeader("Retry-After");
+        if (header == null) {
+            return -1;
+        }
+        String value = header.getValue().trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        }
+        catch (NumberFormatException e) {
+            Date date = DateUtils.parseDate(value);
+            return date == null ? -1 : Math.max(0, date.getTime() - System.currentTimeMillis());
+        }
+    }
+
+    public void close() throws IOException {
+        if (ownsHttpClient) {
+            httpClient.close();
+        }
+    }
+
+    /**
+     * Entity that writes a {@link BatchBody} straight to the
+     * connection, entry by entry, with an exact Content-Length.
+     */
+    private static class BatchBodyEntity extends AbstractHttpEntity {
+
+        private final BatchBody body;
+
+        BatchBodyEntity(BatchBody body) {
+            this.body = body;
+            setContentType(CONTENT_TYPE.toString());
+        }
+
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        public boolean isStreaming() {
+            return false;
+        }
+
+        public long getContentLength() {
+            return body.length();
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            body.writeTo(out);
+        }
+
+        /**
+         * Not used when sending the request, but required by
+         * HttpEntity. Copies the whole body into memory.
+         */
+        public InputStream getContent() {
+            return new ByteArrayInputStream(body.toByteArray());
+        }
+    }
+
+    /**
+     * Entity that gzips another entity while writing it. The
+     * compressed length isn't known up front, so the body is sent
+     * with chunked transfer encoding.
+     */
+    private static class GzipEntity extends AbstractHttpEntity {
+
+        private final HttpEntity body;
+        private final int level;
+
+        GzipEntity(HttpEntity body, int level) {
+            this.body = body;
+            this.level = level;
+            setContentType(CONTENT_TYPE.toString());
+            setContentEncoding("gzip");
+            setChunked(true);
+        }
+
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        public boolean isStreaming() {
+            return false;
+        }
+
+        public long getContentLength() {
+            return -1;
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            LeveledGzipOutputStream gzip = new LeveledGzipOutputStream(out, level);
+            try {
+                // A batch body is written in many small pieces, which
+                // the deflater handles poorly, so gather them first.
+                BufferedOutputStream buffered = new BufferedOutputStream(gzip, 8192);
+                body.writeTo(buffered);
+                buffered.flush();
+                gzip.finish();
+                gzip.flush();
+            }
+            finally {
+                gzip.end();
+            }
+        }
+
+        /**
+         * Not used when sending the request, but required by
+         * HttpEntity. Compresses the whole body into memory.
+         */
+        public InputStream getContent() throws IOException {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            writeTo(baos);
+            return new ByteArrayInputStream(baos.toByteArray());
+        }
+    }
+
+    /**
+     * GZIPOutputStream with a configurable compression level. Closing
+     * would close the connection's stream too, so callers should
+     * finish() and then end() it instead.
+     */
+    private static class LeveledGzipOutputStream extends GZIPOutputStream {
+
+        LeveledGzipOutputStream(OutputStream out, int level) throws IOException {
+            super(out, 8192);
+            def.setLevel(level);
+        }
+
+        void end() {
+            def.end();
+        }
+    }
+}
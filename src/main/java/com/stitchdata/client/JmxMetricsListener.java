@@ -0,0 +1,230 @@
+package com.stitchdata.client;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * {@link MetricsListener} that keeps counters and histograms of what
+ * a client is doing and publishes them, along with the client's
+ * gauges, as an MXBean on the platform MBean server. Any JMX console
+ * or exporter can read them without further dependencies.
+ *
+ * <p>The bean is registered as {@code
+ * com.stitchdata.client:type=StitchClient,name=<name>} when the
+ * listener is created, and unregistered when the client is closed.
+ * Each client needs its own listener with a distinct name. See
+ * {@link StitchClientMXBean} for the attributes.</p>
+ */
+public class JmxMetricsListener implements MetricsListener, StitchClientMXBean {
+
+    private static final long NANOS_PER_MICRO = 1000;
+
+    private final MBeanServer server;
+    private final ObjectName objectName;
+    private volatile StitchClient client;
+
+    private final LongAdder messagesEncoded = new LongAdder();
+    private final LongAdder bufferFullEvents = new LongAdder();
+    private final LongAdder recordsDropped = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder requestErrors = new LongAdder();
+    private final ConcurrentHashMap<Integer, LongAdder> responsesByStatus =
+        new ConcurrentHashMap<Integer, LongAdder>();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder batchesDelivered = new LongAdder();
+    private final LongAdder recordsDelivered = new LongAdder();
+    private final LongAdder bytesDelivered = new LongAdder();
+    private final LongAdder batchesFailed = new LongAdder();
+
+    private final Histogram encodeNanos = new Histogram();
+    private final Histogram serializeNanos = new Histogram();
+    private final Histogram requestNanos = new Histogram();
+    private final Histogram batchRecords = new Histogram();
+    private final Histogram batchBytes = new Histogram();
+
+    /**
+     * Creates the listener and registers its bean on the platform
+     * MBean server.
+     *
+     * @param name distinguishes this client's bean from others
+     * @throws IllegalArgumentException if a bean with this name is
+     *                                  already registered
+     */
+    public JmxMetricsListener(String name) {
+        this(ManagementFactory.getPlatformMBeanServer(), name);
+    }
+
+    JmxMetricsListener(MBeanServer server, String name) {
+        this.server = server;
+        try {
+            this.objectName = new ObjectName(
+                "com.stitchdata.client:type=StitchClient,name=" + ObjectName.quote(name));
+            server.registerMBean(this, objectName);
+        }
+        catch (JMException e) {
+            throw new IllegalArgumentException("Can't register MBean for " + name, e);
+        }
+    }
+
+    /**
+     * Returns the name the bean is registered under.
+     *
+     * @return the object name
+     */
+    public ObjectName getObjectName() {
+        return objectName;
+    }
+
+    public void onStart(StitchClient client) {
+        this.client = client;
+    }
+
+    public void onClose(StitchClient client) {
+        try {
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        }
+        catch (JMException e) {
+            // Already unregistered by someone else
+        }
+    }
+
+    public void onMessageEncoded(int bytes, long nanos) {
+        messagesEncoded.increment();
+        encodeNanos.record(nanos);
+    }
+
+    public void onBufferFull() {
+        bufferFullEvents.increment();
+    }
+
+    public void onRecordsDropped(int records) {
+        recordsDropped.add(records);
+    }
+
+    public void onBatchSerialized(int records, int bytes, long nanos) {
+        serializeNanos.record(nanos);
+        batchRecords.record(records);
+        batchBytes.record(bytes);
+    }
+
+    public void onRequest(int statusCode, int bytes, long nanos) {
+        requests.increment();
+        requestNanos.record(nanos);
+        LongAdder count = responsesByStatus.get(statusCode);
+        if (count == null) {
+            count = responsesByStatus.computeIfAbsent(statusCode, status -> new LongAdder());
+        }
+        count.increment();
+    }
+
+    public void onRequestFailed(IOException error, long nanos) {
+        requestErrors.increment();
+        requestNanos.record(nanos);
+    }
+
+    public void onRetry(int retry, long delayMillis) {
+        retries.increment();
+    }
+
+    public void onBatchDelivered(int records, int bytes) {
+        batchesDelivered.increment();
+        recordsDelivered.add(records);
+        bytesDelivered.add(bytes);
+    }
+
+    public void onBatchFailed(int records, IOException error) {
+        batchesFailed.increment();
+    }
+
+    public long getBufferedBytes() {
+        StitchClient c = client;
+        return c == null ? 0 : c.getBufferedBytes();
+    }
+
+    public int getBufferedRecords() {
+        StitchClient c = client;
+        return c == null ? 0 : c.getBufferedRecords();
+    }
+
+    public int getBatchSizeBytes() {
+        StitchClient c = client;
+        return c == null ? 0 : c.getEffectiveBatchSizeBytes();
+    }
+
+    public long getMessagesEncoded() {
+        return messagesEncoded.sum();
+    }
+
+    public long getBufferFullEvents() {
+        return bufferFullEvents.sum();
+    }
+
+    public long getRecordsDropped() {
+        return recordsDropped.sum();
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    public long getRequestErrors() {
+        return requestErrors.sum();
+    }
+
+    public Map<Integer, Long> getResponsesByStatus() {
+        Map<Integer, Long> result = new TreeMap<Integer, Long>();
+        for (Map.Entry<Integer, LongAdder> entry : responsesByStatus.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().sum());
+        }
+        return result;
+    }
+
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    public long getBatchesDelivered() {
+        return batchesDelivered.sum();
+    }
+
+    public long getRecordsDelivered() {
+        return recordsDelivered.sum();
+    }
+
+    public long getBytesDelivered() {
+        return bytesDelivered.sum();
+    }
+
+    public long getBatchesFailed() {
+        return batchesFailed.sum();
+    }
+
+    public HistogramSnapshot getEncodeMicros() {
+        return encodeNanos.snapshot(NANOS_PER_MICRO);
+    }
+
+    public HistogramSnapshot getSerializeMicros() {
+        return serializeNanos.snapshot(NANOS_PER_MICRO);
+    }
+
+    public HistogramSnapshot getRequestMicros() {
+        return requestNanos.snapshot(NANOS_PER_MICRO);
+    }
+
+    public HistogramSnapshot getBatchRecords() {
+        return batchRecords.snapshot(1);
+    }
+
+    public HistogramSnapshot getBatchBytes() {
+        return batchBytes.snapshot(1);
+    }
+}
@@ -0,0 +1,124 @@
+package com.stitchdata.client;
+
+import java.io.IOException;
+
+/**
+ * Receives measurements from a {@link StitchClient}. Register one
+ * with {@link StitchClientBuilder#withMetricsListener}. {@link
+ * JmxMetricsListener} is a ready-made implementation that publishes
+ * the measurements over JMX.
+ *
+ * <p>Every method has an empty default implementation, so you only
+ * need to override the ones you care about. Methods are called on
+ * the thread doing the work being measured, often on the hot path
+ * of {@link StitchClient#push(StitchMessage)}, and from many threads
+ * at once, so implementations must be thread-safe, fast, and must
+ * not throw. If no listener is registered, the client doesn't take
+ * any of these measurements.</p>
+ *
+ * <p>Gauges, such as the number of bytes buffered, are available
+ * from the client itself, which is passed to {@link
+ * #onStart(StitchClient)}.</p>
+ */
+public interface MetricsListener {
+
+    /**
+     * Called when the client has been built.
+     *
+     * @param client the client
+     */
+    default void onStart(StitchClient client) {
+    }
+
+    /**
+     * Called when the client has been closed.
+     *
+     * @param client the client
+     */
+    default void onClose(StitchClient client) {
+    }
+
+    /**
+     * Called after a message is encoded into a buffer entry.
+     *
+     * @param bytes size of the encoded message
+     * @param nanos time spent encoding
+     */
+    default void onMessageEncoded(int bytes, long nanos) {
+    }
+
+    /**
+     * Called when a push finds the buffer full (see {@link
+     * BufferFullPolicy}), before the policy is applied.
+     */
+    default void onBufferFull() {
+    }
+
+    /**
+     * Called when records are discarded because the buffer is full.
+     *
+     * @param records number of records discarded
+     */
+    default void onRecordsDropped(int records) {
+    }
+
+    /**
+     * Called after the entries of a batch are gathered into a
+     * request body, before it is sent.
+     *
+     * @param records number of records in the batch
+     * @param bytes size of the body
+     * @param nanos time spent preparing the body
+     */
+    default void onBatchSerialized(int records, int bytes, long nanos) {
+    }
+
+    /**
+     * Called after each request to Stitch that got a response,
+     * including retries.
+     *
+     * @param statusCode HTTP status of the response
+     * @param bytes size of the request body
+     * @param nanos time from sending the request to receiving the
+     *              response
+     */
+    default void onRequest(int statusCode, int bytes, long nanos) {
+    }
+
+    /**
+     * Called after each request to Stitch that failed without a
+     * response, including retries.
+     *
+     * @param error the error
+     * @param nanos time until the request failed
+     */
+    default void onRequestFailed(IOException error, long nanos) {
+    }
+
+    /**
+     * Called before a failed request is retried.
+     *
+     * @param retry the number of the retry, starting from 0
+     * @param delayMillis how long we'll wait before retrying
+     */
+    default void onRetry(int retry, long delayMillis) {
+    }
+
+    /**
+     * Called after Stitch accepts a batch.
+     *
+     * @param records number of records in the batch
+     * @param bytes size of the batch
+     */
+    default void onBatchDelivered(int records, int bytes) {
+    }
+
+    /**
+     * Called when a batch can't be delivered.
+     *
+     * @param records number of records in the batch
+     * @param error the error
+     */
+    default void onBatchFailed(int records, IOException error) {
+    }
+}
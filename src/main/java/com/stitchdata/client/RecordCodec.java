@@ -0,0 +1,231 @@
+package com.stitchdata.client;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reads the properties of objects of one class, for encoding objects
+ * passed to {@link StitchMessage#withRecord(Object)}.
+ *
+ * <p>The class is inspected once, and each property gets a {@link
+ * MethodHandle} for its getter, field, or record component accessor,
+ * adapted to take and return Object. The JIT can inline a handle
+ * held in a final field much like a direct call, so reading a
+ * property costs about the same as calling the getter, without the
+ * boxing and argument arrays of reflection.</p>
+ *
+ * <p>Records are recognized reflectively, so this class still
+ * compiles for Java 8.</p>
+ */
+class RecordCodec {
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+
+    // Getter for a key the class doesn't have, which reads as null
+    private static final MethodHandle MISSING = MethodHandles.dropArguments(
+        MethodHandles.constant(Object.class, null), 0, Object.class);
+
+    // A client usually has one set of key names, so there are only
+    // more than a few of these if tables name their keys per message.
+    private static final int MAX_CACHED_KEYS = 100;
+
+    private static final ClassValue<RecordCodec> CODECS = new ClassValue<RecordCodec>() {
+            protected RecordCodec computeValue(Class<?> type) {
+                return new RecordCodec(type);
+            }
+        };
+
+    final String[] names;
+    private final MethodHandle[] getters;
+    private final Map<String, MethodHandle> gettersByName;
+    // Getters for the key properties, by key names
+    private final ConcurrentHashMap<List<String>, MethodHandle[]> keyGetters =
+        new ConcurrentHashMap<List<String>, MethodHandle[]>();
+
+    /**
+     * Returns the codec for the given class, creating it the first
+     * time.
+     *
+     * @throws IllegalArgumentException if the class has no properties
+     */
+    static RecordCodec forClass(Class<?> type) {
+        return CODECS.get(type);
+    }
+
+    private RecordCodec(Class<?> type) {
+        Map<String, MethodHandle> properties;
+        try {
+            properties = isRecord(type) ? recordComponents(type) : beanProperties(type);
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            throw new IllegalArgumentException(
+                "Can't read the properties of " + type.getName() + ". The class and its getters must be "
+                + "public, or if it's in a named module, its package must be open to this library.", e);
+        }
+        if (properties.isEmpty()) {
+            throw new IllegalArgumentException(
+                type.getName() + " has no public fields, getters, or record components");
+        }
+        names = properties.keySet().toArray(new String[properties.size()]);
+        getters = properties.values().toArray(new MethodHandle[properties.size()]);
+        gettersByName = properties;
+    }
+
+    int size() {
+        return names.length;
+    }
+
+    /**
+     * Returns the value of the i-th property of the object.
+     */
+    Object get(Object record, int i) {
+        return get(record, getters[i]);
+    }
+
+    /**
+     * Returns getters for the named properties, for reading a
+     * message's key values without looking each one up by name. A
+     * name the class has no property for reads as null.
+     */
+    MethodHandle[] keyGetters(List<String> keyNames) {
+        MethodHandle[] keys = keyGetters.get(keyNames);
+        if (keys == null) {
+            keys = new MethodHandle[keyNames.size()];
+            for (int i = 0; i < keys.length; i++) {
+                MethodHandle getter = gettersByName.get(keyNames.get(i));
+                keys[i] = getter != null ? getter : MISSING;
+            }
+            if (keyGetters.size() < MAX_CACHED_KEYS) {
+                // Copy the key names, in case the caller changes them
+                keyGetters.putIfAbsent(new ArrayList<String>(keyNames), keys);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Returns the value of a property of the object, given a getter
+     * from this codec.
+     */
+    static Object get(Object record, MethodHandle getter) {
+        try {
+            return getter.invokeExact(record);
+        }
+        catch (RuntimeException | Error e) {
+            throw e;
+        }
+        catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    private static boolean isRecord(Class<?> type) {
+        try {
+            return (Boolean) Class.class.getMethod("isRecord").invoke(type);
+        }
+        catch (ReflectiveOperationException e) {
+            // Before Java 16
+            return false;
+        }
+    }
+
+    private static Map<String, MethodHandle> recordComponents(Class<?> type)
+        throws ReflectiveOperationException
+    {
+        Map<String, MethodHandle> properties = new LinkedHashMap<String, MethodHandle>();
+        Object[] components = (Object[]) Class.class.getMethod("getRecordComponents").invoke(type);
+        for (Object component : components) {
+            Class<?> componentClass = component.getClass();
+            String name = (String) componentClass.getMethod("getName").invoke(component);
+            Method accessor = (Method) componentClass.getMethod("getAccessor").invoke(component);
+            properties.put(name, handle(accessor));
+        }
+        return properties;
+    }
+
+    private static Map<String, MethodHandle> beanProperties(Class<?> type)
+        throws ReflectiveOperationException
+    {
+        Map<String, MethodHandle> properties = new TreeMap<String, MethodHandle>();
+        for (Field field : type.getFields()) {
+            if (!Modifier.isStatic(field.getModifiers())) {
+                trySetAccessible(field);
+                properties.put(field.getName(), MethodHandles.lookup().unreflectGetter(field).asType(GETTER_TYPE));
+            }
+        }
+        for (Method method : type.getMethods()) {
+            String name = propertyName(method);
+            if (name != null) {
+                properties.put(name, handle(method));
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * Returns the property name for a getter, or null if the method
+     * isn't one.
+     */
+    static String propertyName(Method method) {
+        if (Modifier.isStatic(method.getModifiers()) ||
+            method.getParameterTypes().length != 0 ||
+            method.getReturnType() == void.class ||
+            method.getDeclaringClass() == Object.class) {
+            return null;
+        }
+        String name = method.getName();
+        String property;
+        if (name.startsWith("get") && name.length() > 3) {
+            property = name.substring(3);
+        }
+        else if (name.startsWith("is") && name.length() > 2 &&
+                 (method.getReturnType() == boolean.class || method.getReturnType() == Boolean.class)) {
+            property = name.substring(2);
+        }
+        else {
+            return null;
+        }
+        // Same rule as java.beans.Introspector.decapitalize: "URL"
+        // stays "URL", but "Name" becomes "name".
+        if (property.length() > 1 &&
+            Character.isUpperCase(property.charAt(0)) &&
+            Character.isUpperCase(property.charAt(1))) {
+            return property;
+        }
+        return Character.toLowerCase(property.charAt(0)) + property.substring(1);
+    }
+
+    private static MethodHandle handle(Method method) throws IllegalAccessException {
+        // Public methods of non-public classes, such as a record
+        // nested in a test, are only accessible this way.
+        trySetAccessible(method);
+        return MethodHandles.lookup().unreflect(method).asType(GETTER_TYPE);
+    }
+
+    /**
+     * Makes the member accessible if we're allowed to. On Java 9 or
+     * later, a class in a named module that doesn't open its package
+     * to us refuses; if the member is public anyway, unreflecting it
+     * still works, and if not, that fails with an
+     * IllegalAccessException.
+     */
+    private static void trySetAccessible(AccessibleObject member) {
+        try {
+            member.setAccessible(true);
+        }
+        catch (RuntimeException e) {
+            // InaccessibleObjectException, which Java 8 doesn't have
+        }
+    }
+}
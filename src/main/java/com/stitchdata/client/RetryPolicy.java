@@ -0,0 +1,104 @@
+package com.stitchdata.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides whether and when a failed batch is sent again.
+ *
+ * <p>Responses with status 408, 429, or 5xx are retried, as are I/O
+ * errors such as timeouts and refused or reset connections, unless
+ * the sending thread was interrupted. Delays grow exponentially
+ * from initialBackoffMillis up to maxBackoffMillis, and each delay is
+ * chosen uniformly at random between zero and that bound ("full
+ * jitter"), so that many clients failing at the same moment don't
+ * all retry at the same moment. If Stitch sends a Retry-After
+ * header, we wait at least that long.</p>
+ *
+ * <p>Retries are also limited by a budget shared by every batch the
+ * client sends. Each first attempt earns retryRatio of a retry, and
+ * each retry spends one, with up to reserveRetries saved up. So
+ * when Stitch is failing everything, retries add at most retryRatio
+ * to the load we put on it, but an isolated failure can always be
+ * retried.</p>
+ */
+class RetryPolicy {
+
+    private final int maxRetries;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final double retryRatio;
+    private final int reserveRetries;
+
+    private double tokens;
+
+    RetryPolicy(int maxRetries, long initialBackoffMillis, long maxBackoffMillis,
+                double retryRatio, int reserveRetries) {
+        this.maxRetries = maxRetries;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.retryRatio = retryRatio;
+        this.reserveRetries = reserveRetries;
+        this.tokens = reserveRetries;
+    }
+
+    static boolean isRetryable(StitchResponse response) {
+        int status = response.getHttpStatusCode();
+        return status == 408 || status == 429 || status >= 500;
+    }
+
+    static boolean isRetryable(IOException e) {
+        if (e instanceof StitchException) {
+            return isRetryable(((StitchException) e).getResponse());
+        }
+        // Timeouts are InterruptedIOExceptions too, so check whether
+        // we were actually interrupted.
+        return !Thread.currentThread().isInterrupted() && e.getClass() != InterruptedIOException.class;
+    }
+
+    /**
+     * Called before the first attempt to send a batch.
+     */
+    synchronized void onFirstAttempt() {
+        tokens = Math.min(reserveRetries, tokens + retryRatio);
+    }
+
+    /**
+     * Returns how long to wait before the given retry, or -1 if we
+     * should give up.
+     *
+     * @param retry the number of the retry, starting from 0
+     * @param retryAfterMillis delay requested by Stitch, or -1
+     */
+    long nextDelayMillis(int retry, long retryAfterMillis) {
+        if (retry >= maxRetries || retryAfterMillis > maxBackoffMillis || !spendToken()) {
+            return -1;
+        }
+        return Math.max(retryAfterMillis, jitter(retry));
+    }
+
+    /**
+     * Returns how long a batch that ran out of retries should wait
+     * before it is tried again.
+     */
+    long holdMillis(long retryAfterMillis) {
+        return Math.max(retryAfterMillis, jitter(maxRetries));
+    }
+
+    private synchronized boolean spendToken() {
+        if (tokens < 1) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+
+    private long jitter(int retry) {
+        long bound = initialBackoffMillis << Math.min(retry, 30);
+        if (bound <= 0 || bound > maxBackoffMillis) {
+            bound = maxBackoffMillis;
+        }
+        return ThreadLocalRandom.current().nextLong(bound + 1);
+    }
+}
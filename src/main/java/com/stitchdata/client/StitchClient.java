@@ -4,28 +4,40 @@ import java.io.Closeable;
 import java.io.EOFException;
 import java.io.Flushable;
 import java.io.IOException;
-import java.io.ByteArrayOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.UnsupportedEncodingException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.HashMap;
-import org.apache.http.client.fluent.Request;
-import org.apache.http.client.fluent.Response;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.entity.ContentType;
-import org.apache.http.StatusLine;
-import org.apache.http.HttpResponse;
-import org.apache.http.HttpEntity;
-import javax.json.Json;
-import javax.json.JsonObject;
-import javax.json.JsonReader;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
 import com.cognitect.transit.Writer;
 import com.cognitect.transit.WriteHandler;
 import com.cognitect.transit.TransitFactory;
-import com.cognitect.transit.Reader;
+import com.cognitect.transit.impl.JsonEmitter;
+import com.cognitect.transit.impl.WriteCache;
+import com.cognitect.transit.impl.WriteHandlerMap;
+import com.fasterxml.jackson.core.JsonFactory;
 
 /**
  * Client for Stitch.
@@ -49,7 +61,10 @@ import com.cognitect.transit.Reader;
  *
  * You should open the client in a try-with-resources statement to
  * ensure that it is closed, otherwise you will lose any messages that
- * have been added to the buffer but not yet delivered.
+ * have been added to the buffer but not yet delivered. If you can't
+ * be sure the client will be closed, for example because the process
+ * may be killed, you can keep buffered messages on disk with {@link
+ * StitchClientBuilder#withWriteAheadLog}.
  *
  * <pre>
  * {@code
@@ -86,20 +101,18 @@ import com.cognitect.transit.Reader;
  */
 public class StitchClient implements Flushable, Closeable {
 
-    // HTTP constants
     public static final String PUSH_URL
         = "https://api.stitchdata.com/v2/import/push";
-    private static final int HTTP_CONNECT_TIMEOUT = 1000 * 60 * 2;
-    private static final ContentType CONTENT_TYPE =
-        ContentType.create("application/transit+json");
 
-    // HTTP properties
-    private final int connectTimeout = HTTP_CONNECT_TIMEOUT;
-    private final String stitchUrl;
+    // pushAll reads this many messages at a time, and splits each
+    // chunk into tasks of this many messages to encode in parallel.
+    static final int PUSH_ALL_CHUNK_SIZE = 8192;
+    static final int PUSH_ALL_TASK_SIZE = 256;
+
+    private final Transport transport;
 
     // Client-specific message values
     private final int clientId;
-    private final String token;
     private final String namespace;
     private final String tableName;
     private final List<String> keyNames;
@@ -109,72 +122,453 @@ public class StitchClient implements Flushable, Closeable {
     private final int batchDelayMillis;
     private long lastFlushTime = System.currentTimeMillis();
 
-    private final Buffer buffer;
+    private final Buffer[] buffers;
+    private volatile ExecutorService senders;
+    private final boolean virtualThreads;
+    // Null unless the client shares threads with other clients
+    private final StitchRuntime runtime;
+    private final FairExecutor.Lane sharedSenders;
+    private volatile FlushScheduler flushScheduler;
+    // Runs flushInBackground, created on first use. Both fields are
+    // guarded by this client's lock.
+    private ExecutorService backgroundFlusher;
+    private boolean closing;
+    // Null unless messages are encoded on encoder threads
+    private final EncoderStage encoderStage;
     private final FlushHandler flushHandler;
+    // Null unless the flush handler is called on its own executor
+    private final FlushHandlerDispatcher flushHandlerDispatcher;
     private final Map<Class,WriteHandler<?,?>> writeHandlers;
 
-    private static void putWithDefault(Map map, String key, Object value, Object defaultValue) {
-        map.put(key, value != null ? value : defaultValue);
-    }
+    // Encoders not in use by any thread. A thread takes one to encode
+    // a message and puts it back afterwards, so there are only ever as
+    // many as threads encoding at once, and they go away with the
+    // client rather than staying attached to every thread that ever
+    // pushed to it.
+    private static final int MAX_POOLED_ENCODERS = 2 * Runtime.getRuntime().availableProcessors();
+    private final ArrayBlockingQueue<EntryEncoder> encoders =
+        new ArrayBlockingQueue<EntryEncoder>(MAX_POOLED_ENCODERS);
+
+    // Limits on how much the client holds in memory
+    private final BufferBudget budget;
+    private final BufferFullPolicy bufferFullPolicy;
+    private final long blockTimeoutMillis;
+    private final DropHandler dropHandler;
+
+    private final WriteAheadLog writeAheadLog;
+    private final RetryPolicy retryPolicy;
+    private final AdaptiveBatchSize adaptiveBatchSize;
+
+    // Null unless the caller registered a listener, in which case we
+    // time each stage and report it.
+    private final MetricsListener metrics;
+
+    private final boolean coalesceUpserts;
+
+    // Most messages use the client's table name and key names, so the
+    // fields for those are encoded up front. Fields for other tables
+    // are encoded the first time we see them, and cached.
+    private static final int MAX_CACHED_FIELDS = 1000;
+    private final String upsertFields;
+    private final String switchViewFields;
+    private final ConcurrentHashMap<List<Object>, String> fieldsByTable =
+        new ConcurrentHashMap<List<Object>, String>();
 
-    private static void putIfNotNull(Map map, String key, Object value) {
-        if (value != null) {
-            map.put(key, value);
+    /**
+     * Encodes the fields that are the same for every message of the
+     * given kind to the given table: client_id, namespace,
+     * table_name, and for upserts, key_names.
+     */
+    private String encodeFields(boolean upsert, String messageTableName, List<String> messageKeyNames) {
+        LinkedHashMap fields = new LinkedHashMap();
+        fields.put("client_id", clientId);
+        fields.put("namespace", namespace);
+        fields.put("table_name", messageTableName);
+        if (upsert) {
+            fields.put("key_names", messageKeyNames);
         }
+        return EntryEncoder.encodeFields(fields, writeHandlers);
     }
 
+    private String fieldsFor(StitchMessage message, boolean upsert) {
+        String messageTableName = message.getTableName();
+        List<String> messageKeyNames = upsert ? message.getKeyNames() : null;
+        if (messageTableName == null && messageKeyNames == null) {
+            return upsert ? upsertFields : switchViewFields;
+        }
+        if (messageTableName == null) {
+            messageTableName = tableName;
+        }
+        if (upsert && messageKeyNames == null) {
+            messageKeyNames = keyNames;
+        }
+        List<Object> key = Arrays.asList(upsert, messageTableName, messageKeyNames);
+        String fields = fieldsByTable.get(key);
+        if (fields == null) {
+            fields = encodeFields(upsert, messageTableName, messageKeyNames);
+            if (fieldsByTable.size() < MAX_CACHED_FIELDS) {
+                // Copy the key names, in case the caller changes them
+                fieldsByTable.putIfAbsent(
+                    Arrays.asList(upsert, messageTableName,
+                                  messageKeyNames == null ? null : new ArrayList<Object>(messageKeyNames)),
+                    fields);
+            }
+        }
+        return fields;
+    }
 
-    private byte[] messageToBytes(StitchMessage message) {
-        HashMap map = new HashMap();
-
+    byte[] messageToBytes(StitchMessage message) {
+        boolean upsert;
         switch (message.getAction()) {
         case UPSERT:
-            map.put("action", "upsert");
-            putWithDefault(map, "key_names", message.getKeyNames(), keyNames);
-            putIfNotNull(map, "data", message.getData());
+            upsert = true;
             break;
         case SWITCH_VIEW:
-            map.put("action", "switch_view");
+            upsert = false;
             break;
         default: throw new IllegalArgumentException("Action must not be null");
         }
 
-        map.put("client_id", clientId);
-        map.put("namespace", namespace);
+        EntryEncoder encoder = encoders.poll();
+        if (encoder == null) {
+            encoder = new EntryEncoder(writeHandlerMap(writeHandlers));
+        }
+        // An encoder that failed part way through is dropped, since
+        // it may be left in the middle of a value.
+        byte[] bytes = encoder.encodeMessage(
+            upsert ? "upsert" : "switch_view",
+            fieldsFor(message, upsert),
+            message.getTableVersion(),
+            message.getSequence(),
+            upsert ? message.getData() : null,
+            upsert ? message.getRecord() : null);
+        encoders.offer(encoder);
+        return bytes;
+    }
 
-        putWithDefault(map, "table_name", message.getTableName(), tableName);
-        putIfNotNull(map, "table_version", message.getTableVersion());
-        putIfNotNull(map, "sequence", message.getSequence());
+    static final JsonFactory JSON_FACTORY = new JsonFactory();
 
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        Writer writer = TransitFactory.writer(TransitFactory.Format.JSON, baos, writeHandlers);
-        writer.write(map);
-        return baos.toByteArray();
+    /**
+     * Returns a transit JSON writer with the write cache disabled.
+     *
+     * <p>The standard transit writer replaces repeated map keys with
+     * cache codes like "^0", which are only meaningful relative to
+     * the write that produced them. Entries are spliced into a batch
+     * verbatim by {@link #serializeEntries(List)}, so they must be
+     * encoded without cache codes.</p>
+     */
+    static Writer newEntryWriter(OutputStream out, Map<Class,WriteHandler<?,?>> writeHandlers) {
+        final JsonEmitter emitter;
+        try {
+            emitter = new JsonEmitter(JSON_FACTORY.createGenerator(out), writeHandlerMap(writeHandlers));
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        final WriteCache writeCache = new WriteCache(false);
+        return new Writer() {
+            public void write(Object o) {
+                try {
+                    emitter.emit(o, false, writeCache);
+                    emitter.flushWriter();
+                }
+                catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
     }
 
-    StitchClient(
-        String stitchUrl,
-        int clientId,
-        String token,
-        String namespace,
-        String tableName,
-        List<String> keyNames,
-        int batchSizeBytes,
-        int batchDelayMillis,
-        FlushHandler flushHandler,
-        Map<Class,WriteHandler<?,?>> writeHandlers)
-    {
-        this.stitchUrl = stitchUrl;
-        this.clientId = clientId;
-        this.token = token;
-        this.namespace = namespace;
-        this.tableName = tableName;
-        this.keyNames = keyNames;
-        this.batchSizeBytes = batchSizeBytes;
-        this.batchDelayMillis = batchDelayMillis;
-        this.buffer = new Buffer();
-        this.flushHandler = flushHandler;
-        this.writeHandlers = TransitFactory.writeHandlerMap(writeHandlers);
+    private static WriteHandlerMap writeHandlerMap(Map<Class,WriteHandler<?,?>> writeHandlers) {
+        return writeHandlers instanceof WriteHandlerMap
+            ? (WriteHandlerMap) writeHandlers
+            : new WriteHandlerMap(writeHandlers);
+    }
+
+    /**
+     * Creates a client with the builder's settings. The builder has
+     * already validated them and opened the transport and write-ahead
+     * log, which the client takes over.
+     */
+    StitchClient(StitchClientBuilder config, Transport transport, WriteAheadLog writeAheadLog) {
+        this.transport = transport;
+        this.clientId = config.clientId;
+        this.namespace = config.namespace;
+        this.tableName = config.tableName;
+        this.keyNames = config.keyNames;
+        this.batchSizeBytes = config.batchSizeBytes;
+        this.batchDelayMillis = config.batchDelayMillis;
+        this.buffers = new Buffer[config.maxInFlightBatches];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = new Buffer();
+        }
+        this.flushHandler = config.flushHandler;
+        this.flushHandlerDispatcher = flushHandler != null && config.flushHandlerExecutor != null
+            ? new FlushHandlerDispatcher(flushHandler, config.flushHandlerExecutor)
+            : null;
+        this.writeHandlers = TransitFactory.writeHandlerMap(config.writeHandlers);
+        this.upsertFields = encodeFields(true, tableName, keyNames);
+        this.switchViewFields = encodeFields(false, tableName, null);
+        this.budget = new BufferBudget(config.maxBufferedBytes, config.maxBufferedRecords);
+        this.bufferFullPolicy = config.bufferFullPolicy;
+        this.blockTimeoutMillis = config.blockTimeoutMillis;
+        this.dropHandler = config.dropHandler;
+        this.writeAheadLog = writeAheadLog;
+        this.retryPolicy = config.maxRetries > 0
+            ? new RetryPolicy(config.maxRetries, config.initialBackoffMillis, config.maxBackoffMillis,
+                              config.retryRatio, config.reserveRetries)
+            : null;
+        this.adaptiveBatchSize = config.adaptiveBatchSize
+            ? new AdaptiveBatchSize(config.minBatchSizeBytes, config.maxBatchSizeBytes,
+                                    config.targetLatencyMillis, config.batchSizeBytes)
+            : null;
+        this.metrics = config.metricsListener;
+        this.runtime = config.runtime;
+        this.coalesceUpserts = config.coalesceUpserts;
+        this.virtualThreads = config.virtualThreads;
+        this.sharedSenders = runtime == null ? null : runtime.newSenderLane();
+        if (writeAheadLog != null) {
+            for (WriteAheadLog.Recovered recovered : writeAheadLog.recover()) {
+                budget.forceReserve(recovered.entry.bytes.length);
+                bufferFor(recovered.partitionHash).put(recovered.entry);
+            }
+        }
+        if (config.backgroundFlush || virtualThreads || config.encoderThreads > 0) {
+            getFlushScheduler();
+        }
+        this.encoderStage = config.encoderThreads > 0
+            ? new EncoderStage(this, config.encoderThreads, config.encoderQueueSize)
+            : null;
+        if (metrics != null) {
+            metrics.onStart(this);
+        }
+    }
+
+    /**
+     * Encodes the message, timing it if there is a metrics listener.
+     */
+    private byte[] encode(StitchMessage message) {
+        MetricsListener listener = metrics;
+        if (listener == null) {
+            return messageToBytes(message);
+        }
+        long start = System.nanoTime();
+        byte[] bytes = messageToBytes(message);
+        listener.onMessageEncoded(bytes.length, System.nanoTime() - start);
+        return bytes;
+    }
+
+    /**
+     * Returns the pool of threads used to send batches in the
+     * background and to drain buffers in parallel, creating it if
+     * necessary. There is one thread per buffer, and threads are only
+     * kept alive while there is work to do. A client with a {@link
+     * StitchRuntime} uses its lane on the runtime's sender threads
+     * instead, and a client with virtual threads starts one for each
+     * task. Either way, no more than one task per buffer runs at
+     * once, since each holds its buffer's send permit.
+     */
+    private Executor getSenders() {
+        if (sharedSenders != null) {
+            return sharedSenders;
+        }
+        ExecutorService pool = senders;
+        if (pool == null) {
+            synchronized (this) {
+                pool = senders;
+                if (pool == null && virtualThreads) {
+                    pool = new VirtualThreadExecutor();
+                    senders = pool;
+                }
+                else if (pool == null) {
+                    final AtomicInteger count = new AtomicInteger();
+                    ThreadPoolExecutor threadPool = new ThreadPoolExecutor(
+                        buffers.length, buffers.length,
+                        60, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(),
+                        r -> {
+                            Thread thread = new Thread(r, "stitch-sender-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+                    threadPool.allowCoreThreadTimeOut(true);
+                    pool = threadPool;
+                    senders = pool;
+                }
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Returns the buffer for the given message. Messages for the same
+     * table with the same key values always go to the same buffer,
+     * so they are delivered in the order they were pushed even when
+     * several batches are in flight.
+     */
+    private Buffer bufferFor(StitchMessage message) {
+        if (buffers.length == 1) {
+            return buffers[0];
+        }
+        return bufferFor(partitionHash(message));
+    }
+
+    private Buffer bufferFor(int partitionHash) {
+        return buffers[(partitionHash & Integer.MAX_VALUE) % buffers.length];
+    }
+
+    /**
+     * Hash of the message's table name and key values, which decides
+     * the buffer it goes to. Kept in the write-ahead log so recovered
+     * entries can be routed the same way, even if the number of
+     * buffers has changed.
+     */
+    static int partitionHash(StitchMessage message, String tableName, List<String> keyNames) {
+        String messageTableName = message.getTableName() != null
+            ? message.getTableName() : tableName;
+        List<String> messageKeyNames = message.getKeyNames() != null
+            ? message.getKeyNames() : keyNames;
+        Map data = message.getData();
+        Object record = message.getRecord();
+
+        int hash = Objects.hashCode(messageTableName);
+        if (messageKeyNames != null && data != null) {
+            for (String keyName : messageKeyNames) {
+                hash = 31 * hash + Objects.hashCode(data.get(keyName));
+            }
+        }
+        else if (messageKeyNames != null && record != null) {
+            for (MethodHandle key : RecordCodec.forClass(record.getClass()).keyGetters(messageKeyNames)) {
+                hash = 31 * hash + Objects.hashCode(RecordCodec.get(record, key));
+            }
+        }
+        return hash;
+    }
+
+    private int partitionHash(StitchMessage message) {
+        return partitionHash(message, tableName, keyNames);
+    }
+
+    /**
+     * Identifies the row an upsert writes: its table name, table
+     * version, key names, and key values. Returns null if the message
+     * isn't an upsert or any key value is missing, in which case the
+     * message is never coalesced.
+     */
+    static Object coalesceKey(StitchMessage message, String tableName, List<String> keyNames) {
+        if (message.getAction() != StitchMessage.Action.UPSERT) {
+            return null;
+        }
+        List<String> messageKeyNames = message.getKeyNames() != null
+            ? message.getKeyNames() : keyNames;
+        Map data = message.getData();
+        Object record = message.getRecord();
+        if (messageKeyNames == null || messageKeyNames.isEmpty() || (data == null && record == null)) {
+            return null;
+        }
+        MethodHandle[] keys = data == null
+            ? RecordCodec.forClass(record.getClass()).keyGetters(messageKeyNames)
+            : null;
+
+        List<Object> key = new ArrayList<Object>(messageKeyNames.size() + 3);
+        key.add(message.getTableName() != null ? message.getTableName() : tableName);
+        key.add(message.getTableVersion());
+        key.add(new ArrayList<String>(messageKeyNames));
+        for (int i = 0; i < messageKeyNames.size(); i++) {
+            Object value = data != null
+                ? data.get(messageKeyNames.get(i))
+                : RecordCodec.get(record, keys[i]);
+            if (value == null) {
+                return null;
+            }
+            key.add(value);
+        }
+        return key;
+    }
+
+    /**
+     * Adds the entry to the buffer. If the client coalesces upserts
+     * and the buffer already holds an upsert for the same row, the
+     * two are merged, and the space held by the version that won't
+     * be sent is given back. Nothing is merged across a switch_view.
+     */
+    private void put(Buffer buffer, Buffer.Entry entry, StitchMessage message) {
+        if (coalesceUpserts && message.getAction() == StitchMessage.Action.SWITCH_VIEW) {
+            for (Buffer other : buffers) {
+                other.putBarrier(other == buffer ? entry : null);
+            }
+            return;
+        }
+        Object key = coalesceUpserts ? coalesceKey(message, tableName, keyNames) : null;
+        if (key == null) {
+            buffer.put(entry);
+            return;
+        }
+        entry.coalesceKey = key;
+        entry.sequence = message.getSequence();
+        Buffer.Entry discarded = buffer.putCoalescing(entry);
+        if (discarded != null) {
+            budget.release(discarded.bytes.length, 1);
+            if (writeAheadLog != null) {
+                writeAheadLog.acknowledge(Collections.singletonList(discarded));
+            }
+        }
+    }
+
+    /**
+     * Returns the entries, each preceded by any entries it
+     * superseded, for reporting callbackArgs and completing futures.
+     */
+    static List<Buffer.Entry> withSuperseded(List<Buffer.Entry> entries) {
+        boolean any = false;
+        for (Buffer.Entry entry : entries) {
+            if (entry.superseded != null) {
+                any = true;
+                break;
+            }
+        }
+        if (!any) {
+            return entries;
+        }
+        List<Buffer.Entry> all = new ArrayList<Buffer.Entry>();
+        for (Buffer.Entry entry : entries) {
+            if (entry.superseded != null) {
+                all.addAll(entry.superseded);
+            }
+            all.add(entry);
+        }
+        return all;
+    }
+
+    /**
+     * With more than one buffer, a switch_view message must not be
+     * delivered until every message pushed before it has been, so we
+     * flush everything before accepting it.
+     */
+    private void awaitBarrier(StitchMessage message) throws IOException {
+        if (buffers.length > 1 && message.getAction() == StitchMessage.Action.SWITCH_VIEW) {
+            flush();
+        }
+    }
+    /**
+     * Returns the scheduler that delivers batches in the background,
+     * creating it if necessary. Once the scheduler exists, all
+     * batches are delivered through it.
+     */
+    private FlushScheduler getFlushScheduler() {
+        FlushScheduler scheduler = flushScheduler;
+        if (scheduler == null) {
+            synchronized (this) {
+                scheduler = flushScheduler;
+                if (scheduler == null) {
+                    scheduler = new FlushScheduler(
+                        this, buffers, batchDelayMillis, getSenders(),
+                        runtime == null ? null : runtime.getTimer());
+                    flushScheduler = scheduler;
+                }
+            }
+        }
+        return scheduler;
     }
 
     /**
@@ -217,103 +611,1140 @@ public class StitchClient implements Flushable, Closeable {
      * sent immediately and this function will block until it is
      * delivered.</p>
      *
+     * <p>If you built the StitchClient with background flushing
+     * enabled (with {@link StitchClientBuilder#withBackgroundFlush}),
+     * this function never sends a batch itself. An error that
+     * occurred while sending a batch in the background is thrown
+     * from the next call to push, flush, or close.</p>
+     *
+     * <p>If the client is already holding as many bytes or records
+     * as it is allowed to, this function waits, fails, or discards
+     * older records according to its {@link BufferFullPolicy}.</p>
+     *
+     * <p>If you built the StitchClient with encoder threads (with
+     * {@link StitchClientBuilder#withEncoderThreads}), this function
+     * only queues the message, and you must not change the message
+     * or its data afterwards. Errors encoding or buffering it are
+     * thrown from the next call to push, flush, or close.</p>
+     *
      * @param message the message
      * @param callbackArg flush handler will be invoked with this as 
      *                    one of the callbackArgs.
      * @throws StitchException if Stitch rejected or was unable to
      *                         process the message
+     * @throws BufferFullException if there was no room for the
+     *                             message in the buffer
      * @throws IOException if there was an error communicating with
      *                     Stitch
      */
     public void push(StitchMessage message, Object callbackArg) throws StitchException, IOException {
-        buffer.put(new Buffer.Entry(messageToBytes(message), callbackArg));
-        List<Buffer.Entry> batch = buffer.take(this.batchSizeBytes, this.batchDelayMillis);
-        if (batch != null) {
-            sendBatch(batch);
+        if (encoderStage != null) {
+            encoderStage.checkFailure();
+            flushScheduler.checkFailure();
+            if (submit(message, callbackArg, null)) {
+                return;
+            }
+        }
+        awaitBarrier(message);
+        Buffer buffer = bufferFor(message);
+        FlushScheduler scheduler = flushScheduler;
+        if (scheduler != null) {
+            scheduler.checkFailure();
+        }
+        Buffer.Entry entry = new Buffer.Entry(encode(message), callbackArg);
+        reserve(entry);
+        log(entry, message);
+        put(buffer, entry, message);
+        if (scheduler != null) {
+            scheduler.onPut(buffer);
+            return;
+        }
+        int sizeBytes = getEffectiveBatchSizeBytes();
+        if (!buffer.isReady(sizeBytes, this.batchDelayMillis) ||
+            buffer.holdUntil > System.currentTimeMillis()) {
+            return;
+        }
+        // If another thread is already sending a batch from this
+        // buffer, leave the entry for the next one rather than wait.
+        // With batching disabled, we promise to deliver it before
+        // returning, so wait our turn.
+        if (!buffer.sendPermit.tryAcquire()) {
+            if (sizeBytes > 0) {
+                return;
+            }
+            acquire(buffer);
+        }
+        try {
+            List<Buffer.Entry> batch = buffer.take(sizeBytes, this.batchDelayMillis);
+            if (batch != null) {
+                sendBatch(buffer, batch);
+            }
+        }
+        finally {
+            buffer.sendPermit.release();
+        }
+    }
+
+    private static void acquire(Buffer buffer) throws InterruptedIOException {
+        try {
+            buffer.sendPermit.acquire();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Reserves room in the client's budget for the entry, applying
+     * the {@link BufferFullPolicy} if there isn't enough.
+     */
+    private void reserve(Buffer.Entry entry) throws IOException {
+        int size = entry.bytes.length;
+        if (budget.tryReserve(size)) {
+            return;
+        }
+        if (metrics != null) {
+            metrics.onBufferFull();
+        }
+        if (!budget.canFit(size)) {
+            throw new BufferFullException(
+                "Can't buffer a record of " + size + " bytes; the buffer limit is smaller");
+        }
+        if (bufferFullPolicy == BufferFullPolicy.FAIL) {
+            throw new BufferFullException(
+                "Buffer is full, holding " + budget.getRecords() + " records and "
+                + budget.getBytes() + " bytes");
+        }
+        if (bufferFullPolicy == BufferFullPolicy.DROP_OLDEST && dropOldest(size)) {
+            return;
+        }
+
+        long deadline = System.currentTimeMillis() + blockTimeoutMillis;
+        if (deadline < 0) {
+            deadline = Long.MAX_VALUE;
+        }
+        while (true) {
+            long token = budget.getReleases();
+            if (budget.tryReserve(size)) {
+                return;
+            }
+            makeRoom();
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new BufferFullException(
+                    "Timed out after " + blockTimeoutMillis + " ms waiting for room in the buffer");
+            }
+            try {
+                budget.awaitRelease(token, remaining);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /**
+     * Appends the entry to the write-ahead log, if there is one,
+     * giving back its space in the budget if that fails.
+     */
+    private void log(Buffer.Entry entry, StitchMessage message) throws IOException {
+        if (writeAheadLog == null) {
+            return;
+        }
+        try {
+            writeAheadLog.append(entry, partitionHash(message));
+        }
+        catch (IOException | RuntimeException e) {
+            budget.release(entry.bytes.length, 1);
+            throw e;
+        }
+    }
+
+    /**
+     * Gets batches moving so that space in the budget is released.
+     * The budget may be smaller than a batch, so we can't wait for
+     * the buffers to become ready on their own. Without a scheduler,
+     * nobody else is going to send anything, so the calling thread
+     * sends a batch itself.
+     */
+    void makeRoom() throws IOException {
+        FlushScheduler scheduler = flushScheduler;
+        if (scheduler != null) {
+            scheduler.drainNow();
+            return;
+        }
+        for (Buffer buffer : buffers) {
+            if (buffer.holdUntil > System.currentTimeMillis() ||
+                !buffer.sendPermit.tryAcquire()) {
+                continue;
+            }
+            try {
+                List<Buffer.Entry> batch = buffer.take(0, 0);
+                if (batch != null) {
+                    sendBatch(buffer, batch);
+                    return;
+                }
+            }
+            finally {
+                buffer.sendPermit.release();
+            }
+        }
+    }
+
+    /**
+     * Discards the oldest entries that haven't been taken for a batch
+     * until there is room for an entry of the given size.
+     *
+     * @return true if room was reserved, or false if there was
+     *         nothing left to discard
+     */
+    private boolean dropOldest(int size) {
+        List<Buffer.Entry> dropped = new ArrayList<Buffer.Entry>();
+        try {
+            while (!budget.tryReserve(size)) {
+                Buffer oldest = null;
+                long oldestTime = -1;
+                for (Buffer buffer : buffers) {
+                    long entryTime = buffer.getOldestEntryTime();
+                    if (entryTime >= 0 && (oldestTime < 0 || entryTime < oldestTime)) {
+                        oldest = buffer;
+                        oldestTime = entryTime;
+                    }
+                }
+                Buffer.Entry entry = oldest == null ? null : oldest.removeOldest();
+                if (entry == null) {
+                    return false;
+                }
+                dropped.add(entry);
+                budget.release(entry.bytes.length, 1);
+            }
+            return true;
+        }
+        finally {
+            if (!dropped.isEmpty()) {
+                onDrop(dropped);
+            }
+        }
+    }
+
+    private void onDrop(List<Buffer.Entry> dropped) {
+        BufferFullException e = new BufferFullException(
+            "Record was discarded because the buffer was full");
+        ArrayList callbackArgs = new ArrayList();
+        List<Buffer.Entry> all = withSuperseded(dropped);
+        for (Buffer.Entry entry : all) {
+            callbackArgs.add(entry.callbackArg);
+            if (entry.future != null) {
+                entry.future.completeExceptionally(e);
+            }
+        }
+        if (writeAheadLog != null) {
+            writeAheadLog.acknowledge(dropped);
+        }
+        if (metrics != null) {
+            metrics.onRecordsDropped(all.size());
+        }
+        if (dropHandler != null) {
+            dropHandler.onDrop(callbackArgs);
+        }
+    }
+
+    /**
+     * Returns the number of bytes at which a buffer is sent. This is
+     * the batch size the client was built with, unless adaptive batch
+     * sizing is enabled (see {@link
+     * StitchClientBuilder#withAdaptiveBatchSize}), in which case it
+     * changes as the client observes how requests are going.
+     *
+     * @return the current batch size threshold in bytes
+     */
+    public int getEffectiveBatchSizeBytes() {
+        AdaptiveBatchSize adaptive = adaptiveBatchSize;
+        return adaptive != null ? adaptive.get() : batchSizeBytes;
+    }
+
+    /**
+     * Returns the number of bytes of encoded records the client is
+     * holding, including records in batches that are being sent.
+     *
+     * @return the number of bytes buffered
+     */
+    public long getBufferedBytes() {
+        return budget.getBytes();
+    }
+
+    /**
+     * Returns the number of records the client is holding, including
+     * records in batches that are being sent.
+     *
+     * @return the number of records buffered
+     */
+    public int getBufferedRecords() {
+        return budget.getRecords();
+    }
+
+    long getMaxBufferedBytes() {
+        return budget.getMaxBytes();
+    }
+
+    int getMaxBufferedRecords() {
+        return budget.getMaxRecords();
+    }
+
+    int getMaxInFlightBatches() {
+        return buffers.length;
+    }
+
+    /**
+     * Send a message to Stitch without waiting for it to be
+     * delivered.
+     *
+     * @param message the message
+     * @return a future that completes once the message is delivered
+     * @see #pushAsync(StitchMessage, Object)
+     */
+    public CompletableFuture<Void> pushAsync(StitchMessage message) {
+        return pushAsync(message, message);
+    }
+
+    /**
+     * Send a message to Stitch without waiting for it to be
+     * delivered.
+     *
+     * <p>Adds the message to the current batch and returns
+     * immediately. Batches are delivered on background sender
+     * threads, with at most maxInFlightBatches batches in flight at
+     * once (see {@link StitchClientBuilder#withMaxInFlightBatches}).
+     * The exception is a {@link StitchMessage.Action#SWITCH_VIEW}
+     * message on a client with more than one batch in flight, which
+     * waits for all earlier messages to be delivered.
+     * The returned future completes after the batch containing the
+     * message has been accepted by Stitch and the FlushHandler, if
+     * any, has been called (unless it is called on its own executor;
+     * see {@link StitchClientBuilder#withFlushHandler(FlushHandler,
+     * java.util.concurrent.Executor)}). If the batch can't be delivered the
+     * future completes exceptionally with the {@link StitchException}
+     * or {@link IOException} that caused the failure.</p>
+     *
+     * <p>If the client is already holding as many bytes or records
+     * as it is allowed to, the {@link BufferFullPolicy} applies as for
+     * {@link #push(StitchMessage, Object)}. With {@link
+     * BufferFullPolicy#BLOCK} this function may wait for room, and if
+     * the message can't be accepted the future completes
+     * exceptionally with a {@link BufferFullException}. A message
+     * that is discarded to make room for a newer one also completes
+     * exceptionally with a {@link BufferFullException}.</p>
+     *
+     * <p>Calling this function turns on background flushing for the
+     * client (see {@link StitchClientBuilder#withBackgroundFlush}),
+     * so from then on batches are never sent by the threads that
+     * push messages.</p>
+     *
+     * @param message the message
+     * @param callbackArg flush handler will be invoked with this as
+     *                    one of the callbackArgs.
+     * @return a future that completes once the message is delivered
+     */
+    public CompletableFuture<Void> pushAsync(StitchMessage message, Object callbackArg) {
+        FlushScheduler scheduler = getFlushScheduler();
+        CompletableFuture<Void> future = new CompletableFuture<Void>();
+        if (encoderStage != null) {
+            try {
+                if (submit(message, callbackArg, future)) {
+                    return future;
+                }
+            }
+            catch (IOException e) {
+                future.completeExceptionally(e);
+                return future;
+            }
+        }
+        enqueue(scheduler, message, new Buffer.Entry(encode(message), callbackArg, future));
+        return future;
+    }
+
+    /**
+     * Hands the message to the encoder threads, unless it's a
+     * switch_view, which has to wait for the messages before it to
+     * be encoded and is then pushed by the calling thread.
+     *
+     * @return true if the message was handed off
+     */
+    private boolean submit(StitchMessage message, Object callbackArg, CompletableFuture<Void> future)
+        throws IOException
+    {
+        if (message.getAction() == null) {
+            throw new IllegalArgumentException("Action must not be null");
+        }
+        if (message.getAction() == StitchMessage.Action.SWITCH_VIEW) {
+            encoderStage.awaitIdle();
+            return false;
         }
+        encoderStage.submit(message, partitionHash(message), callbackArg, future);
+        return true;
     }
 
-    StitchResponse sendToStitch(String body) throws IOException {
-        Request request = Request.Post(stitchUrl)
-            .connectTimeout(connectTimeout)
-            .addHeader("Authorization", "Bearer " + token)
-            .bodyString(body, CONTENT_TYPE);
+    /**
+     * Encodes a message on an encoder thread and adds it to its
+     * buffer. Errors are thrown, unless the message has a future, in
+     * which case they fail the future.
+     */
+    void enqueueEncoded(StitchMessage message, Object callbackArg, CompletableFuture<Void> future)
+        throws IOException
+    {
+        Buffer.Entry entry = new Buffer.Entry(encode(message), callbackArg, future);
+        if (future != null) {
+            enqueue(flushScheduler, message, entry);
+            return;
+        }
+        Buffer buffer = bufferFor(message);
+        reserve(entry);
+        log(entry, message);
+        put(buffer, entry, message);
+        flushScheduler.onPut(buffer);
+    }
 
-        HttpResponse response = request.execute().returnResponse();
-        int statusCode = response.getStatusLine().getStatusCode();
-        String reasonPhrase = response.getStatusLine().getReasonPhrase();
-        ContentType contentType = ContentType.get(response.getEntity());
-        JsonObject content = null;
+    /**
+     * Adds an encoded entry with a future to its buffer, completing
+     * the future exceptionally if there's no room for it.
+     */
+    private void enqueue(FlushScheduler scheduler, StitchMessage message, Buffer.Entry entry) {
+        Buffer buffer = bufferFor(message);
+        try {
+            awaitBarrier(message);
+            reserve(entry);
+            log(entry, message);
+        }
+        catch (IOException e) {
+            entry.future.completeExceptionally(e);
+            return;
+        }
+        put(buffer, entry, message);
+        scheduler.onPut(buffer);
+    }
+
+    /**
+     * Send many messages to Stitch, and wait for them to be
+     * delivered.
+     *
+     * @param messages the messages
+     * @throws StitchException if Stitch rejected or was unable to
+     *                         process a message
+     * @throws IOException if there was an error communicating with
+     *                     Stitch
+     * @see #pushAll(Iterable)
+     */
+    public void pushAll(Stream<StitchMessage> messages) throws StitchException, IOException {
+        pushAll(messages::iterator);
+    }
+
+    /**
+     * Send many messages to Stitch, and wait for them to be
+     * delivered.
+     *
+     * <p>Encoding a message usually costs more than anything else a
+     * push does, and a caller pushing messages in a loop encodes them
+     * all on one thread. This function reads the messages in chunks
+     * and encodes each chunk in parallel on the common {@link
+     * ForkJoinPool}, while the calling thread adds the previous chunk
+     * to the buffers. Messages are added in the order they are read,
+     * so messages with the same key are delivered in order, as if
+     * each had been pushed with {@link #pushAsync(StitchMessage)}.
+     * Each message is its own callbackArg.</p>
+     *
+     * <p>This function returns once every message has been delivered,
+     * without waiting for messages pushed by other threads. If one
+     * can't be, it stops reading messages and throws the
+     * error; messages that were already added to the buffers are
+     * still sent. As with pushAsync, batches are sent on background
+     * sender threads, and the {@link BufferFullPolicy} applies when
+     * the buffers are full, so with {@link BufferFullPolicy#BLOCK}
+     * messages are read no faster than they can be delivered.</p>
+     *
+     * @param messages the messages
+     * @throws StitchException if Stitch rejected or was unable to
+     *                         process a message
+     * @throws BufferFullException if there was no room for a message
+     *                             in the buffer
+     * @throws IOException if there was an error communicating with
+     *                     Stitch
+     */
+    public void pushAll(Iterable<StitchMessage> messages) throws StitchException, IOException {
+        FlushScheduler scheduler = getFlushScheduler();
+        if (encoderStage != null) {
+            // Keep the messages behind anything this thread pushed
+            encoderStage.awaitIdle();
+        }
+        PushAll pushAll = new PushAll();
+        Iterator<StitchMessage> iterator = messages.iterator();
+        CompletableFuture<Buffer.Entry[]> next = encodeChunk(iterator, pushAll);
+        while (next != null && !pushAll.done.isDone()) {
+            Buffer.Entry[] entries = join(next);
+            next = encodeChunk(iterator, pushAll);
+            for (Buffer.Entry entry : entries) {
+                enqueue(scheduler, (StitchMessage) entry.callbackArg, entry);
+            }
+        }
+        if (next != null) {
+            next.cancel(false);
+        }
+        pushAll.release();
 
-        // Don't attempt to parse body for 5xx responses or if the
-        // Content-Type doesn't explicitly state application/json.
-        if (statusCode < 500 &&
-            contentType != null &&
-            ContentType.APPLICATION_JSON.getMimeType().equals(contentType.getMimeType())) {
-            JsonReader rdr = Json.createReader(response.getEntity().getContent());
-            content = rdr.readObject();
+        // Don't wait for the last batches to fill up, but don't wait
+        // for anything other threads pushed either, as a flush would.
+        scheduler.startDraining();
+        try {
+            pushAll.done.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+        finally {
+            scheduler.stopDraining();
         }
-        return new StitchResponse(statusCode, reasonPhrase, content);
     }
 
-    void sendBatch(List<Buffer.Entry> batch) throws IOException {
+    /**
+     * Tracks the messages added by a call to {@link
+     * #pushAll(Iterable)}. Holds a reference for each message not yet
+     * delivered, plus one until all of them have been added, and
+     * completes once there are none left, or as soon as a message
+     * fails.
+     */
+    private static class PushAll {
+        final CompletableFuture<Void> done = new CompletableFuture<Void>();
+        private final AtomicLong remaining = new AtomicLong(1);
+
+        CompletableFuture<Void> newFuture() {
+            remaining.incrementAndGet();
+            CompletableFuture<Void> future = new CompletableFuture<Void>();
+            future.whenComplete((result, error) -> {
+                    if (error != null) {
+                        done.completeExceptionally(error);
+                    }
+                    release();
+                });
+            return future;
+        }
 
-        String body = serializeEntries(batch);
+        void release() {
+            if (remaining.decrementAndGet() == 0) {
+                done.complete(null);
+            }
+        }
+    }
+
+    /**
+     * Reads up to {@link #PUSH_ALL_CHUNK_SIZE} messages and starts
+     * encoding them in parallel, or returns null if there are no
+     * more.
+     */
+    private CompletableFuture<Buffer.Entry[]> encodeChunk(Iterator<StitchMessage> iterator, final PushAll pushAll) {
+        final List<StitchMessage> chunk = new ArrayList<StitchMessage>();
+        while (chunk.size() < PUSH_ALL_CHUNK_SIZE && iterator.hasNext()) {
+            chunk.add(Objects.requireNonNull(iterator.next(), "message"));
+        }
+        if (chunk.isEmpty()) {
+            return null;
+        }
+        final Buffer.Entry[] entries = new Buffer.Entry[chunk.size()];
+        return CompletableFuture.supplyAsync(() -> {
+                ForkJoinTask.invokeAll(encodeTasks(chunk, entries));
+                for (int i = 0; i < entries.length; i++) {
+                    entries[i].future = pushAll.newFuture();
+                }
+                return entries;
+            }, ForkJoinPool.commonPool());
+    }
 
-        StitchResponse stitchResponse = sendToStitch(body);
+    /**
+     * Returns tasks that encode the chunk's messages into entries, a
+     * few hundred messages each, so every thread in the pool gets a
+     * share of the chunk.
+     */
+    private List<ForkJoinTask<?>> encodeTasks(final List<StitchMessage> chunk, final Buffer.Entry[] entries) {
+        List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+        for (int start = 0; start < chunk.size(); start += PUSH_ALL_TASK_SIZE) {
+            final int taskStart = start;
+            final int taskEnd = Math.min(chunk.size(), start + PUSH_ALL_TASK_SIZE);
+            tasks.add(ForkJoinTask.adapt(() -> {
+                        for (int i = taskStart; i < taskEnd; i++) {
+                            StitchMessage message = chunk.get(i);
+                            entries[i] = new Buffer.Entry(encode(message), message);
+                        }
+                    }));
+        }
+        return tasks;
+    }
 
-        if (!stitchResponse.isOk()) {
-            throw new StitchException(stitchResponse);
+    /**
+     * Waits for a chunk to be encoded, throwing whatever encoding
+     * threw.
+     */
+    private static Buffer.Entry[] join(CompletableFuture<Buffer.Entry[]> chunk) {
+        try {
+            return chunk.join();
         }
+        catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Sends a batch taken from the given buffer, retrying according
+     * to the client's {@link RetryPolicy}, if it has one. Must be
+     * called while holding the buffer's send permit.
+     *
+     * <p>If the batch still can't be delivered and the failure isn't
+     * one that sending again can't fix, entries that weren't pushed
+     * with pushAsync are put back at the front of the buffer, so
+     * they aren't lost and are sent again in order. Entries pushed
+     * with pushAsync fail their futures instead, and it's up to the
+     * caller to push them again. Either way, entries that aren't put
+     * back are removed from the write-ahead log.</p>
+     *
+     * <p>The flush handler is told about a delivered batch only once
+     * the batch is settled: its space in the budget released and its
+     * entries removed from the write-ahead log. If the handler throws,
+     * the batch still counts as delivered, its futures still
+     * complete, and the exception is thrown from here.</p>
+     */
+    void sendBatch(Buffer buffer, List<Buffer.Entry> batch) throws IOException {
+        sendBatch(buffer, batch, false);
+    }
+
+    /**
+     * Sends a batch on a sender thread for the {@link FlushScheduler}.
+     * On a shared runtime, a retry doesn't wait on the sender thread,
+     * which other clients need: the batch is put back and the buffer
+     * held until the retry is due, when the scheduler takes it again
+     * from the runtime's timer.
+     */
+    void sendBatchInBackground(Buffer buffer, List<Buffer.Entry> batch) throws IOException {
+        sendBatch(buffer, batch, sharedSenders != null);
+    }
+
+    private void sendBatch(Buffer buffer, List<Buffer.Entry> batch, boolean deferRetries)
+        throws IOException
+    {
+        List<Buffer.Entry> requeued = Collections.emptyList();
+        int bodyBytes = 0;
+        try {
+            BatchBody body;
+            if (metrics == null) {
+                body = new BatchBody(batch);
+            }
+            else {
+                long start = System.nanoTime();
+                body = new BatchBody(batch);
+                metrics.onBatchSerialized(batch.size(), body.length(), System.nanoTime() - start);
+            }
+            bodyBytes = body.length();
+
+            StitchResponse stitchResponse = send(buffer, body, deferRetries);
+            if (stitchResponse == null) {
+                // Retried later, when the buffer's hold runs out
+                requeued = batch;
+                buffer.requeue(batch);
+                return;
+            }
+
+            // Once Stitch has accepted the batch we no longer need the
+            // copy in the write-ahead log.
+            if (writeAheadLog != null && stitchResponse.isOk()) {
+                writeAheadLog.acknowledge(batch);
+            }
 
-        if (flushHandler != null) {
-            ArrayList callbackArgs = new ArrayList();
+            if (!stitchResponse.isOk()) {
+                throw new StitchException(stitchResponse);
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            if (metrics != null && e instanceof IOException) {
+                metrics.onBatchFailed(batch.size(), (IOException) e);
+            }
+            List<Buffer.Entry> failed = batch;
+            if (e instanceof IOException && willRetry((IOException) e)) {
+                requeued = new ArrayList<Buffer.Entry>();
+                failed = new ArrayList<Buffer.Entry>();
+                for (Buffer.Entry entry : batch) {
+                    if (entry.future == null) {
+                        requeued.add(entry);
+                    }
+                    else {
+                        failed.add(entry);
+                    }
+                }
+                buffer.requeue(requeued);
+            }
+            // Entries we report as failed are the caller's to push
+            // again, so they mustn't also come back from the log.
+            if (writeAheadLog != null && !failed.isEmpty()) {
+                writeAheadLog.acknowledge(failed);
+            }
+            // A requeued entry may have replaced pushAsync entries;
+            // their futures settle when the entry is finally sent.
+            for (Buffer.Entry entry : withSuperseded(failed)) {
+                if (entry.future != null) {
+                    entry.future.completeExceptionally(e);
+                }
+            }
+            if (!failed.isEmpty()) {
+                onFailure(failed, e);
+            }
+            throw e;
+        }
+        finally {
+            int bytes = 0;
             for (Buffer.Entry entry : batch) {
-                callbackArgs.add(entry.callbackArg);
+                bytes += entry.bytes.length;
+            }
+            for (Buffer.Entry entry : requeued) {
+                bytes -= entry.bytes.length;
+            }
+            budget.release(bytes, batch.size() - requeued.size());
+        }
+
+        if (metrics != null) {
+            metrics.onBatchDelivered(batch.size(), bodyBytes);
+        }
+
+        // The handler is called before the futures complete, so that
+        // whoever waits on them sees the batch acknowledged. The
+        // batch has been delivered whatever the handler does, so the
+        // futures complete anyway, and an exception it throws is
+        // passed on to the caller as is.
+        try {
+            if (flushHandlerDispatcher != null) {
+                flushHandlerDispatcher.onFlush(callbackArgs(batch));
+            }
+            else if (flushHandler != null) {
+                flushHandler.onFlush(callbackArgs(batch));
+            }
+        }
+        finally {
+            for (Buffer.Entry entry : withSuperseded(batch)) {
+                if (entry.future != null) {
+                    entry.future.complete(null);
+                }
             }
-            flushHandler.onFlush(callbackArgs);
         }
     }
 
-    static String serializeEntries(List<Buffer.Entry> entries) throws UnsupportedEncodingException {
+    /**
+     * Returns the callbackArgs of the entries, and of any entries they
+     * replaced.
+     */
+    private static List callbackArgs(List<Buffer.Entry> entries) {
+        ArrayList callbackArgs = new ArrayList();
+        for (Buffer.Entry entry : withSuperseded(entries)) {
+            callbackArgs.add(entry.callbackArg);
+        }
+        return callbackArgs;
+    }
+
+    /**
+     * Tells the flush handler, if any, about entries that won't be
+     * delivered.
+     */
+    private void onFailure(List<Buffer.Entry> failed, Exception e) {
+        if (flushHandlerDispatcher != null) {
+            flushHandlerDispatcher.onFailure(callbackArgs(failed), e);
+        }
+        else if (flushHandler != null) {
+            try {
+                flushHandler.onFailure(callbackArgs(failed), e);
+            }
+            catch (RuntimeException handlerError) {
+                e.addSuppressed(handlerError);
+            }
+        }
+    }
+
+    /**
+     * Sends the body, retrying failures that the retry policy allows.
+     * If we give up on a failure that might succeed later, the buffer
+     * is held off for a while so it isn't retried right away.
+     *
+     * @param deferRetries if true, rather than wait for a retry, hold
+     *                     the buffer until it's due and return null
+     * @return the response, or null if the retry was deferred
+     */
+    private StitchResponse send(Buffer buffer, BatchBody body, boolean deferRetries) throws IOException {
+        if (retryPolicy == null) {
+            return sendOnce(buffer, body);
+        }
+        int retry = buffer.retries;
+        buffer.retries = 0;
+        if (retry == 0) {
+            retryPolicy.onFirstAttempt();
+        }
+        for (; ; retry++) {
+            IOException failure;
+            long retryAfterMillis = -1;
+            try {
+                StitchResponse response = sendOnce(buffer, body);
+                if (response.isOk() || !RetryPolicy.isRetryable(response)) {
+                    return response;
+                }
+                failure = new StitchException(response);
+                retryAfterMillis = response.getRetryAfterMillis();
+            }
+            catch (IOException e) {
+                if (!RetryPolicy.isRetryable(e)) {
+                    throw e;
+                }
+                failure = e;
+            }
+
+            long delayMillis = retryPolicy.nextDelayMillis(retry, retryAfterMillis);
+            if (delayMillis < 0) {
+                buffer.holdUntil = System.currentTimeMillis() + retryPolicy.holdMillis(retryAfterMillis);
+                throw failure;
+            }
+            if (metrics != null) {
+                metrics.onRetry(retry, delayMillis);
+            }
+            if (deferRetries) {
+                buffer.retries = retry + 1;
+                buffer.holdUntil = System.currentTimeMillis() + delayMillis;
+                return null;
+            }
+            try {
+                Thread.sleep(delayMillis);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /**
+     * Sends the body once, feeding the outcome to the adaptive batch
+     * size and the metrics listener, if any.
+     */
+    private StitchResponse sendOnce(Buffer buffer, BatchBody body) throws IOException {
+        AdaptiveBatchSize adaptive = adaptiveBatchSize;
+        if (adaptive == null && metrics == null) {
+            return transport.send(body);
+        }
+        long start = System.nanoTime();
+        boolean congested = true;
+        try {
+            StitchResponse response = transport.send(body);
+            congested = RetryPolicy.isRetryable(response);
+            if (metrics != null) {
+                metrics.onRequest(response.getHttpStatusCode(), body.length(), System.nanoTime() - start);
+            }
+            return response;
+        }
+        catch (IOException e) {
+            if (metrics != null) {
+                metrics.onRequestFailed(e, System.nanoTime() - start);
+            }
+            throw e;
+        }
+        finally {
+            if (adaptive != null) {
+                adaptive.onRequest(
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                    congested,
+                    buffer.getAvailableBytes());
+            }
+        }
+    }
+
+    /**
+     * Returns true if entries from a batch that failed with the given
+     * error are put back in the buffer to be sent again.
+     */
+    boolean willRetry(IOException e) {
+        return retryPolicy != null && !(
+            e instanceof StitchException &&
+            isPermanentFailure(((StitchException) e).getResponse()));
+    }
+
+    /**
+     * Returns true if Stitch rejected the batch because of something
+     * wrong with the request itself, rather than being unavailable
+     * or asking us to slow down.
+     */
+    static boolean isPermanentFailure(StitchResponse response) {
+        int status = response.getHttpStatusCode();
+        return status >= 400 && status < 500 && status != 408 && status != 429;
+    }
+
+    /**
+     * Assembles a batch body in one array by splicing the
+     * already-encoded entries into a transit JSON array. Batches
+     * are normally sent as a {@link BatchBody}, which writes the
+     * entries without this copy; this is for transports that need
+     * an array. Each entry is a complete transit
+     * value written without cache codes (see {@link
+     * #newEntryWriter}), so no decoding or re-encoding is necessary.
+     * The body is exactly the size that {@link Buffer#take} accounts
+     * for: the entries, one comma between each pair, and the
+     * enclosing brackets.
+     */
+    static byte[] serializeEntries(List<Buffer.Entry> entries) {
         if (entries == null) {
             return null;
         }
 
-        ArrayList<Map> messages = new ArrayList<Map>();
-
+        int size = 2;
         for (Buffer.Entry entry : entries) {
-            ByteArrayInputStream bais = new ByteArrayInputStream(entry.bytes);
-            Reader reader = TransitFactory.reader(TransitFactory.Format.JSON, bais);
-            messages.add((Map)reader.read());
+            size += entry.bytes.length;
+        }
+        if (entries.size() > 1) {
+            size += entries.size() - 1;
         }
 
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        Writer writer = TransitFactory.writer(TransitFactory.Format.JSON, baos);
-        writer.write(messages);
-        return baos.toString("UTF-8");
+        byte[] body = new byte[size];
+        int pos = 0;
+        body[pos++] = '[';
+        for (Buffer.Entry entry : entries) {
+            if (pos > 1) {
+                body[pos++] = ',';
+            }
+            System.arraycopy(entry.bytes, 0, body, pos, entry.bytes.length);
+            pos += entry.bytes.length;
+        }
+        body[pos] = ']';
+        return body;
     }
 
     /**
      * Send any outstanding messages to Stitch.
      *
+     * <p>If the client allows more than one batch in flight, the
+     * buffers are drained in parallel. This function returns once
+     * every message pushed before it was called has been
+     * delivered, and the flush handler, if any, has been called for
+     * it.</p>
+     *
      * @throws StitchException if Stitch rejected or was unable to
      *                         process the message
      * @throws IOException if there was an error communicating with
      *                     Stitch
      */
     public void flush() throws IOException {
-        while (true) {
-            List<Buffer.Entry> batch = buffer.take(0, 0);
-            if (batch == null) {
-                return;
+        EncoderStage stage = encoderStage;
+        if (stage != null) {
+            stage.awaitIdle();
+        }
+        try {
+            flushBuffers();
+        }
+        finally {
+            if (flushHandlerDispatcher != null) {
+                flushHandlerDispatcher.awaitIdle();
             }
-            sendBatch(batch);
+        }
+        if (stage != null) {
+            stage.checkFailure();
+        }
+        if (flushHandlerDispatcher != null) {
+            flushHandlerDispatcher.checkFailure();
         }
     }
 
     /**
-     * Close the client, flushing all outstanding messages to Stitch.
+     * Flushes on a thread of the client's own, for callers that
+     * mustn't block, such as a {@link StitchSubscriber} whose upstream
+     * has completed. Not on a sender thread: flush may hand work to
+     * those and wait for it. {@link #close()} waits for a flush
+     * started here before it closes anything.
+     *
+     * @return a future that completes when the flush does, or fails
+     *         with the flush's error, or if the client is closed
+     */
+    CompletableFuture<Void> flushInBackground() {
+        final CompletableFuture<Void> future = new CompletableFuture<Void>();
+        synchronized (this) {
+            if (closing) {
+                future.completeExceptionally(new IOException("Client is closed"));
+                return future;
+            }
+            if (backgroundFlusher == null) {
+                ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                    1, 1,
+                    60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    r -> {
+                        Thread thread = new Thread(r, "stitch-background-flush");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                pool.allowCoreThreadTimeOut(true);
+                backgroundFlusher = pool;
+            }
+            backgroundFlusher.execute(() -> {
+                    try {
+                        flush();
+                        future.complete(null);
+                    }
+                    catch (IOException | RuntimeException e) {
+                        future.completeExceptionally(e);
+                    }
+                });
+        }
+        return future;
+    }
+
+    /**
+     * Keeps new flushes from starting in the background, and waits
+     * for those already started to finish.
+     */
+    private void awaitBackgroundFlushes() throws InterruptedIOException {
+        ExecutorService pool;
+        synchronized (this) {
+            closing = true;
+            pool = backgroundFlusher;
+        }
+        if (pool == null) {
+            return;
+        }
+        pool.shutdown();
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private void flushBuffers() throws IOException {
+
+        // Wait for any batches in flight, and keep new ones from
+        // being sent until we're done.
+        int acquired = 0;
+        try {
+            for (; acquired < buffers.length; acquired++) {
+                acquire(buffers[acquired]);
+            }
+        }
+        finally {
+            if (acquired < buffers.length) {
+                for (int i = 0; i < acquired; i++) {
+                    buffers[i].sendPermit.release();
+                }
+            }
+        }
+
+        if (buffers.length == 1 || sharedSenders != null) {
+            // On a shared runtime, drain on this thread, so that
+            // waiting out retries doesn't hold the runtime's sender
+            // threads.
+            Exception failure = null;
+            for (Buffer buffer : buffers) {
+                try {
+                    drain(buffer);
+                }
+                catch (IOException | RuntimeException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+                finally {
+                    buffer.sendPermit.release();
+                }
+            }
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            }
+            if (failure != null) {
+                throw (RuntimeException) failure;
+            }
+        }
+        else {
+            List<CompletableFuture<Void>> drains = new ArrayList<CompletableFuture<Void>>();
+            for (final Buffer buffer : buffers) {
+                drains.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        drain(buffer);
+                    }
+                    catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                    finally {
+                        buffer.sendPermit.release();
+                    }
+                }, getSenders()));
+            }
+            CompletionException failure = null;
+            for (CompletableFuture<Void> drain : drains) {
+                try {
+                    drain.join();
+                }
+                catch (CompletionException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+            if (failure != null) {
+                if (failure.getCause() instanceof IOException) {
+                    throw (IOException) failure.getCause();
+                }
+                throw failure;
+            }
+        }
+
+        FlushScheduler scheduler = flushScheduler;
+        if (scheduler != null) {
+            scheduler.checkFailure();
+        }
+    }
+
+    private void drain(Buffer buffer) throws IOException {
+        List<Buffer.Entry> batch;
+        while ((batch = buffer.take(0, 0)) != null) {
+            try {
+                sendBatch(buffer, batch);
+            }
+            catch (IOException e) {
+                if (!isReportedByFutures(batch)) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true if every entry in the batch was pushed with
+     * pushAsync, meaning a delivery error is reported through the
+     * entries' futures rather than thrown.
+     */
+    static boolean isReportedByFutures(List<Buffer.Entry> batch) {
+        for (Buffer.Entry entry : batch) {
+            if (entry.future == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Close the client, flushing all outstanding messages to Stitch,
+     * and then close its transport.
      *
      * @throws StitchException if Stitch rejected or was unable to
      *                         process the message
@@ -321,6 +1752,38 @@ public class StitchClient implements Flushable, Closeable {
      *                     Stitch
      */
     public void close() throws IOException {
-        flush();
+        try {
+            awaitBackgroundFlushes();
+            flush();
+        }
+        finally {
+            if (encoderStage != null) {
+                encoderStage.close();
+            }
+            FlushScheduler scheduler = flushScheduler;
+            if (scheduler != null) {
+                scheduler.close();
+            }
+            ExecutorService pool = senders;
+            if (pool != null) {
+                pool.shutdown();
+            }
+            try {
+                transport.close();
+            }
+            finally {
+                try {
+                    if (writeAheadLog != null) {
+                        writeAheadLog.close();
+                    }
+                }
+                finally {
+                    encoders.clear();
+                    if (metrics != null) {
+                        metrics.onClose(this);
+                    }
+                }
+            }
+        }
     }
 }
@@ -5,8 +5,10 @@ import java.io.ByteArrayInputStream;
 import java.io.UnsupportedEncodingException;
 import java.io.BufferedReader;
 import java.io.Closeable;
+import java.io.File;
 import java.io.InputStreamReader;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.Collection;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -16,17 +18,12 @@ import java.util.HashMap;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.zip.Deflater;
 import com.cognitect.transit.Writer;
 import com.cognitect.transit.WriteHandler;
 import com.cognitect.transit.TransitFactory;
 import com.cognitect.transit.Reader;
-import org.apache.http.client.fluent.Request;
-import org.apache.http.client.fluent.Response;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.entity.ContentType;
-import org.apache.http.StatusLine;
-import org.apache.http.HttpResponse;
-import org.apache.http.HttpEntity;
 
 import javax.json.Json;
 import javax.json.JsonReader;
@@ -124,16 +121,153 @@ public class StitchClientBuilder {
      */
     public static final int DEFAULT_BATCH_SIZE_BYTES = 4194304;
 
-    private int clientId;
-    private String token;
-    private String namespace;
-    private String tableName;
-    private List<String> keyNames;
-    private int batchSizeBytes = DEFAULT_BATCH_SIZE_BYTES;
-    private int batchDelayMillis = DEFAULT_BATCH_DELAY_MILLIS;
-    private FlushHandler flushHandler = null;
-    private String pushUrl = StitchClient.PUSH_URL;
-    private Map<Class,WriteHandler<?,?>> writeHandlers = null;
+    /**
+     * By default, a client sends one batch at a time.
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT_BATCHES = 1;
+
+    /**
+     * By default, we'll wait two minutes to establish a connection
+     * to Stitch.
+     */
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 1000 * 60 * 2;
+
+    /**
+     * By default, we'll wait two minutes for Stitch to send data on
+     * an open connection.
+     */
+    public static final int DEFAULT_SOCKET_TIMEOUT_MILLIS = 1000 * 60 * 2;
+
+    /**
+     * By default, we'll wait two minutes for a connection to become
+     * available in the connection pool.
+     */
+    public static final int DEFAULT_CONNECTION_REQUEST_TIMEOUT_MILLIS = 1000 * 60 * 2;
+
+    /**
+     * By default, the connection pool holds up to 20 connections.
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS = 20;
+
+    /**
+     * By default, an idle connection is kept open for up to a minute.
+     */
+    public static final long DEFAULT_KEEP_ALIVE_MILLIS = 60000;
+
+    /**
+     * By default, there is no limit on the number of bytes a client
+     * holds in memory.
+     */
+    public static final long DEFAULT_MAX_BUFFERED_BYTES = Long.MAX_VALUE;
+
+    /**
+     * By default, there is no limit on the number of records a client
+     * holds in memory.
+     */
+    public static final int DEFAULT_MAX_BUFFERED_RECORDS = Integer.MAX_VALUE;
+
+    /**
+     * By default, a push waits for room in a full buffer.
+     */
+    public static final BufferFullPolicy DEFAULT_BUFFER_FULL_POLICY = BufferFullPolicy.BLOCK;
+
+    /**
+     * By default, a push waits up to a minute for room in a full
+     * buffer.
+     */
+    public static final long DEFAULT_BLOCK_TIMEOUT_MILLIS = 60000;
+
+    /**
+     * By default, write-ahead log segments are 64 Mb.
+     */
+    public static final int DEFAULT_WRITE_AHEAD_LOG_SEGMENT_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * By default, a failed batch is not retried.
+     */
+    public static final int DEFAULT_MAX_RETRIES = 0;
+
+    /**
+     * By default, the first retry waits up to a second.
+     */
+    public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 1000;
+
+    /**
+     * By default, a retry waits up to a minute.
+     */
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 60000;
+
+    /**
+     * By default, retries add at most 10% to the requests we send.
+     */
+    public static final double DEFAULT_RETRY_RATIO = 0.1;
+
+    /**
+     * By default, up to 10 retries can be made regardless of the
+     * retry ratio.
+     */
+    public static final int DEFAULT_RESERVE_RETRIES = 10;
+
+    /**
+     * By default, each encoder thread has up to 1024 messages waiting
+     * to be encoded.
+     */
+    public static final int DEFAULT_ENCODER_QUEUE_SIZE = 1024;
+
+    /**
+     * By default, adaptive batch sizing treats a request that takes
+     * longer than five seconds as a sign that Stitch is struggling.
+     */
+    public static final long DEFAULT_TARGET_LATENCY_MILLIS = 5000;
+
+    // Settings are read directly by the StitchClient constructor.
+    int clientId;
+    String token;
+    String namespace;
+    String tableName;
+    List<String> keyNames;
+    int batchSizeBytes = DEFAULT_BATCH_SIZE_BYTES;
+    int batchDelayMillis = DEFAULT_BATCH_DELAY_MILLIS;
+    FlushHandler flushHandler = null;
+    Executor flushHandlerExecutor = null;
+    String pushUrl = StitchClient.PUSH_URL;
+    Map<Class,WriteHandler<?,?>> writeHandlers = null;
+    boolean backgroundFlush = false;
+    int maxInFlightBatches = DEFAULT_MAX_IN_FLIGHT_BATCHES;
+    Transport transport = null;
+    int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    int socketTimeoutMillis = DEFAULT_SOCKET_TIMEOUT_MILLIS;
+    int connectionRequestTimeoutMillis = DEFAULT_CONNECTION_REQUEST_TIMEOUT_MILLIS;
+    int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    long keepAliveMillis = DEFAULT_KEEP_ALIVE_MILLIS;
+    int gzipMinBytes = -1;
+    int gzipLevel = Deflater.DEFAULT_COMPRESSION;
+    long maxBufferedBytes = DEFAULT_MAX_BUFFERED_BYTES;
+    int maxBufferedRecords = DEFAULT_MAX_BUFFERED_RECORDS;
+    BufferFullPolicy bufferFullPolicy = DEFAULT_BUFFER_FULL_POLICY;
+    long blockTimeoutMillis = DEFAULT_BLOCK_TIMEOUT_MILLIS;
+    DropHandler dropHandler = null;
+    File writeAheadLogDirectory = null;
+    int writeAheadLogSegmentBytes = DEFAULT_WRITE_AHEAD_LOG_SEGMENT_BYTES;
+    int maxRetries = DEFAULT_MAX_RETRIES;
+    long initialBackoffMillis = DEFAULT_INITIAL_BACKOFF_MILLIS;
+    long maxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+    double retryRatio = DEFAULT_RETRY_RATIO;
+    int reserveRetries = DEFAULT_RESERVE_RETRIES;
+    boolean adaptiveBatchSize = false;
+    int minBatchSizeBytes;
+    int maxBatchSizeBytes;
+    long targetLatencyMillis = DEFAULT_TARGET_LATENCY_MILLIS;
+    MetricsListener metricsListener = null;
+    StitchRuntime runtime = null;
+    boolean coalesceUpserts = false;
+    boolean virtualThreads = false;
+    int encoderThreads = 0;
+    int encoderQueueSize = DEFAULT_ENCODER_QUEUE_SIZE;
+    // True if any connection setting was set, which a shared runtime
+    // would ignore.
+    boolean connectionSettingsSet = false;
+
     /**
      * Specify your Stitch client id. This is a required setting.
      *
@@ -253,8 +387,471 @@ public class StitchClientBuilder {
         return this;
     }
 
+    /**
+     * Let the client tune the batch size between minBytes and
+     * maxBytes as it runs. See {@link #withAdaptiveBatchSize(int, int,
+     * long)}.
+     *
+     * @param minBytes smallest batch size threshold
+     * @param maxBytes largest batch size threshold
+     * @return this object
+     */
+    public StitchClientBuilder withAdaptiveBatchSize(int minBytes, int maxBytes) {
+        return withAdaptiveBatchSize(minBytes, maxBytes, DEFAULT_TARGET_LATENCY_MILLIS);
+    }
+
+    /**
+     * Let the client tune the batch size between minBytes and
+     * maxBytes as it runs, instead of using a fixed batch size. The
+     * size set with {@link #withBatchSizeBytes(int)} is the starting
+     * point.
+     *
+     * <p>After each request, the client halves the batch size if
+     * Stitch failed, asked it to slow down, or took longer than
+     * targetLatencyMillis to respond. Otherwise it grows the batch
+     * size by a small step while more data is waiting than fits in a
+     * batch, which favors throughput during a backfill, and leaves it
+     * alone while it keeps up. Batches never exceed the 4 Mb or 10,000
+     * record limits. The current value is available from {@link
+     * StitchClient#getEffectiveBatchSizeBytes()}.</p>
+     *
+     * @param minBytes smallest batch size threshold
+     * @param maxBytes largest batch size threshold
+     * @param targetLatencyMillis slowest response we consider healthy
+     * @return this object
+     */
+    public StitchClientBuilder withAdaptiveBatchSize(int minBytes, int maxBytes, long targetLatencyMillis) {
+        if (minBytes < 0 || maxBytes < minBytes) {
+            throw new IllegalArgumentException("Batch size bounds must satisfy 0 <= minBytes <= maxBytes");
+        }
+        this.adaptiveBatchSize = true;
+        this.minBatchSizeBytes = minBytes;
+        this.maxBatchSizeBytes = maxBytes;
+        this.targetLatencyMillis = targetLatencyMillis;
+        return this;
+    }
+
+    /**
+     * Report what the client is doing to a {@link MetricsListener}:
+     * how long encoding, assembling, and sending each batch takes,
+     * batch sizes, responses by status, retries, and discarded
+     * records. To publish these over JMX, use a {@link
+     * JmxMetricsListener}:
+     *
+     * <pre>
+     * {@code
+     * builder.withMetricsListener(new JmxMetricsListener("events"))
+     * }
+     * </pre>
+     *
+     * <p>By default there is no listener, and the client doesn't
+     * measure anything.</p>
+     *
+     * @param metricsListener the listener
+     * @return this object
+     */
+    public StitchClientBuilder withMetricsListener(MetricsListener metricsListener) {
+        this.metricsListener = metricsListener;
+        return this;
+    }
+
+    /**
+     * Send only the latest version of a row that is upserted more
+     * than once before its batch is sent. Stitch keeps the version
+     * with the highest sequence, so when a push is for the same table
+     * and key values as an upsert that is still waiting in the
+     * buffer, the client keeps whichever of the two has the higher
+     * sequence (the newer one, if they are equal) in the older one's
+     * place, and gives back the memory the other was using. This can
+     * greatly reduce the data sent for rows that change often.
+     *
+     * <p>Every record is still accounted for: callbackArgs of
+     * records that were replaced are passed to the {@link
+     * FlushHandler}, and their futures complete, when the version
+     * that replaced them is delivered. Messages without key names,
+     * or with a null key value, are never coalesced.</p>
+     *
+     * <p>Coalescing takes a lock on the buffer for each upsert, so
+     * producers contend more than they would otherwise. It is off by
+     * default.</p>
+     *
+     * @param coalesceUpserts true to coalesce upserts to the same row
+     * @return this object
+     */
+    public StitchClientBuilder withUpsertCoalescing(boolean coalesceUpserts) {
+        this.coalesceUpserts = coalesceUpserts;
+        return this;
+    }
+
+    /**
+     * Deliver batches on a background thread. By default batches are
+     * only sent from within calls to {@link
+     * StitchClient#push(StitchMessage)}, so if no more messages
+     * arrive, records can stay in the buffer until the client is
+     * flushed or closed. With background flushing enabled, the
+     * client sends a batch as soon as it is full or the oldest
+     * record in it is older than the batch delay, and calls to push
+     * never send batches themselves.
+     *
+     * @param backgroundFlush true to deliver batches on a background thread
+     * @return this object
+     */
+    public StitchClientBuilder withBackgroundFlush(boolean backgroundFlush) {
+        this.backgroundFlush = backgroundFlush;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of batches that will be sent to Stitch
+     * at the same time. The client keeps this many buffers, and
+     * assigns each message to a buffer based on its table name and
+     * the values of its key fields. Each buffer has at most one batch
+     * in flight, so messages with the same key are never in
+     * concurrent requests and are delivered in the order they were
+     * pushed. While a buffer's batch is in flight, records
+     * accumulate in that buffer.
+     *
+     * <p>Note that the batch size and delay apply to each buffer
+     * separately, so more buffers means more memory held by the
+     * client.</p>
+     *
+     * @param maxInFlightBatches the maximum number of batches in flight
+     * @return this object
+     */
+    public StitchClientBuilder withMaxInFlightBatches(int maxInFlightBatches) {
+        this.maxInFlightBatches = maxInFlightBatches;
+        return this;
+    }
+
+    /**
+     * Send batches on virtual threads, one per batch, instead of on a
+     * pool of platform threads. Requires Java 21 or later.
+     *
+     * <p>Sending is blocking I/O, so with platform threads every batch
+     * in flight ties up a thread and its stack, which limits how high
+     * {@link #withMaxInFlightBatches(int)} can usefully go. A virtual
+     * thread gives up its carrier thread while it waits for Stitch or
+     * sleeps before a retry, so a client can have many more batches
+     * in flight. Virtual threads don't raise the number in flight by
+     * themselves: it is still bounded by maxInFlightBatches, and by
+     * the connection pool. They make it cheap to raise both, so set
+     * maxInFlightBatches to the concurrency you want, and {@link
+     * #withMaxConnections(int)} to match.</p>
+     *
+     * <p>This turns on background flushing (see {@link
+     * #withBackgroundFlush(boolean)}), so batches are never sent by
+     * the threads that push messages. It can't be combined with
+     * {@link #withRuntime(StitchRuntime)}, whose sender threads are
+     * shared.</p>
+     *
+     * @param virtualThreads true to send batches on virtual threads
+     * @return this object
+     */
+    public StitchClientBuilder withVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+        return this;
+    }
+
+    /**
+     * Encode messages on a pool of encoder threads, instead of on the
+     * threads that push them.
+     *
+     * <p>Encoding a message usually costs more than anything else
+     * {@link StitchClient#push(StitchMessage)} does, up to hundreds of
+     * microseconds for a wide record. With encoder threads, push just
+     * puts the message on a bounded queue and returns, and an encoder
+     * thread encodes it and adds it to the buffer. Messages with the
+     * same table name and key values are encoded by the same thread,
+     * so they are still delivered in the order they were pushed. If
+     * the queue is full, push waits for room.</p>
+     *
+     * <p>Since the message is encoded after push returns, <b>the
+     * caller must not change the message, or the data map or record
+     * object in it, once it has been pushed</b>. Errors that occur
+     * while encoding or buffering the message are thrown from the
+     * next call to push, flush, or close, or fail the future returned
+     * by pushAsync. With a write-ahead log, a message is logged once
+     * it has been encoded, not when push returns.</p>
+     *
+     * <p>This turns on background flushing (see {@link
+     * #withBackgroundFlush(boolean)}).</p>
+     *
+     * @param threads number of encoder threads, or 0 to encode on the
+     *                pushing thread
+     * @return this object
+     */
+    public StitchClientBuilder withEncoderThreads(int threads) {
+        return withEncoderThreads(threads, DEFAULT_ENCODER_QUEUE_SIZE);
+    }
+
+    /**
+     * Encode messages on a pool of encoder threads, each with a queue
+     * of up to queueSize messages waiting to be encoded. See {@link
+     * #withEncoderThreads(int)}.
+     *
+     * @param threads number of encoder threads, or 0 to encode on the
+     *                pushing thread
+     * @param queueSize messages each encoder thread can have waiting
+     * @return this object
+     */
+    public StitchClientBuilder withEncoderThreads(int threads, int queueSize) {
+        if (threads < 0) {
+            throw new IllegalArgumentException("encoderThreads must not be negative");
+        }
+        if (queueSize < 1) {
+            throw new IllegalArgumentException("encoderQueueSize must be at least 1");
+        }
+        this.encoderThreads = threads;
+        this.encoderQueueSize = queueSize;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of bytes of encoded records the client
+     * will hold in memory, across all of its buffers and including
+     * batches that are being sent. When a push would exceed the
+     * limit, the client applies its {@link BufferFullPolicy}.
+     *
+     * <p>This bounds memory use when Stitch is slow or unreachable.
+     * It may be smaller than the batch size, in which case batches
+     * are sent as soon as the limit is reached.</p>
+     *
+     * @param bytes maximum number of bytes to hold
+     * @return this object
+     */
+    public StitchClientBuilder withMaxBufferedBytes(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("maxBufferedBytes must not be negative");
+        }
+        this.maxBufferedBytes = bytes;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of records the client will hold in
+     * memory, across all of its buffers and including batches that
+     * are being sent. When a push would exceed the limit, the client
+     * applies its {@link BufferFullPolicy}.
+     *
+     * @param records maximum number of records to hold
+     * @return this object
+     */
+    public StitchClientBuilder withMaxBufferedRecords(int records) {
+        if (records < 0) {
+            throw new IllegalArgumentException("maxBufferedRecords must not be negative");
+        }
+        this.maxBufferedRecords = records;
+        return this;
+    }
+
+    /**
+     * Set what happens when a push would exceed the limits set with
+     * {@link #withMaxBufferedBytes(long)} or {@link
+     * #withMaxBufferedRecords(int)}. The default is {@link
+     * BufferFullPolicy#BLOCK}.
+     *
+     * @param policy the policy
+     * @return this object
+     */
+    public StitchClientBuilder withBufferFullPolicy(BufferFullPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("policy must not be null");
+        }
+        this.bufferFullPolicy = policy;
+        return this;
+    }
+
+    /**
+     * Set how long a push waits for room in a full buffer before
+     * throwing {@link BufferFullException}, when the policy is
+     * {@link BufferFullPolicy#BLOCK}.
+     *
+     * @param millis timeout in milliseconds
+     * @return this object
+     */
+    public StitchClientBuilder withBlockTimeoutMillis(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("blockTimeoutMillis must not be negative");
+        }
+        this.blockTimeoutMillis = millis;
+        return this;
+    }
+
+    /**
+     * Set a handler to be notified when records are discarded
+     * because the buffer is full and the policy is {@link
+     * BufferFullPolicy#DROP_OLDEST}. The handler is called on the
+     * thread that pushed the newer record.
+     *
+     * @param dropHandler the handler
+     * @return this object
+     */
+    public StitchClientBuilder withDropHandler(DropHandler dropHandler) {
+        this.dropHandler = dropHandler;
+        return this;
+    }
+
+    /**
+     * Keep a copy of every buffered record on disk until Stitch has
+     * accepted it, so records aren't lost if the JVM crashes or is
+     * killed before the client is closed. See {@link
+     * #withWriteAheadLog(File, int)}.
+     *
+     * @param directory directory to keep the log in
+     * @return this object
+     */
+    public StitchClientBuilder withWriteAheadLog(File directory) {
+        return withWriteAheadLog(directory, DEFAULT_WRITE_AHEAD_LOG_SEGMENT_BYTES);
+    }
+
+    /**
+     * Keep a copy of every buffered record on disk until Stitch has
+     * accepted it, so records aren't lost if the JVM crashes or is
+     * killed before the client is closed. That makes it safe to use
+     * a long batch delay and large batches.
+     *
+     * <p>Records are appended to memory-mapped segment files in the
+     * directory, and a segment is deleted once all of its records
+     * have been accepted, or reported as failed (see {@link
+     * FlushHandler#onFailure(List, Exception)}). Only records that
+     * the client is still trying to send are kept, so use {@link
+     * #withMaxRetries(int)} too if records should survive Stitch being
+     * unavailable when the client is closed. When a
+     * client is built with a directory that holds records left
+     * behind by an earlier client, those records are loaded into the
+     * buffer and sent like any other. Their callbackArgs are null.
+     * Only one client at a time may use a directory.</p>
+     *
+     * <p>Segments are replayed whole, so a record that was accepted
+     * shortly before a crash may be sent again. Upserts with a
+     * sequence are idempotent, so this is usually harmless.</p>
+     *
+     * <p>The log protects against the process dying, not against the
+     * operating system crashing or losing power, since segments are
+     * not forced to disk on every write.</p>
+     *
+     * @param directory directory to keep the log in
+     * @param segmentBytes size of each segment file, which must be
+     *                     larger than the largest record
+     * @return this object
+     */
+    public StitchClientBuilder withWriteAheadLog(File directory, int segmentBytes) {
+        if (segmentBytes < WriteAheadLog.HEADER_BYTES + Buffer.MAX_BATCH_SIZE_BYTES) {
+            throw new IllegalArgumentException(
+                "segmentBytes must be at least " + (WriteAheadLog.HEADER_BYTES + Buffer.MAX_BATCH_SIZE_BYTES));
+        }
+        this.writeAheadLogDirectory = directory;
+        this.writeAheadLogSegmentBytes = segmentBytes;
+        return this;
+    }
+
+    /**
+     * Retry batches that fail because Stitch is unavailable (a 5xx
+     * response), asks us to slow down (429), times out (408), or
+     * can't be reached. Other 4xx responses mean the request itself
+     * is bad, so they are never retried.
+     *
+     * <p>Retries wait an exponentially growing, randomized delay (see
+     * {@link #withRetryBackoffMillis(long, long)}), and at least as
+     * long as Stitch asks in a Retry-After header. The batch is held
+     * in the meantime, so batches behind it in the same buffer wait
+     * too and records are still delivered in order.</p>
+     *
+     * <p>If a batch still fails after maxRetries retries, or the
+     * retry budget (see {@link #withRetryBudget(double, int)}) is
+     * used up, the error is reported as usual, but records pushed
+     * with {@link StitchClient#push(StitchMessage)} are put back in
+     * the buffer rather than lost. They are sent again after a
+     * backoff, or by the next flush. Records pushed with {@link
+     * StitchClient#pushAsync(StitchMessage)} fail their futures
+     * instead. With background flushing, an error for records that
+     * were put back isn't thrown from push; if Stitch stays down, the
+     * buffer fills up and the {@link BufferFullPolicy} applies.</p>
+     *
+     * @param maxRetries maximum number of retries for each batch, or
+     *                   0 to disable retries
+     * @return this object
+     */
+    public StitchClientBuilder withMaxRetries(int maxRetries) {
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("maxRetries must not be negative");
+        }
+        this.maxRetries = maxRetries;
+        return this;
+    }
+
+    /**
+     * Set the delays between retries. The nth retry waits a random
+     * time between zero and initialMillis * 2^n, capped at maxMillis,
+     * so that clients that fail at the same time spread their
+     * retries out instead of retrying together. If Stitch asks for a
+     * longer delay than maxMillis, we give up on the batch for now,
+     * and the buffer it came from waits as long as Stitch asked.
+     *
+     * @param initialMillis bound on the first delay
+     * @param maxMillis bound on any delay
+     * @return this object
+     */
+    public StitchClientBuilder withRetryBackoffMillis(long initialMillis, long maxMillis) {
+        if (initialMillis < 0 || maxMillis < initialMillis) {
+            throw new IllegalArgumentException("Backoff must satisfy 0 <= initialMillis <= maxMillis");
+        }
+        this.initialBackoffMillis = initialMillis;
+        this.maxBackoffMillis = maxMillis;
+        return this;
+    }
+
+    /**
+     * Limit retries across all batches, so that when Stitch is
+     * struggling, retries don't multiply the load on it. Every batch
+     * sent earns retryRatio of a retry, and every retry spends one,
+     * with up to reserveRetries saved up for isolated failures.
+     *
+     * @param retryRatio retries allowed per batch sent, on average
+     * @param reserveRetries retries that can be saved up
+     * @return this object
+     */
+    public StitchClientBuilder withRetryBudget(double retryRatio, int reserveRetries) {
+        if (retryRatio < 0 || reserveRetries < 0) {
+            throw new IllegalArgumentException("Retry budget must not be negative");
+        }
+        this.retryRatio = retryRatio;
+        this.reserveRetries = reserveRetries;
+        return this;
+    }
+
     public StitchClientBuilder withFlushHandler(FlushHandler flushHandler) {
         this.flushHandler = flushHandler;
+        this.flushHandlerExecutor = null;
+        return this;
+    }
+
+    /**
+     * Call the flush handler on the given executor, instead of on the
+     * thread that sent the batch.
+     *
+     * <p>By default the handler is called by the thread that sent the
+     * batch, before it sends the next one from the same buffer, so a
+     * slow handler slows down delivery. With an executor, the sender
+     * queues the acknowledgement and moves on. The handler is still
+     * called by one thread at a time, in the order batches finished.
+     * If it falls behind, the callbackArgs of several delivered
+     * batches are passed to it in one call to {@link
+     * FlushHandler#onFlush(List)}.</p>
+     *
+     * <p>Futures returned by {@link StitchClient#pushAsync} complete
+     * once their batch is delivered, without waiting for the
+     * handler. {@link StitchClient#flush()} and {@link
+     * StitchClient#close()} wait for the handler to be called for
+     * everything delivered, and throw any exception it threw.</p>
+     *
+     * @param flushHandler the flush handler
+     * @param executor executor to call the handler on
+     * @return this object
+     */
+    public StitchClientBuilder withFlushHandler(FlushHandler flushHandler, Executor executor) {
+        this.flushHandler = flushHandler;
+        this.flushHandlerExecutor = executor;
         return this;
     }
 
@@ -271,6 +868,135 @@ public class StitchClientBuilder {
         return this;
     }
 
+    /**
+     * Set the timeout for establishing a connection to Stitch.
+     *
+     * @param millis timeout in milliseconds, or 0 for no timeout
+     * @return this object
+     */
+    public StitchClientBuilder withConnectTimeoutMillis(int millis) {
+        this.connectTimeoutMillis = millis;
+        this.connectionSettingsSet = true;
+        return this;
+    }
+
+    /**
+     * Set the timeout for waiting for data from Stitch on an open
+     * connection, which bounds how long we'll wait for a response.
+     *
+     * @param millis timeout in milliseconds, or 0 for no timeout
+     * @return this object
+     */
+    public StitchClientBuilder withSocketTimeoutMillis(int millis) {
+        this.socketTimeoutMillis = millis;
+        this.connectionSettingsSet = true;
+        return this;
+    }
+
+    /**
+     * Set the timeout for waiting for a connection from the
+     * connection pool when all connections are in use.
+     *
+     * @param millis timeout in milliseconds, or 0 for no timeout
+     * @return this object
+     */
+    public StitchClientBuilder withConnectionRequestTimeoutMillis(int millis) {
+        this.connectionRequestTimeoutMillis = millis;
+        this.connectionSettingsSet = true;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of connections to Stitch the client
+     * will keep open. There is no point in setting this lower than
+     * the number of batches in flight (see {@link
+     * #withMaxInFlightBatches(int)}).
+     *
+     * @param maxConnections maximum number of connections
+     * @return this object
+     */
+    public StitchClientBuilder withMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+        this.connectionSettingsSet = true;
+        return this;
+    }
+
+    /**
+     * Set the maximum time an idle connection to Stitch is kept open
+     * for reuse. Connections are closed sooner if Stitch asks for
+     * it.
+     *
+     * @param millis keep-alive time in milliseconds
+     * @return this object
+     */
+    public StitchClientBuilder withKeepAliveMillis(long millis) {
+        this.keepAliveMillis = millis;
+        this.connectionSettingsSet = true;
+        return this;
+    }
+
+    /**
+     * Compress request bodies of at least minBodyBytes with gzip,
+     * using the default compression level. Batches are still limited
+     * to 4 Mb before compression.
+     *
+     * @param minBodyBytes smallest body to compress
+     * @return this object
+     */
+    public StitchClientBuilder withGzipCompression(int minBodyBytes) {
+        return withGzipCompression(minBodyBytes, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Compress request bodies of at least minBodyBytes with gzip.
+     * Batches are still limited to 4 Mb before compression. Records
+     * with a lot of repeated content often compress very well, so
+     * this can help when the network is the bottleneck, at the cost
+     * of some CPU.
+     *
+     * @param minBodyBytes smallest body to compress
+     * @param level compression level, from 1 (fastest) to 9 (best
+     *              compression), or -1 for the default
+     * @return this object
+     */
+    public StitchClientBuilder withGzipCompression(int minBodyBytes, int level) {
+        if (level < -1 || level > 9) {
+            throw new IllegalArgumentException("Compression level must be between -1 and 9");
+        }
+        this.gzipMinBytes = Math.max(0, minBodyBytes);
+        this.gzipLevel = level;
+        return this;
+    }
+
+    /**
+     * Use a custom {@link Transport} to deliver batches, instead of
+     * sending them to Stitch over HTTP. When this is set, the push
+     * URL, token, connection, and compression settings are ignored.
+     *
+     * @param transport the transport
+     * @return this object
+     */
+    public StitchClientBuilder withTransport(Transport transport) {
+        this.transport = transport;
+        return this;
+    }
+
+    /**
+     * Share connections and threads with other clients, instead of
+     * giving this client its own. See {@link StitchRuntime}. The
+     * client sends over the runtime's connection pool, so connection
+     * settings (timeouts, maximum connections, and keep-alive) can't
+     * be set here as well; set them on the runtime. The push URL,
+     * token, and compression settings still apply.
+     *
+     * @param runtime the runtime
+     * @return this object
+     */
+    public StitchClientBuilder withRuntime(StitchRuntime runtime) {
+        this.runtime = runtime;
+        return this;
+    }
+
     /**
      * Set custom write handlers to be used during the transit encoding.
      *
@@ -286,14 +1012,78 @@ public class StitchClientBuilder {
      * Return a new StitchClient.
      *
      * @return a new StitchClient
+     * @throws IllegalArgumentException if the settings conflict
+     * @throws UncheckedIOException if the write-ahead log can't be
+     *                              opened
+     * @throws IllegalStateException if virtual threads were requested
+     *                               and the JVM doesn't support them
      */
     public StitchClient build() {
-        return new StitchClient(
-            pushUrl, clientId, token, namespace,
-            tableName, keyNames,
-            batchSizeBytes,
-            batchDelayMillis,
-            flushHandler,
-            writeHandlers);
+        // Check everything we can before opening anything that would
+        // have to be closed again.
+        if (maxInFlightBatches < 1) {
+            throw new IllegalArgumentException("maxInFlightBatches must be at least 1");
+        }
+        if (runtime != null && connectionSettingsSet && transport == null) {
+            throw new IllegalArgumentException(
+                "Connection settings can't be combined with a shared runtime; set them on the runtime");
+        }
+        if (virtualThreads && runtime != null) {
+            throw new IllegalArgumentException("Virtual threads can't be combined with a shared runtime");
+        }
+        if (virtualThreads && !VirtualThreadExecutor.isAvailable()) {
+            throw new IllegalStateException("Virtual threads require Java 21 or later");
+        }
+
+        WriteAheadLog writeAheadLog = null;
+        if (writeAheadLogDirectory != null) {
+            try {
+                writeAheadLog = new WriteAheadLog(writeAheadLogDirectory, writeAheadLogSegmentBytes);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        Transport clientTransport = transport;
+        try {
+            if (clientTransport == null && runtime != null) {
+                clientTransport = new HttpTransport(
+                    pushUrl, token, runtime.getHttpClient(), gzipMinBytes, gzipLevel, false);
+            }
+            else if (clientTransport == null) {
+                clientTransport = new HttpTransport(
+                    pushUrl, token,
+                    HttpTransport.newHttpClient(
+                        maxConnections,
+                        keepAliveMillis,
+                        connectTimeoutMillis,
+                        socketTimeoutMillis,
+                        connectionRequestTimeoutMillis),
+                    gzipMinBytes,
+                    gzipLevel);
+            }
+            return new StitchClient(this, clientTransport, writeAheadLog);
+        }
+        catch (RuntimeException | Error e) {
+            // The caller still owns a transport they passed in
+            if (clientTransport != transport) {
+                closeQuietly(clientTransport, e);
+            }
+            closeQuietly(writeAheadLog, e);
+            throw e;
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable, Throwable failure) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        }
+        catch (IOException | RuntimeException e) {
+            failure.addSuppressed(e);
+        }
     }
 }
@@ -0,0 +1,68 @@
+package com.stitchdata.client;
+
+import java.util.Map;
+
+/**
+ * Management interface published over JMX by {@link
+ * JmxMetricsListener}. Latencies are in microseconds and sizes in
+ * bytes unless noted otherwise.
+ */
+public interface StitchClientMXBean {
+
+    /** Bytes of encoded records the client is holding. */
+    long getBufferedBytes();
+
+    /** Records the client is holding. */
+    int getBufferedRecords();
+
+    /** Current batch size threshold in bytes. */
+    int getBatchSizeBytes();
+
+    /** Messages encoded by push or pushAsync. */
+    long getMessagesEncoded();
+
+    /** Pushes that found the buffer full. */
+    long getBufferFullEvents();
+
+    /** Records discarded because the buffer was full. */
+    long getRecordsDropped();
+
+    /** Requests that got a response, including retries. */
+    long getRequests();
+
+    /** Requests that failed without a response, including retries. */
+    long getRequestErrors();
+
+    /** Requests that got a response, by HTTP status. */
+    Map<Integer, Long> getResponsesByStatus();
+
+    /** Retries of failed requests. */
+    long getRetries();
+
+    /** Batches accepted by Stitch. */
+    long getBatchesDelivered();
+
+    /** Records in batches accepted by Stitch. */
+    long getRecordsDelivered();
+
+    /** Bytes in batches accepted by Stitch. */
+    long getBytesDelivered();
+
+    /** Batches that couldn't be delivered. */
+    long getBatchesFailed();
+
+    /** Time to encode a message. */
+    HistogramSnapshot getEncodeMicros();
+
+    /** Time to assemble a batch body from its entries. */
+    HistogramSnapshot getSerializeMicros();
+
+    /** Time from sending a request to receiving the response. */
+    HistogramSnapshot getRequestMicros();
+
+    /** Number of records in each batch sent. */
+    HistogramSnapshot getBatchRecords();
+
+    /** Size of each batch sent. */
+    HistogramSnapshot getBatchBytes();
+}
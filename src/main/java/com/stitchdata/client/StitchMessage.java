@@ -28,6 +28,7 @@ public class StitchMessage {
     private List<String> keyNames;
     private long sequence;
     private Map data;
+    private Object record;
 
     public StitchMessage() {
 
@@ -178,6 +179,38 @@ public class StitchMessage {
      */
     public StitchMessage withData(Map data) {
         this.data = data;
+        this.record = null;
+        return this;
+    }
+
+    /**
+     * Set the body of the message to an object, instead of a map.
+     * The client writes the object's properties straight into the
+     * encoded message, without converting it to a map first. The
+     * properties of a class are found once and then reused for every
+     * object of that class:
+     *
+     * <ul>
+     * <li>for a Java record, its components, in declaration
+     * order;</li>
+     * <li>otherwise, its public fields and its public getters (getX(),
+     * or isX() for booleans, which become "x"), in alphabetical
+     * order.</li>
+     * </ul>
+     *
+     * <p>Property values must be things the client can encode, as for
+     * {@link #withData(Map)}. Values of other types need a write
+     * handler (see {@link StitchClientBuilder#withWriteHandlers}).
+     * Setting a record replaces any data map set earlier, and the
+     * other way around. The same rules as for the data map apply to
+     * modifying the object before it is pushed.</p>
+     *
+     * @param record body of the message
+     * @return this object
+     */
+    public StitchMessage withRecord(Object record) {
+        this.record = record;
+        this.data = null;
         return this;
     }
 
@@ -205,4 +238,8 @@ public class StitchMessage {
         return data;
     }
 
+    public Object getRecord() {
+        return record;
+    }
+
 }
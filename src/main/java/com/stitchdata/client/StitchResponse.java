@@ -10,11 +10,21 @@ public class StitchResponse {
     private final int httpStatusCode;
     private final String httpReasonPhrase;
     private final JsonObject content;
+    private final long retryAfterMillis;
 
     public StitchResponse(int httpStatusCode, String httpReasonPhrase, JsonObject content) {
+        this(httpStatusCode, httpReasonPhrase, content, -1);
+    }
+
+    /**
+     * @param retryAfterMillis how long Stitch asked us to wait before
+     *                         trying again, or -1 if it didn't say
+     */
+    public StitchResponse(int httpStatusCode, String httpReasonPhrase, JsonObject content, long retryAfterMillis) {
         this.httpStatusCode = httpStatusCode;
         this.httpReasonPhrase = httpReasonPhrase;
         this.content = content;
+        this.retryAfterMillis = retryAfterMillis;
     }
 
     /**
@@ -41,6 +51,16 @@ public class StitchResponse {
         return content;
     }
 
+    /**
+     * Returns how long Stitch asked us to wait before trying again,
+     * from the Retry-After header.
+     *
+     * @return the delay in milliseconds, or -1 if there was none
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
     public String toString() {
         String result = "HTTP Status Code " + httpStatusCode +
             " (" + httpReasonPhrase + ")";
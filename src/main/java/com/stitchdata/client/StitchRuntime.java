@@ -0,0 +1,122 @@
+package com.stitchdata.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.http.impl.client.CloseableHttpClient;
+
+/**
+ * Threads and connections shared by many {@link StitchClient}s.
+ *
+ * <p>Callers should use {@link StitchRuntimeBuilder} to construct
+ * instances of StitchRuntime, and pass one to {@link
+ * StitchClientBuilder#withRuntime} for each client that should share
+ * it.</p>
+ *
+ * <p>On its own, every client has its own connection pool, its own
+ * background flush thread, and its own sender threads. That's fine
+ * for a few clients, but an application that runs a client per
+ * tenant, with hundreds in one JVM, would have thousands of threads
+ * and connections. Clients built with a runtime instead share:</p>
+ *
+ * <ul>
+ * <li>one pool of keep-alive connections to Stitch. Each client still
+ * sends with its own token;</li>
+ * <li>one timer thread, which wakes up each client's background
+ * flush when its oldest record reaches the batch delay;</li>
+ * <li>a fixed number of sender threads, which take turns between
+ * clients, so a client with a large backlog can't keep the others
+ * from sending. A batch waiting to be retried waits on the timer
+ * rather than a sender thread, so a client whose sends keep failing
+ * can't hold the threads either, and an explicit flush sends on the
+ * thread that called it.</li>
+ * </ul>
+ *
+ * <p>Everything else, including buffers, memory limits, retries, and
+ * the write-ahead log, stays per client. Close every client before
+ * closing the runtime; a client can't deliver anything once its
+ * runtime is closed.</p>
+ *
+ * <pre>
+ * {@code
+ * try (StitchRuntime runtime = new StitchRuntimeBuilder()
+ *     .withSenderThreads(16)
+ *     .withMaxConnections(16)
+ *     .build())
+ * {
+ *     StitchClient tenant = new StitchClientBuilder()
+ *         .withRuntime(runtime)
+ *         .withClientId(tenantClientId)
+ *         .withToken(tenantToken)
+ *         .withNamespace(tenantNamespace)
+ *         .build();
+ *     // ...
+ * }
+ * }
+ * </pre>
+ */
+public class StitchRuntime implements Closeable {
+
+    private final CloseableHttpClient httpClient;
+    private final ScheduledThreadPoolExecutor timer;
+    private final FairExecutor senders;
+
+    StitchRuntime(CloseableHttpClient httpClient, int senderThreads) {
+        if (senderThreads < 1) {
+            throw new IllegalArgumentException("senderThreads must be at least 1");
+        }
+        this.httpClient = httpClient;
+        this.timer = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread thread = new Thread(r, "stitch-runtime-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            });
+        this.timer.setRemoveOnCancelPolicy(true);
+        final AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(
+            senderThreads, senderThreads,
+            60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            r -> {
+                Thread thread = new Thread(r, "stitch-runtime-sender-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        workers.allowCoreThreadTimeOut(true);
+        this.senders = new FairExecutor(workers);
+    }
+
+    CloseableHttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    ScheduledExecutorService getTimer() {
+        return timer;
+    }
+
+    /**
+     * Returns a new lane on the shared sender threads, for one
+     * client.
+     */
+    FairExecutor.Lane newSenderLane() {
+        return senders.newLane();
+    }
+
+    /**
+     * Stop the shared threads and close the connection pool. Clients
+     * using this runtime should be closed first.
+     *
+     * @throws IOException if there was an error closing the
+     *                     connection pool
+     */
+    public void close() throws IOException {
+        timer.shutdownNow();
+        senders.shutdown();
+        httpClient.close();
+    }
+}
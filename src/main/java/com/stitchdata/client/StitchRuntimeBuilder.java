@@ -0,0 +1,125 @@
+package com.stitchdata.client;
+
+/**
+ * Use this to build instances of {@link StitchRuntime}.
+ *
+ * <pre>
+ * {@code
+ * StitchRuntime runtime = new StitchRuntimeBuilder()
+ *   .withSenderThreads(16)
+ *   .withMaxConnections(16)
+ *   .build();
+ * }
+ * </pre>
+ *
+ * The connection settings mean the same as on {@link
+ * StitchClientBuilder}, and apply to every client that uses the
+ * runtime.
+ */
+public class StitchRuntimeBuilder {
+
+    /**
+     * By default, a runtime has 8 sender threads.
+     */
+    public static final int DEFAULT_SENDER_THREADS = 8;
+
+    private int senderThreads = DEFAULT_SENDER_THREADS;
+    private int maxConnections = StitchClientBuilder.DEFAULT_MAX_CONNECTIONS;
+    private long keepAliveMillis = StitchClientBuilder.DEFAULT_KEEP_ALIVE_MILLIS;
+    private int connectTimeoutMillis = StitchClientBuilder.DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private int socketTimeoutMillis = StitchClientBuilder.DEFAULT_SOCKET_TIMEOUT_MILLIS;
+    private int connectionRequestTimeoutMillis = StitchClientBuilder.DEFAULT_CONNECTION_REQUEST_TIMEOUT_MILLIS;
+
+    /**
+     * Set the number of threads that send batches for all clients
+     * using the runtime. This bounds the number of batches in flight
+     * across all of them, regardless of each client's {@link
+     * StitchClientBuilder#withMaxInFlightBatches(int)}.
+     *
+     * @param threads number of sender threads
+     * @return this object
+     */
+    public StitchRuntimeBuilder withSenderThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("senderThreads must be at least 1");
+        }
+        this.senderThreads = threads;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of connections to Stitch, shared by all
+     * clients using the runtime. There is no point in setting this
+     * higher than the number of sender threads.
+     *
+     * @param maxConnections maximum number of connections
+     * @return this object
+     */
+    public StitchRuntimeBuilder withMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+        return this;
+    }
+
+    /**
+     * Set the maximum time an idle connection to Stitch is kept open
+     * for reuse.
+     *
+     * @param millis keep-alive time in milliseconds
+     * @return this object
+     */
+    public StitchRuntimeBuilder withKeepAliveMillis(long millis) {
+        this.keepAliveMillis = millis;
+        return this;
+    }
+
+    /**
+     * Set the timeout for establishing a connection to Stitch.
+     *
+     * @param millis timeout in milliseconds, or 0 for no timeout
+     * @return this object
+     */
+    public StitchRuntimeBuilder withConnectTimeoutMillis(int millis) {
+        this.connectTimeoutMillis = millis;
+        return this;
+    }
+
+    /**
+     * Set the timeout for waiting for data from Stitch on an open
+     * connection.
+     *
+     * @param millis timeout in milliseconds, or 0 for no timeout
+     * @return this object
+     */
+    public StitchRuntimeBuilder withSocketTimeoutMillis(int millis) {
+        this.socketTimeoutMillis = millis;
+        return this;
+    }
+
+    /**
+     * Set the timeout for waiting for a connection from the pool
+     * when all connections are in use.
+     *
+     * @param millis timeout in milliseconds, or 0 for no timeout
+     * @return this object
+     */
+    public StitchRuntimeBuilder withConnectionRequestTimeoutMillis(int millis) {
+        this.connectionRequestTimeoutMillis = millis;
+        return this;
+    }
+
+    /**
+     * Return a new StitchRuntime.
+     *
+     * @return a new StitchRuntime
+     */
+    public StitchRuntime build() {
+        return new StitchRuntime(
+            HttpTransport.newHttpClient(
+                maxConnections,
+                keepAliveMillis,
+                connectTimeoutMillis,
+                socketTimeoutMillis,
+                connectionRequestTimeoutMillis),
+            senderThreads);
+    }
+}
@@ -0,0 +1,354 @@
+package com.stitchdata.client;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * Reactive Streams subscriber that pushes the messages it receives
+ * to a {@link StitchClient}, asking upstream for only as many
+ * messages as the client has room for.
+ *
+ * <p>Each message is pushed with {@link
+ * StitchClient#pushAsync(StitchMessage)}, so receiving a message never
+ * waits for a request to Stitch. The subscriber keeps a window of
+ * messages that have been requested but not yet delivered: enough to
+ * fill a batch in each buffer and have another in flight, but no
+ * more than the client's limits on buffered bytes and records allow
+ * (see {@link StitchClientBuilder#withMaxBufferedBytes(long)}). More
+ * messages are requested as batches are delivered, so upstream runs
+ * exactly as fast as Stitch accepts records, and nothing queues up
+ * in between.</p>
+ *
+ * <p>{@link #getAcknowledgements()} publishes each message once it
+ * has been delivered. If something subscribes to it, a message counts
+ * against the window until it has been published, so a slow
+ * acknowledgement subscriber slows upstream down too, rather than
+ * acknowledgements piling up. If a message can't be delivered, the
+ * subscriber cancels its upstream subscription and the
+ * acknowledgements fail with the error. When upstream completes, the
+ * client is flushed in the background, and the acknowledgements
+ * complete once every message has been delivered, or fail if the
+ * flush does. Closing the client waits for that flush.</p>
+ *
+ * <p>The client isn't closed. On Java 9 or later, you can use
+ * {@code org.reactivestreams.FlowAdapters} to get {@code
+ * java.util.concurrent.Flow} views of the subscriber and the
+ * acknowledgements:</p>
+ *
+ * <pre>
+ * {@code
+ * StitchSubscriber subscriber = new StitchSubscriber(stitch);
+ * publisher.subscribe(FlowAdapters.toFlowSubscriber(subscriber));
+ * FlowAdapters.toFlowPublisher(subscriber.getAcknowledgements()).subscribe(...);
+ * }
+ * </pre>
+ *
+ * <p>This class needs the org.reactivestreams:reactive-streams
+ * library, which is an optional dependency of the client.</p>
+ */
+public class StitchSubscriber implements Subscriber<StitchMessage> {
+
+    // Bytes per record we assume before we've seen any
+    private static final long DEFAULT_RECORD_BYTES = 1000;
+
+    private final StitchClient client;
+    private final AtomicReference<Subscription> upstream = new AtomicReference<Subscription>();
+    private final Acknowledgements acknowledgements = new Acknowledgements();
+
+    // Messages requested from upstream and not yet acknowledged
+    private final AtomicLong outstanding = new AtomicLong();
+    // Messages pushed whose delivery hasn't finished
+    private final AtomicLong pending = new AtomicLong();
+    // Messages requested from upstream and not yet received. Added
+    // to before the request is made, so it never goes negative.
+    private final AtomicLong demand = new AtomicLong();
+    private volatile long recordBytes = DEFAULT_RECORD_BYTES;
+    private volatile boolean upstreamDone;
+    // Set once the flush after upstream completed has succeeded
+    private volatile boolean flushed;
+    private volatile boolean failed;
+
+    public StitchSubscriber(StitchClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Returns a publisher of the messages this subscriber has
+     * delivered, in the order they were delivered. It accepts one
+     * subscriber.
+     *
+     * @return the acknowledgements
+     */
+    public Publisher<StitchMessage> getAcknowledgements() {
+        return acknowledgements;
+    }
+
+    public void onSubscribe(Subscription subscription) {
+        if (subscription == null) {
+            throw new NullPointerException("subscription");
+        }
+        if (!upstream.compareAndSet(null, subscription)) {
+            subscription.cancel();
+            return;
+        }
+        requestMore();
+    }
+
+    public void onNext(StitchMessage message) {
+        if (message == null) {
+            throw new NullPointerException("message");
+        }
+        if (failed) {
+            return;
+        }
+        pending.incrementAndGet();
+        CompletableFuture<Void> future;
+        try {
+            future = client.pushAsync(message);
+        }
+        catch (RuntimeException e) {
+            future = new CompletableFuture<Void>();
+            future.completeExceptionally(e);
+        }
+        future.whenComplete((result, error) -> onDelivered(message, error));
+
+        // Upstream has sent everything we asked for. The window may
+        // have been estimated before we knew how big the records are,
+        // so it may open up now. If it doesn't, the buffer limits
+        // may be smaller than a batch, and no batch would become
+        // ready to be acknowledged, so send what there is.
+        if (demand.decrementAndGet() == 0) {
+            requestMore();
+            if (demand.get() == 0) {
+                try {
+                    client.makeRoom();
+                }
+                catch (IOException | RuntimeException e) {
+                    fail(e);
+                }
+            }
+        }
+    }
+
+    public void onError(Throwable error) {
+        if (error == null) {
+            throw new NullPointerException("error");
+        }
+        upstreamDone = true;
+        acknowledgements.fail(error);
+    }
+
+    public void onComplete() {
+        upstreamDone = true;
+        // Send what's left in the buffers rather than waiting for the
+        // batch delay. Flushing blocks, and upstream may be calling
+        // us from a thread that mustn't, so the client flushes in the
+        // background, and closing the client waits for it.
+        client.flushInBackground().whenComplete((result, error) -> {
+                if (error != null) {
+                    fail(error);
+                    return;
+                }
+                flushed = true;
+                if (pending.get() == 0) {
+                    acknowledgements.complete();
+                }
+            });
+    }
+
+    private void onDelivered(StitchMessage message, Throwable error) {
+        if (error != null) {
+            fail(error);
+        }
+        else {
+            acknowledgements.publish(message);
+        }
+        if (pending.decrementAndGet() == 0 && flushed) {
+            acknowledgements.complete();
+        }
+    }
+
+    private void fail(Throwable error) {
+        failed = true;
+        Subscription subscription = upstream.get();
+        if (subscription != null) {
+            subscription.cancel();
+        }
+        acknowledgements.fail(error);
+    }
+
+    /**
+     * Called once a message no longer counts against the window.
+     */
+    private void release() {
+        outstanding.decrementAndGet();
+        requestMore();
+    }
+
+    /**
+     * Returns the number of messages to have requested and not yet
+     * acknowledged.
+     */
+    long window() {
+        long records = client.getBufferedRecords();
+        if (records > 0) {
+            recordBytes = Math.max(1, client.getBufferedBytes() / records);
+        }
+        long perBatch = Math.max(1, Math.min(
+            client.getEffectiveBatchSizeBytes() / recordBytes,
+            Buffer.MAX_MESSAGES_PER_BATCH));
+        long window = 2L * client.getMaxInFlightBatches() * perBatch;
+        window = Math.min(window, client.getMaxBufferedRecords());
+        window = Math.min(window, client.getMaxBufferedBytes() / recordBytes);
+        return Math.max(1, window);
+    }
+
+    /**
+     * Tops up upstream demand to the window. To avoid requesting one
+     * message at a time, waits until a quarter of the window is free.
+     */
+    private void requestMore() {
+        Subscription subscription = upstream.get();
+        if (subscription == null || failed || upstreamDone) {
+            return;
+        }
+        long window = window();
+        while (true) {
+            long current = outstanding.get();
+            long n = window - current;
+            if (n <= 0 || (current > 0 && n < Math.max(1, window / 4))) {
+                return;
+            }
+            if (outstanding.compareAndSet(current, window)) {
+                demand.addAndGet(n);
+                subscription.request(n);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Publishes delivered messages to at most one subscriber,
+     * honoring its demand. Until something subscribes, and after it
+     * cancels, messages are released as soon as they are delivered.
+     */
+    private class Acknowledgements implements Publisher<StitchMessage> {
+
+        private final ConcurrentLinkedQueue<StitchMessage> queue = new ConcurrentLinkedQueue<StitchMessage>();
+        private final AtomicInteger wip = new AtomicInteger();
+        private final AtomicLong demand = new AtomicLong();
+        private volatile Subscriber<? super StitchMessage> subscriber;
+        private volatile boolean cancelled;
+        private volatile boolean done;
+        private volatile Throwable error;
+        private boolean terminated;
+
+        public void subscribe(final Subscriber<? super StitchMessage> s) {
+            if (s == null) {
+                throw new NullPointerException("subscriber");
+            }
+            if (subscriber != null) {
+                s.onSubscribe(new Subscription() {
+                        public void request(long n) {
+                        }
+                        public void cancel() {
+                        }
+                    });
+                s.onError(new IllegalStateException("Acknowledgements accept only one subscriber"));
+                return;
+            }
+            s.onSubscribe(new Subscription() {
+                    public void request(long n) {
+                        if (n <= 0) {
+                            error = new IllegalArgumentException("Demand must be positive");
+                            done = true;
+                        }
+                        else {
+                            long current, next;
+                            do {
+                                current = demand.get();
+                                next = current + n < 0 ? Long.MAX_VALUE : current + n;
+                            } while (!demand.compareAndSet(current, next));
+                        }
+                        drain();
+                    }
+                    public void cancel() {
+                        cancelled = true;
+                        drain();
+                    }
+                });
+            subscriber = s;
+            drain();
+        }
+
+        void publish(StitchMessage message) {
+            if (subscriber == null || cancelled) {
+                release();
+                return;
+            }
+            queue.add(message);
+            drain();
+        }
+
+        void complete() {
+            done = true;
+            drain();
+        }
+
+        void fail(Throwable e) {
+            if (error == null) {
+                error = e;
+            }
+            done = true;
+            drain();
+        }
+
+        /**
+         * Emits what the subscriber has asked for. Only one thread
+         * drains at a time; others just note there is more work.
+         */
+        private void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                Subscriber<? super StitchMessage> s = subscriber;
+                if (cancelled || (s == null && done)) {
+                    StitchMessage message;
+                    while ((message = queue.poll()) != null) {
+                        release();
+                    }
+                }
+                else if (s != null && !terminated) {
+                    while (demand.get() > 0 && error == null) {
+                        StitchMessage message = queue.poll();
+                        if (message == null) {
+                            break;
+                        }
+                        demand.decrementAndGet();
+                        s.onNext(message);
+                        release();
+                    }
+                    if (done && (error != null || queue.isEmpty())) {
+                        terminated = true;
+                        if (error != null) {
+                            s.onError(error);
+                        }
+                        else {
+                            s.onComplete();
+                        }
+                    }
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+}
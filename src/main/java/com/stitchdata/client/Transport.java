@@ -0,0 +1,48 @@
+package com.stitchdata.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Delivers batches of records to Stitch.
+ *
+ * <p>By default a {@link StitchClient} sends batches over HTTP to the
+ * Stitch import API, using a pool of keep-alive connections that can
+ * be tuned on {@link StitchClientBuilder}. You can supply your own
+ * implementation with {@link StitchClientBuilder#withTransport}, for
+ * example to record batches in tests.</p>
+ *
+ * <p>Implementations must be thread-safe, since a client with more
+ * than one batch in flight calls {@link #send(BatchBody)} from
+ * several threads at once. The client closes its transport when the
+ * client is closed.</p>
+ */
+public interface Transport extends Closeable {
+
+    /**
+     * Send a batch to Stitch.
+     *
+     * @param body the batch, encoded as a transit JSON array of
+     *             messages
+     * @return the response from Stitch
+     * @throws IOException if there was an error communicating with
+     *                     Stitch
+     */
+    StitchResponse send(byte[] body) throws IOException;
+
+    /**
+     * Send a batch to Stitch. This is what the client calls.
+     *
+     * <p>The default implementation copies the body into an array
+     * and calls {@link #send(byte[])}. Transports that can write the
+     * body to a stream should override this to avoid the copy.</p>
+     *
+     * @param body the batch
+     * @return the response from Stitch
+     * @throws IOException if there was an error communicating with
+     *                     Stitch
+     */
+    default StitchResponse send(BatchBody body) throws IOException {
+        return send(body.toByteArray());
+    }
+}
@@ -0,0 +1,105 @@
+package com.stitchdata.client;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs each task on a new virtual thread.
+ *
+ * <p>Sending a batch is blocking I/O, and a platform thread per batch
+ * in flight costs a stack of its own, which limits how many batches a
+ * JVM can have in flight. A virtual thread that blocks on a socket,
+ * or sleeps between retries, gives up its carrier thread, so
+ * thousands of sends can wait at once on a handful of platform
+ * threads.</p>
+ *
+ * <p>There is no limit on the number of tasks running here. Every
+ * task a client runs on its senders holds a buffer's send permit,
+ * so the number in flight is already bounded by the number of
+ * buffers (see {@link StitchClientBuilder#withMaxInFlightBatches}).
+ * What virtual threads change is the cost of each one, so that bound
+ * can be raised far past the number of platform threads a JVM can
+ * afford.</p>
+ *
+ * <p>Nothing a sender does while blocked holds a monitor, which on
+ * JDK 21 would pin the virtual thread to its carrier: the buffer's
+ * lock is only held while entries are taken or put back, and waiting
+ * for room in the {@link BufferBudget} uses a {@link
+ * java.util.concurrent.locks.Condition}.</p>
+ *
+ * <p>Virtual threads are looked up reflectively, so this class still
+ * compiles for Java 8. Check {@link #isAvailable()} before creating
+ * one.</p>
+ */
+class VirtualThreadExecutor extends AbstractExecutorService {
+
+    private static final ThreadFactory FACTORY = virtualThreadFactory("stitch-sender-virtual-");
+
+    private final ExecutorService threads;
+
+    VirtualThreadExecutor() {
+        if (FACTORY == null) {
+            throw new IllegalStateException("Virtual threads require Java 21 or later");
+        }
+        this.threads = newThreadPerTaskExecutor(FACTORY);
+    }
+
+    /**
+     * Returns true if the JVM supports virtual threads.
+     */
+    static boolean isAvailable() {
+        return FACTORY != null;
+    }
+
+    private static ThreadFactory virtualThreadFactory(String prefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        }
+        catch (ReflectiveOperationException e) {
+            // Before Java 21
+            return null;
+        }
+    }
+
+    private static ExecutorService newThreadPerTaskExecutor(ThreadFactory factory) {
+        try {
+            Method method = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) method.invoke(null, factory);
+        }
+        catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual threads require Java 21 or later", e);
+        }
+    }
+
+    public void execute(Runnable task) {
+        threads.execute(task);
+    }
+
+    public void shutdown() {
+        threads.shutdown();
+    }
+
+    public List<Runnable> shutdownNow() {
+        return threads.shutdownNow();
+    }
+
+    public boolean isShutdown() {
+        return threads.isShutdown();
+    }
+
+    public boolean isTerminated() {
+        return threads.isTerminated();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return threads.awaitTermination(timeout, unit);
+    }
+}
@@ -0,0 +1,352 @@
+package com.stitchdata.client;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps a copy of every buffered entry on disk until Stitch has
+ * accepted it, so that records survive the JVM crashing or being
+ * killed before the client is closed.
+ *
+ * <p>The log is a directory of fixed-size segment files, each mapped
+ * into memory. Every entry is appended to the current segment before
+ * it is added to a buffer. Writes to a mapped file reach the page
+ * cache immediately, so they survive the process dying, though not
+ * the machine losing power. When an entry doesn't fit, the segment is
+ * sealed and a new one started. Once a segment is sealed and every
+ * entry in it has been acknowledged, its file is deleted.</p>
+ *
+ * <p>Each record is laid out as:</p>
+ *
+ * <pre>
+ * int    marker, {@link #MARKER}
+ * int    length of the entry
+ * int    partition hash of the message (see StitchClient#partitionHash)
+ * int    CRC32 of the length, partition hash, and entry
+ * byte[] the encoded entry, padded to a multiple of four bytes
+ * </pre>
+ *
+ * <p>Producers append concurrently: each one claims a region of the
+ * segment with an atomic add and then writes its record there. If
+ * the process dies in between, a region may be unwritten or only
+ * partly written while records after it are complete, and have been
+ * acknowledged to their callers as logged. So recovery never stops
+ * at a bad record: it checks each record's marker and checksum, and
+ * when either is wrong, scans forward to the next marker. Records
+ * are aligned to four bytes, so the scan only looks at aligned
+ * positions.</p>
+ *
+ * <p>When a log is opened, the entries in any segments left behind
+ * are returned by {@link #recover()}, and their segments are deleted
+ * once those entries have been acknowledged.</p>
+ *
+ * <p>Java has no way to unmap a file: a mapping is released when its
+ * buffer is garbage collected. So only the current segment holds on
+ * to its buffer. A segment drops it when it is sealed, and recovery
+ * drops each old segment's buffer as soon as it has been read, so a
+ * client that rolls through many segments keeps one mapped, plus
+ * any the collector hasn't got to yet. A fully acknowledged segment's
+ * file may be deleted before its mapping is released. POSIX systems
+ * allow that, and free the space once the mapping goes. Windows
+ * doesn't, and the file is left behind to be replayed by the next
+ * client, so the log is meant for POSIX systems.</p>
+ */
+class WriteAheadLog implements Closeable {
+
+    static final int HEADER_BYTES = 16;
+    static final int MARKER = 0x57414c31;
+
+    private static final String SUFFIX = ".wal";
+
+    private final File directory;
+    private final int segmentBytes;
+    private final RandomAccessFile lockFile;
+    private final FileLock lock;
+
+    private final List<Recovered> recoveredEntries = new ArrayList<Recovered>();
+    private long nextSequence;
+    private volatile Segment current;
+    private volatile boolean closed;
+
+    /**
+     * Opens the log in the given directory, creating the directory if
+     * necessary, and reads any entries left behind by a previous
+     * client.
+     *
+     * @param segmentBytes size of each segment file
+     * @throws IOException if the directory can't be used, or another
+     *                     client has the log open
+     */
+    WriteAheadLog(File directory, int segmentBytes) throws IOException {
+        if (segmentBytes < HEADER_BYTES + Buffer.MAX_BATCH_SIZE_BYTES) {
+            throw new IllegalArgumentException(
+                "Segments must be at least " + (HEADER_BYTES + Buffer.MAX_BATCH_SIZE_BYTES) + " bytes");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.lockFile = new RandomAccessFile(new File(directory, "lock"), "rw");
+        FileLock fileLock;
+        try {
+            fileLock = lockFile.getChannel().tryLock();
+        }
+        catch (OverlappingFileLockException e) {
+            // Held by another client in this JVM
+            fileLock = null;
+        }
+        this.lock = fileLock;
+        if (lock == null) {
+            lockFile.close();
+            throw new IOException("Write-ahead log " + directory + " is in use by another client");
+        }
+
+        try {
+            File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+            Arrays.sort(files);
+            for (File file : files) {
+                long sequence = Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+                nextSequence = Math.max(nextSequence, sequence + 1);
+                readSegment(file);
+            }
+            current = newSegment();
+        }
+        catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the entries found in segments left behind by a previous
+     * client, in the order they were written.
+     */
+    List<Recovered> recover() {
+        return recoveredEntries;
+    }
+
+    /**
+     * Returns the number of bytes a record for an entry of the given
+     * size takes up in a segment.
+     */
+    static int recordBytes(int entryBytes) {
+        return (HEADER_BYTES + entryBytes + 3) & ~3;
+    }
+
+    private static int checksum(int length, int partitionHash, byte[] bytes) {
+        CRC32 crc = new CRC32();
+        ByteBuffer header = ByteBuffer.allocate(8);
+        header.putInt(length).putInt(partitionHash);
+        crc.update(header.array(), 0, 8);
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+
+    private void readSegment(File file) throws IOException {
+        ByteBuffer data;
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        Segment segment = new Segment(file, null);
+        int limit = data.limit();
+        int position = 0;
+        while (position <= limit - HEADER_BYTES) {
+            // A region claimed but never written is zeros, and one
+            // written partly has a bad checksum. Either way, move on
+            // to the next aligned position and look for a marker.
+            if (data.getInt(position) != MARKER) {
+                position += 4;
+                continue;
+            }
+            int length = data.getInt(position + 4);
+            if (length <= 0 || length > limit - position - HEADER_BYTES) {
+                position += 4;
+                continue;
+            }
+            int hash = data.getInt(position + 8);
+            int checksum = data.getInt(position + 12);
+            byte[] bytes = new byte[length];
+            ByteBuffer body = data.duplicate();
+            body.position(position + HEADER_BYTES);
+            body.get(bytes);
+            if (checksum(length, hash, bytes) != checksum) {
+                position += 4;
+                continue;
+            }
+            Buffer.Entry entry = new Buffer.Entry(bytes, null);
+            entry.segment = segment;
+            segment.appended.incrementAndGet();
+            recoveredEntries.add(new Recovered(entry, hash));
+            position += recordBytes(length);
+        }
+        segment.seal();
+    }
+
+    private Segment newSegment() throws IOException {
+        File file = new File(directory, String.format("%020d%s", nextSequence++, SUFFIX));
+        MappedByteBuffer data;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(segmentBytes);
+            data = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+        return new Segment(file, data);
+    }
+
+    /**
+     * Writes the entry to the log and records which segment it is
+     * in, so it can be acknowledged later.
+     */
+    void append(Buffer.Entry entry, int partitionHash) throws IOException {
+        int checksum = checksum(entry.bytes.length, partitionHash, entry.bytes);
+        int size = recordBytes(entry.bytes.length);
+        while (true) {
+            if (closed) {
+                throw new IOException("Write-ahead log is closed");
+            }
+            Segment segment = current;
+            if (segment.tryAppend(entry, partitionHash, checksum, size)) {
+                entry.segment = segment;
+                return;
+            }
+            roll(segment);
+        }
+    }
+
+    /**
+     * Starts a new segment if the given one is still current.
+     */
+    private synchronized void roll(Segment full) throws IOException {
+        if (current == full && !closed) {
+            current = newSegment();
+            full.seal();
+        }
+    }
+
+    /**
+     * Marks the entries as no longer needed, deleting any segments
+     * that are now fully acknowledged.
+     */
+    void acknowledge(List<Buffer.Entry> entries) {
+        for (Buffer.Entry entry : entries) {
+            Segment segment = entry.segment;
+            if (segment != null) {
+                entry.segment = null;
+                segment.acknowledged.incrementAndGet();
+                segment.deleteIfDone();
+            }
+        }
+    }
+
+    /**
+     * Closes the log. Segments holding entries that haven't been
+     * acknowledged are left in place to be recovered by the next
+     * client that opens the directory.
+     */
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        Segment segment = current;
+        if (segment != null) {
+            segment.seal();
+        }
+        try {
+            lock.release();
+        }
+        finally {
+            lockFile.close();
+        }
+    }
+
+    /**
+     * An entry read back from the log, with the partition hash of the
+     * message it came from.
+     */
+    static class Recovered {
+        final Buffer.Entry entry;
+        final int partitionHash;
+
+        Recovered(Buffer.Entry entry, int partitionHash) {
+            this.entry = entry;
+            this.partitionHash = partitionHash;
+        }
+    }
+
+    class Segment {
+
+        private final File file;
+        // Null once the segment is sealed, so nothing keeps the
+        // mapping from being released.
+        private volatile MappedByteBuffer data;
+        private final AtomicInteger writePosition = new AtomicInteger();
+
+        // appended counts entries that are being written as well as
+        // those that have been, so that a segment is never deleted
+        // while an append to it is in progress.
+        private final AtomicInteger appended = new AtomicInteger();
+        private final AtomicInteger acknowledged = new AtomicInteger();
+        private volatile boolean sealed;
+        private final AtomicBoolean deleted = new AtomicBoolean();
+
+        Segment(File file, MappedByteBuffer data) {
+            this.file = file;
+            this.data = data;
+        }
+
+        boolean tryAppend(Buffer.Entry entry, int partitionHash, int checksum, int size) {
+            appended.incrementAndGet();
+            // Take the mapping before claiming a region, so that if
+            // the segment is sealed while we write, we still have it.
+            MappedByteBuffer mapped = data;
+            int position = writePosition.getAndAdd(size);
+            // Once one append doesn't fit, the write position stays
+            // past the end, so every later append fails too.
+            if (mapped == null || position < 0 || position > segmentBytes - size) {
+                appended.decrementAndGet();
+                deleteIfDone();
+                return false;
+            }
+            ByteBuffer out = mapped.duplicate();
+            out.position(position);
+            out.putInt(MARKER);
+            out.putInt(entry.bytes.length);
+            out.putInt(partitionHash);
+            out.putInt(checksum);
+            out.put(entry.bytes);
+            return true;
+        }
+
+        void seal() {
+            data = null;
+            sealed = true;
+            deleteIfDone();
+        }
+
+        boolean isMapped() {
+            return data != null;
+        }
+
+        void deleteIfDone() {
+            if (sealed &&
+                acknowledged.get() == appended.get() &&
+                deleted.compareAndSet(false, true)) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.stitchdata.client;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class AdaptiveBatchSizeTest {
+
+    private static final int MIN = 10000;
+    private static final int MAX = 1000000;
+
+    @Test
+    public void testStartsWithinBounds() {
+        assertEquals(MAX, new AdaptiveBatchSize(MIN, MAX, 1000, 4194304).get());
+        assertEquals(MIN, new AdaptiveBatchSize(MIN, MAX, 1000, 0).get());
+        assertEquals(Buffer.MAX_BATCH_SIZE_BYTES,
+                     new AdaptiveBatchSize(MIN, Integer.MAX_VALUE, 1000, Integer.MAX_VALUE).get());
+    }
+
+    @Test
+    public void testGrowsWhileBacklogged() {
+        AdaptiveBatchSize size = new AdaptiveBatchSize(MIN, MAX, 1000, MIN);
+        int previous = size.get();
+        for (int i = 0; i < 100; i++) {
+            size.onRequest(100, false, Long.MAX_VALUE);
+            assertTrue(size.get() >= previous);
+            previous = size.get();
+        }
+        assertEquals(MAX, size.get());
+    }
+
+    @Test
+    public void testHalvesOnCongestionOrSlowResponses() {
+        AdaptiveBatchSize size = new AdaptiveBatchSize(MIN, MAX, 1000, 800000);
+        size.onRequest(100, true, Long.MAX_VALUE);
+        assertEquals(400000, size.get());
+        size.onRequest(5000, false, Long.MAX_VALUE);
+        assertEquals(200000, size.get());
+        for (int i = 0; i < 100; i++) {
+            size.onRequest(100, true, Long.MAX_VALUE);
+        }
+        assertEquals(MIN, size.get());
+    }
+
+    @Test
+    public void testHoldsSteadyWhileKeepingUp() {
+        AdaptiveBatchSize size = new AdaptiveBatchSize(MIN, MAX, 1000, 500000);
+        for (int i = 0; i < 100; i++) {
+            size.onRequest(100, false, 0);
+            size.onRequest(100, false, 400000);
+        }
+        assertEquals(500000, size.get());
+    }
+
+    /**
+     * Simulates producers adding more data between requests than the
+     * server can take within the target latency, with latency
+     * growing with the size of the batch.
+     */
+    @Test
+    public void testConvergesUnderSteadyLoad() {
+        // Requests take 1 ms per kB, so batches over 500 kB are slow
+        long targetLatencyMillis = 500;
+        AdaptiveBatchSize size = new AdaptiveBatchSize(MIN, MAX, targetLatencyMillis, MIN);
+        long backlog = 0;
+        int smallest = Integer.MAX_VALUE;
+        int largest = 0;
+        for (int i = 0; i < 1000; i++) {
+            backlog += 400000;
+            long sent = Math.min(backlog, size.get());
+            backlog -= sent;
+            size.onRequest(sent / 1000, false, backlog);
+            if (i >= 500) {
+                smallest = Math.min(smallest, size.get());
+                largest = Math.max(largest, size.get());
+            }
+        }
+        // It saws between half the largest healthy batch and one
+        // step above it, rather than running off to either bound.
+        assertTrue("smallest " + smallest, smallest >= 250000);
+        assertTrue("largest " + largest, largest <= 600000);
+    }
+
+    @Test
+    public void testSettlesWhenLoadIsLight() {
+        AdaptiveBatchSize size = new AdaptiveBatchSize(MIN, MAX, 1000, MIN);
+        long backlog = 0;
+        int previous = -1;
+        for (int i = 0; i < 1000; i++) {
+            backlog += 100000;
+            long sent = Math.min(backlog, size.get());
+            backlog -= sent;
+            size.onRequest(100, false, backlog);
+            if (i >= 500) {
+                assertTrue(previous < 0 || size.get() == previous);
+            }
+            previous = size.get();
+        }
+        assertTrue(size.get() < MAX);
+    }
+}
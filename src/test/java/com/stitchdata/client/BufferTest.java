@@ -7,6 +7,8 @@ import com.cognitect.transit.Writer;
 import com.cognitect.transit.WriteHandler;
 import com.cognitect.transit.TransitFactory;
 import com.cognitect.transit.Reader;
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.HashMap;
@@ -44,7 +46,7 @@ public class BufferTest  {
 
     public void putMessage(Map record) {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        Writer writer = TransitFactory.writer(TransitFactory.Format.JSON, baos);
+        Writer writer = StitchClient.newEntryWriter(baos, null);
         writer.write(record);
         buffer.put(new Buffer.Entry(baos.toByteArray(), null));
     }
@@ -52,7 +54,7 @@ public class BufferTest  {
     public String takeBatchBody(int batchSizeBytes, int batchDelayMillis)
         throws UnsupportedEncodingException {
         List<Buffer.Entry> entries = buffer.take(batchSizeBytes, batchDelayMillis);
-        return entries == null ? null : StitchClient.serializeEntries(entries);
+        return entries == null ? null : new String(StitchClient.serializeEntries(entries), "UTF-8");
     }
 
     @Test
@@ -114,4 +116,147 @@ public class BufferTest  {
         assertNotNull(takeBatchBody(Buffer.MAX_BATCH_SIZE_BYTES, 60000));
     }
 
+    @Test
+    public void testDoesNotExceedMaxMessagesPerBatch() throws IOException {
+        for (int i = 0; i < 10001; i++) {
+            putMessage(tinyRecord);
+        }
+        assertEquals(Buffer.MAX_MESSAGES_PER_BATCH, buffer.take(0, 0).size());
+        assertEquals(1, buffer.take(0, 0).size());
+    }
+
+    @Test
+    public void testBacklogIsSplitAtMaxMessagesPerBatch() throws IOException {
+        for (int i = 0; i < Buffer.MAX_MESSAGES_PER_BATCH * 2 + 1; i++) {
+            putMessage(tinyRecord);
+        }
+        assertEquals(Buffer.MAX_MESSAGES_PER_BATCH,
+                     buffer.take(Buffer.MAX_BATCH_SIZE_BYTES, 60000).size());
+        assertEquals(Buffer.MAX_MESSAGES_PER_BATCH,
+                     buffer.take(Buffer.MAX_BATCH_SIZE_BYTES, 60000).size());
+
+        // The one left over waits for a batch of its own
+        assertNull(buffer.take(Buffer.MAX_BATCH_SIZE_BYTES, 60000));
+        assertEquals(1, buffer.take(0, 0).size());
+    }
+
+    @Test
+    public void testBatchWithRepeatedKeysIsReadable() throws IOException {
+        List<Map> records = new ArrayList<Map>();
+        for (int i = 0; i < 3; i++) {
+            Map nested = new HashMap();
+            nested.put("street-" + i, "Main");
+            nested.put("city-" + i, "Philadelphia");
+            Map record = new HashMap();
+            record.put("name", "record-" + i);
+            record.put("address", nested);
+            record.put("addresses", Arrays.asList(nested, nested));
+            records.add(record);
+            putMessage(record);
+        }
+
+        List<Buffer.Entry> entries = buffer.take(0, 0);
+        byte[] body = StitchClient.serializeEntries(entries);
+        Reader reader = TransitFactory.reader(
+            TransitFactory.Format.JSON, new ByteArrayInputStream(body));
+        assertEquals(records, reader.read());
+
+        BatchBody batchBody = new BatchBody(entries);
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        batchBody.writeTo(streamed);
+        assertArrayEquals(body, streamed.toByteArray());
+        assertEquals(body.length, batchBody.length());
+    }
+
+    @Test
+    public void testConcurrentPutsAndTakesKeepEveryEntryInOrder() throws Exception {
+        final int numThreads = 8;
+        final int perThread = 20000;
+        List<Thread> producers = new ArrayList<Thread>();
+        for (int t = 0; t < numThreads; t++) {
+            final int threadId = t;
+            producers.add(new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    buffer.put(new Buffer.Entry(new byte[10], new int[] { threadId, i }));
+                }
+            }));
+        }
+        for (Thread producer : producers) {
+            producer.start();
+        }
+
+        int[] nextByThread = new int[numThreads];
+        int taken = 0;
+        long deadline = System.currentTimeMillis() + 30000;
+        while (taken < numThreads * perThread && System.currentTimeMillis() < deadline) {
+            List<Buffer.Entry> batch = buffer.take(0, 0);
+            if (batch == null) {
+                Thread.yield();
+                continue;
+            }
+            for (Buffer.Entry entry : batch) {
+                int[] id = (int[]) entry.callbackArg;
+                assertEquals(nextByThread[id[0]]++, id[1]);
+                taken++;
+            }
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        assertEquals(numThreads * perThread, taken);
+        assertNull(buffer.take(0, 0));
+        assertFalse(buffer.isReady(0, 0));
+    }
+
+    private Buffer.Entry coalescing(String key, long sequence, int size) {
+        Buffer.Entry entry = new Buffer.Entry(new byte[size], key + "-" + sequence);
+        entry.coalesceKey = key;
+        entry.sequence = sequence;
+        return entry;
+    }
+
+    @Test
+    public void testCoalescingKeepsHighestSequenceInPlace() {
+        assertNull(buffer.putCoalescing(coalescing("a", 1, 10)));
+        assertNull(buffer.putCoalescing(coalescing("b", 1, 10)));
+
+        Buffer.Entry discarded = buffer.putCoalescing(coalescing("a", 3, 30));
+        assertEquals(10, discarded.bytes.length);
+        discarded = buffer.putCoalescing(coalescing("a", 2, 20));
+        assertEquals(20, discarded.bytes.length);
+
+        List<Buffer.Entry> batch = buffer.take(0, 0);
+        assertEquals(2, batch.size());
+        assertEquals("a-3", batch.get(0).callbackArg);
+        assertEquals(30, batch.get(0).bytes.length);
+        assertEquals("b-1", batch.get(1).callbackArg);
+        List callbackArgs = new ArrayList();
+        for (Buffer.Entry entry : StitchClient.withSuperseded(batch)) {
+            callbackArgs.add(entry.callbackArg);
+        }
+        assertEquals(Arrays.asList("a-1", "a-2", "a-3", "b-1"), callbackArgs);
+
+        // Once taken, an entry is no longer merged with new ones
+        assertNull(buffer.putCoalescing(coalescing("a", 4, 10)));
+        assertEquals(1, buffer.take(0, 0).size());
+    }
+
+    @Test
+    public void testBarrierStopsCoalescing() {
+        assertNull(buffer.putCoalescing(coalescing("a", 1, 10)));
+        buffer.putBarrier(new Buffer.Entry(new byte[5], "switch"));
+        assertNull(buffer.putCoalescing(coalescing("a", 2, 10)));
+
+        List<Buffer.Entry> batch = buffer.take(0, 0);
+        assertEquals(3, batch.size());
+        assertEquals("a-1", batch.get(0).callbackArg);
+        assertEquals("switch", batch.get(1).callbackArg);
+        assertEquals("a-2", batch.get(2).callbackArg);
+
+        // An entry from before the barrier isn't indexed again when
+        // its batch is put back
+        buffer.requeue(batch.subList(0, 1));
+        assertNull(buffer.putCoalescing(coalescing("a", 3, 10)));
+        assertEquals(2, buffer.take(0, 0).size());
+    }
 }
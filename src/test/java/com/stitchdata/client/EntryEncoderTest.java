@@ -0,0 +1,196 @@
+package com.stitchdata.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import com.cognitect.transit.TransitFactory;
+import com.cognitect.transit.impl.WriteHandlerMap;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class EntryEncoderTest {
+
+    private static Map record(int id) {
+        Map data = new HashMap();
+        data.put("id", id);
+        data.put("name", "widget " + id);
+        data.put("price", 19.99);
+        return data;
+    }
+
+    private static byte[] encodeWithNewWriter(Object value) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        StitchClient.newEntryWriter(baos, null).write(value);
+        return baos.toByteArray();
+    }
+
+    @Test
+    public void testReusedEncoderMatchesNewWriter() {
+        EntryEncoder encoder = new EntryEncoder(
+            (WriteHandlerMap) TransitFactory.writeHandlerMap(null));
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(encodeWithNewWriter(record(i)), encoder.encode(record(i)));
+        }
+    }
+
+    private static Object read(byte[] bytes) {
+        return TransitFactory.reader(TransitFactory.Format.JSON, new ByteArrayInputStream(bytes)).read();
+    }
+
+    @Test
+    public void testEncodesMessageWithPrecomputedFields() {
+        EntryEncoder encoder = new EntryEncoder(
+            (WriteHandlerMap) TransitFactory.writeHandlerMap(null));
+        Map constants = new LinkedHashMap();
+        constants.put("client_id", 1);
+        constants.put("namespace", "~escaped");
+        constants.put("key_names", Arrays.asList("id"));
+        String fields = EntryEncoder.encodeFields(constants, null);
+        for (int i = 0; i < 3; i++) {
+            Map expected = new HashMap(constants);
+            expected.put("action", "upsert");
+            expected.put("client_id", 1L);
+            expected.put("sequence", (long) i);
+            expected.put("data", record(i));
+            ((Map) expected.get("data")).put("id", (long) i);
+            assertEquals(expected, read(encoder.encodeMessage("upsert", fields, null, (long) i, record(i), null)));
+        }
+        Map expected = new HashMap(constants);
+        expected.put("client_id", 1L);
+        expected.put("action", "switch_view");
+        expected.put("table_version", 5L);
+        assertEquals(expected, read(encoder.encodeMessage("switch_view", fields, 5L, null, null, null)));
+    }
+
+    /**
+     * Reads entries back with nothing but transit's public API, so an
+     * upgrade that changes the internals we encode with is caught.
+     */
+    @Test
+    public void testBatchRoundTripsThroughPublicReader() {
+        EntryEncoder encoder = new EntryEncoder(
+            (WriteHandlerMap) TransitFactory.writeHandlerMap(null));
+        Map constants = new LinkedHashMap();
+        constants.put("client_id", 1);
+        constants.put("namespace", "ns");
+        String fields = EntryEncoder.encodeFields(constants, null);
+
+        Map data = new LinkedHashMap();
+        data.put("id", 1L);
+        data.put("tilde", "~not a tag");
+        data.put("caret", "^ ");
+        data.put("quote", "\"quoted\"\n");
+        data.put("price", new BigDecimal("19.99"));
+        data.put("ratio", 0.5);
+        data.put("flag", true);
+        data.put("missing", null);
+        data.put("when", new Date(1500000000000L));
+        data.put("uuid", UUID.fromString("7c8d8c56-5b43-4f1b-9a4e-2d1a6b5f0c11"));
+        data.put("tags", Arrays.asList("a", "b"));
+        Map nested = new LinkedHashMap();
+        nested.put("id", 2L);
+        data.put("nested", nested);
+
+        List<Buffer.Entry> entries = new ArrayList<Buffer.Entry>();
+        for (long sequence = 0; sequence < 3; sequence++) {
+            entries.add(new Buffer.Entry(
+                encoder.encodeMessage("upsert", fields, 7L, sequence, data, null), null));
+        }
+        List batch = (List) read(StitchClient.serializeEntries(entries));
+        assertEquals(3, batch.size());
+        for (int i = 0; i < 3; i++) {
+            Map message = (Map) batch.get(i);
+            assertEquals("upsert", message.get("action"));
+            assertEquals(1L, message.get("client_id"));
+            assertEquals("ns", message.get("namespace"));
+            assertEquals(7L, message.get("table_version"));
+            assertEquals((long) i, message.get("sequence"));
+            assertEquals(data, message.get("data"));
+        }
+    }
+
+    @Test
+    public void testDropsLargeOutputBuffers() {
+        EntryEncoder encoder = new EntryEncoder(
+            (WriteHandlerMap) TransitFactory.writeHandlerMap(null));
+        char[] chars = new char[EntryEncoder.MAX_RETAINED_BYTES * 2];
+        Arrays.fill(chars, 'a');
+        Map big = new HashMap();
+        big.put("a", new String(chars));
+        assertTrue(encoder.encode(big).length > EntryEncoder.MAX_RETAINED_BYTES * 2);
+        assertArrayEquals(encodeWithNewWriter(record(1)), encoder.encode(record(1)));
+    }
+
+    @Test
+    public void testRecoversFromFailedEncode() throws Exception {
+        StitchClient stitch = new StitchClientBuilder()
+            .withTableName("events")
+            .withKeyNames("id")
+            .build();
+        Map bad = record(1);
+        bad.put("unsupported", new Object());
+        try {
+            stitch.messageToBytes(StitchMessage.newUpsert().withSequence(1L).withData(bad));
+            fail("Expected encoding to fail");
+        }
+        catch (RuntimeException e) {
+        }
+        StitchMessage good = StitchMessage.newUpsert().withSequence(1L).withData(record(1));
+        byte[] bytes = stitch.messageToBytes(good);
+        assertEquals('[', bytes[0]);
+        assertArrayEquals(bytes, stitch.messageToBytes(good));
+        stitch.close();
+    }
+
+    @Test
+    public void testAllocatesLittleMoreThanTheEncodedRecord() throws Exception {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) {
+            return;
+        }
+
+        StitchClient stitch = new StitchClientBuilder()
+            .withTransport(new Transport() {
+                    public StitchResponse send(byte[] body) {
+                        return new StitchResponse(200, "ok", null);
+                    }
+                    public void close() {
+                    }
+                })
+            .withTableName("events")
+            .withKeyNames("id")
+            .build();
+        StitchMessage message = StitchMessage.newUpsert().withSequence(1L).withData(record(1));
+        int encodedBytes = stitch.messageToBytes(message).length;
+
+        int count = 10000;
+        // Warm up, so that the measurement doesn't include class
+        // loading or the interpreter.
+        for (int i = 0; i < count; i++) {
+            stitch.messageToBytes(message);
+        }
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < count; i++) {
+            stitch.messageToBytes(message);
+        }
+        long perRecord = (threads.getThreadAllocatedBytes(thread) - before) / count;
+        stitch.close();
+
+        assertTrue("Allocated " + perRecord + " bytes per " + encodedBytes + " byte record",
+                   perRecord < encodedBytes + 1024);
+    }
+}
@@ -0,0 +1,92 @@
+package com.stitchdata.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class FairExecutorTest {
+
+    private FairExecutor executor;
+
+    @Before
+    public void setUp() {
+        executor = new FairExecutor(Executors.newSingleThreadExecutor());
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void testLanesTakeTurns() throws Exception {
+        FairExecutor.Lane busy = executor.newLane();
+        FairExecutor.Lane quiet = executor.newLane();
+        final List<String> order = new ArrayList<String>();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(12);
+
+        // Hold the only thread while both lanes queue up work.
+        busy.execute(() -> {
+                started.countDown();
+                try {
+                    blocked.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 10; i++) {
+            busy.execute(() -> {
+                    order.add("busy");
+                    done.countDown();
+                });
+        }
+        for (int i = 0; i < 2; i++) {
+            quiet.execute(() -> {
+                    order.add("quiet");
+                    done.countDown();
+                });
+        }
+        blocked.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        // The quiet lane doesn't wait behind the busy lane's backlog;
+        // the lanes alternate.
+        assertEquals(Arrays.asList("busy", "quiet", "busy", "quiet", "busy"), order.subList(0, 5));
+        assertEquals(12, order.size());
+    }
+
+    @Test
+    public void testRunsEveryTaskFromConcurrentSubmitters() throws Exception {
+        FairExecutor shared = new FairExecutor(Executors.newFixedThreadPool(4));
+        try {
+            final int lanes = 8;
+            final int perLane = 1000;
+            final CountDownLatch done = new CountDownLatch(lanes * perLane);
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int l = 0; l < lanes; l++) {
+                final FairExecutor.Lane lane = shared.newLane();
+                threads.add(new Thread(() -> {
+                    for (int i = 0; i < perLane; i++) {
+                        lane.execute(done::countDown);
+                    }
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        }
+        finally {
+            shared.shutdown();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.stitchdata.client;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+
+    @Test
+    public void testBucketsCoverEveryValue() {
+        long[] values = {0, 1, 7, 8, 9, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE};
+        for (long value : values) {
+            int bucket = Histogram.bucket(value);
+            assertTrue(Histogram.lowerBound(bucket) <= value);
+            if (value < Long.MAX_VALUE) {
+                assertTrue(value < Histogram.lowerBound(bucket + 1));
+            }
+        }
+        for (int bucket = 1; bucket <= Histogram.bucket(Long.MAX_VALUE); bucket++) {
+            assertTrue(Histogram.lowerBound(bucket) > Histogram.lowerBound(bucket - 1));
+            assertEquals(bucket, Histogram.bucket(Histogram.lowerBound(bucket)));
+        }
+    }
+
+    @Test
+    public void testPercentilesAreWithinBucketWidth() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        HistogramSnapshot snapshot = histogram.snapshot(1);
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(500, snapshot.getMean());
+        assertEquals(1000, snapshot.getMax());
+        assertWithin(500, snapshot.getP50());
+        assertWithin(900, snapshot.getP90());
+        assertWithin(990, snapshot.getP99());
+    }
+
+    @Test
+    public void testEmptySnapshot() {
+        HistogramSnapshot snapshot = new Histogram().snapshot(1000);
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getP99());
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(actual + " should be within 12.5% of " + expected,
+                   actual <= expected && actual >= expected * 7 / 8);
+    }
+}
@@ -0,0 +1,201 @@
+package com.stitchdata.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPInputStream;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Exercises {@link HttpTransport} against a local HTTP server that
+ * records the requests it receives.
+ */
+public class HttpTransportTest {
+
+    private HttpServer server;
+    private String url;
+    private final List<String> authorizations = new CopyOnWriteArrayList<String>();
+    private final List<String> contentTypes = new CopyOnWriteArrayList<String>();
+    private final List<String> contentEncodings = new CopyOnWriteArrayList<String>();
+    private final List<String> contentLengths = new CopyOnWriteArrayList<String>();
+    private final List<String> bodies = new CopyOnWriteArrayList<String>();
+    private final List<Integer> remotePorts = new CopyOnWriteArrayList<Integer>();
+
+    private volatile int statusCode = 200;
+    private volatile String responseBody = "{\"status\":\"OK\",\"message\":\"Batch accepted\"}";
+    private volatile long delayMillis = 0;
+    private volatile String retryAfter = null;
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v2/import/push", new HttpHandler() {
+                public void handle(HttpExchange exchange) throws IOException {
+                    authorizations.add(exchange.getRequestHeaders().getFirst("Authorization"));
+                    contentTypes.add(exchange.getRequestHeaders().getFirst("Content-Type"));
+                    remotePorts.add(exchange.getRemoteAddress().getPort());
+                    String contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+                    contentEncodings.add(String.valueOf(contentEncoding));
+                    contentLengths.add(String.valueOf(exchange.getRequestHeaders().getFirst("Content-Length")));
+                    InputStream body = "gzip".equals(contentEncoding)
+                        ? new GZIPInputStream(exchange.getRequestBody())
+                        : exchange.getRequestBody();
+                    bodies.add(new String(readFully(body), "UTF-8"));
+                    try {
+                        Thread.sleep(delayMillis);
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    byte[] response = responseBody.getBytes("UTF-8");
+                    exchange.getResponseHeaders().add("Content-Type", "application/json");
+                    if (retryAfter != null) {
+                        exchange.getResponseHeaders().add("Retry-After", retryAfter);
+                    }
+                    exchange.sendResponseHeaders(statusCode, response.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(response);
+                    }
+                }
+            });
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/v2/import/push";
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            baos.write(buf, 0, n);
+        }
+        return baos.toByteArray();
+    }
+
+    private HttpTransport newTransport(int socketTimeoutMillis) {
+        return new HttpTransport(url, "secret", HttpTransport.newHttpClient(
+            2, 60000, 1000, socketTimeoutMillis, 1000));
+    }
+
+    @Test
+    public void testSendsBatch() throws IOException {
+        try (HttpTransport transport = newTransport(1000)) {
+            StitchResponse response = transport.send("[[\"^ \",\"a\",\"b\"]]".getBytes("UTF-8"));
+            assertTrue(response.isOk());
+            assertEquals("Batch accepted", response.getContent().getString("message"));
+        }
+        assertEquals("Bearer secret", authorizations.get(0));
+        assertEquals("application/transit+json", contentTypes.get(0));
+        assertEquals("[[\"^ \",\"a\",\"b\"]]", bodies.get(0));
+    }
+
+    @Test
+    public void testDoesNotParseServerErrors() throws IOException {
+        statusCode = 503;
+        try (HttpTransport transport = newTransport(1000)) {
+            StitchResponse response = transport.send("[]".getBytes("UTF-8"));
+            assertFalse(response.isOk());
+            assertEquals(503, response.getHttpStatusCode());
+            assertNull(response.getContent());
+        }
+    }
+
+    @Test
+    public void testReusesConnections() throws IOException {
+        try (HttpTransport transport = newTransport(1000)) {
+            for (int i = 0; i < 5; i++) {
+                assertTrue(transport.send("[]".getBytes("UTF-8")).isOk());
+            }
+        }
+        assertEquals(5, remotePorts.size());
+        for (Integer port : remotePorts) {
+            assertEquals(remotePorts.get(0), port);
+        }
+    }
+
+    @Test(expected=SocketTimeoutException.class)
+    public void testSocketTimeout() throws IOException {
+        delayMillis = 2000;
+        try (HttpTransport transport = newTransport(200)) {
+            transport.send("[]".getBytes("UTF-8"));
+        }
+    }
+
+    @Test
+    public void testCompressesLargeBodies() throws IOException {
+        StringBuilder batch = new StringBuilder("[");
+        for (int i = 0; i < 1000; i++) {
+            batch.append(i == 0 ? "" : ",").append("[\"^ \",\"a\",\"b\"]");
+        }
+        batch.append("]");
+
+        try (HttpTransport transport = new HttpTransport(
+                 url, "secret", HttpTransport.newHttpClient(2, 60000, 1000, 1000, 1000), 1000, 6)) {
+            assertTrue(transport.send("[]".getBytes("UTF-8")).isOk());
+            assertTrue(transport.send(batch.toString().getBytes("UTF-8")).isOk());
+        }
+        assertEquals("null", contentEncodings.get(0));
+        assertEquals("[]", bodies.get(0));
+        assertEquals("gzip", contentEncodings.get(1));
+        assertEquals(batch.toString(), bodies.get(1));
+    }
+
+    private static BatchBody batchBody(int records) throws IOException {
+        List<Buffer.Entry> entries = new ArrayList<Buffer.Entry>();
+        for (int i = 0; i < records; i++) {
+            entries.add(new Buffer.Entry(("[\"^ \",\"a\"," + i + "]").getBytes("UTF-8"), null));
+        }
+        return new BatchBody(entries);
+    }
+
+    @Test
+    public void testStreamsBatchBody() throws IOException {
+        BatchBody body = batchBody(3);
+        try (HttpTransport transport = newTransport(1000)) {
+            assertTrue(transport.send(body).isOk());
+        }
+        assertEquals("[[\"^ \",\"a\",0],[\"^ \",\"a\",1],[\"^ \",\"a\",2]]", bodies.get(0));
+        assertEquals(String.valueOf(body.length()), contentLengths.get(0));
+        assertEquals(body.length(), bodies.get(0).length());
+    }
+
+    @Test
+    public void testCompressesLargeBatchBodies() throws IOException {
+        BatchBody body = batchBody(1000);
+        try (HttpTransport transport = new HttpTransport(
+                 url, "secret", HttpTransport.newHttpClient(2, 60000, 1000, 1000, 1000), 1000, 6)) {
+            assertTrue(transport.send(body).isOk());
+        }
+        assertEquals("gzip", contentEncodings.get(0));
+        assertEquals(new String(body.toByteArray(), "UTF-8"), bodies.get(0));
+    }
+
+    @Test
+    public void testParsesRetryAfter() throws IOException {
+        statusCode = 429;
+        try (HttpTransport transport = newTransport(1000)) {
+            assertEquals(-1, transport.send("[]".getBytes("UTF-8")).getRetryAfterMillis());
+            retryAfter = "3";
+            assertEquals(3000, transport.send("[]".getBytes("UTF-8")).getRetryAfterMillis());
+            retryAfter = "Wed, 21 Oct 2015 07:28:00 GMT";
+            assertEquals(0, transport.send("[]".getBytes("UTF-8")).getRetryAfterMillis());
+            retryAfter = "soon";
+            assertEquals(-1, transport.send("[]".getBytes("UTF-8")).getRetryAfterMillis());
+        }
+    }
+}
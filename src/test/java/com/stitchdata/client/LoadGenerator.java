@@ -0,0 +1,264 @@
+package com.stitchdata.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drives producer threads through a real {@link StitchClient}, over
+ * HTTP, and reports throughput and latency. By default it starts a
+ * {@link StubGateServer} in the same process and sends to it; pass
+ * --url to send somewhere else.
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *   -Dexec.mainClass=com.stitchdata.client.LoadGenerator \
+ *   -Dexec.args="--threads 8 --records 1000000 --latency-ms 50 --throttle-rate 0.05 --retries 5"
+ * </pre>
+ *
+ * <p>Options, with their defaults:</p>
+ *
+ * <pre>
+ * --threads 4                producer threads
+ * --records 100000           records pushed, across all threads
+ * --record-bytes 200         approximate size of each record
+ * --batch-size-bytes 4194304
+ * --batch-delay-ms 60000
+ * --in-flight 1              see withMaxInFlightBatches
+ * --max-connections 20
+ * --background-flush false
+ * --virtual-threads false    send on virtual threads (Java 21+)
+ * --encoder-threads 0        see withEncoderThreads
+ * --retries 0                see withMaxRetries
+ * --gzip -1                  minimum body size to compress, or -1
+ * --url                      push URL; if absent, start a stub server
+ * --token secret
+ * </pre>
+ *
+ * <p>and for the embedded server, --latency-ms, --max-latency-ms,
+ * --error-rate, --throttle-rate, --retry-after-seconds, and
+ * --too-large-rate (see {@link StubGateServer}).</p>
+ */
+public class LoadGenerator {
+
+    private final Map<String, String> options;
+
+    LoadGenerator(Map<String, String> options) {
+        this.options = options;
+    }
+
+    /**
+     * Parses arguments of the form {@code --name value}. A flag
+     * followed by another flag, or by nothing, is set to "true".
+     */
+    static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<String, String>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Expected an option, got " + args[i]);
+            }
+            String name = args[i].substring(2);
+            if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                options.put(name, args[++i]);
+            }
+            else {
+                options.put(name, "true");
+            }
+        }
+        return options;
+    }
+
+    private int intOption(String name, int defaultValue) {
+        return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+    }
+
+    /**
+     * What a run measured.
+     */
+    static class Result {
+        long elapsedNanos;
+        long recordsPushed;
+        long pushErrors;
+        IOException closeError;
+        long recordsDelivered;
+        long bytesDelivered;
+        HistogramSnapshot pushMicros;
+        HistogramSnapshot requestMillis;
+        Map<Integer, Long> responsesByStatus;
+
+        double perSecond(long count) {
+            return count * 1e9 / Math.max(1, elapsedNanos);
+        }
+
+        public String toString() {
+            return String.format(
+                "elapsed            %.2f s%n" +
+                "records pushed     %d (%d failed)%n" +
+                "records delivered  %d (%.0f records/s)%n" +
+                "bytes delivered    %d (%.0f bytes/s)%n" +
+                "push latency us    %s%n" +
+                "request latency ms %s%n" +
+                "responses          %s%n" +
+                "close              %s",
+                elapsedNanos / 1e9,
+                recordsPushed, pushErrors,
+                recordsDelivered, perSecond(recordsDelivered),
+                bytesDelivered, perSecond(bytesDelivered),
+                pushMicros, requestMillis,
+                responsesByStatus,
+                closeError == null ? "ok" : closeError.toString());
+        }
+    }
+
+    /**
+     * Counts what the client delivers and how long requests take.
+     */
+    private static class Recorder implements MetricsListener {
+        final LongAdder records = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final Histogram requestNanos = new Histogram();
+        final ConcurrentHashMap<Integer, AtomicLong> responses = new ConcurrentHashMap<Integer, AtomicLong>();
+
+        public void onRequest(int statusCode, int bytes, long nanos) {
+            requestNanos.record(nanos);
+            responses.computeIfAbsent(statusCode, s -> new AtomicLong()).incrementAndGet();
+        }
+
+        public void onRequestFailed(IOException error, long nanos) {
+            requestNanos.record(nanos);
+            responses.computeIfAbsent(-1, s -> new AtomicLong()).incrementAndGet();
+        }
+
+        public void onBatchDelivered(int records, int bytes) {
+            this.records.add(records);
+            this.bytes.add(bytes);
+        }
+    }
+
+    Result run() throws Exception {
+        StubGateServer server = null;
+        String url = options.get("url");
+        if (url == null) {
+            server = new StubGateServer(0).configure(options);
+            url = server.getUrl();
+        }
+        try {
+            return run(url);
+        }
+        finally {
+            if (server != null) {
+                server.close();
+            }
+        }
+    }
+
+    private Result run(String url) throws Exception {
+        final int numThreads = intOption("threads", 4);
+        final int numRecords = intOption("records", 100000);
+        final int recordBytes = intOption("record-bytes", 200);
+
+        Recorder recorder = new Recorder();
+        StitchClientBuilder builder = new StitchClientBuilder()
+            .withPushUrl(url)
+            .withToken(options.getOrDefault("token", "secret"))
+            .withClientId(1)
+            .withNamespace("load_test")
+            .withTableName("events")
+            .withKeyNames("id")
+            .withBatchSizeBytes(intOption("batch-size-bytes", StitchClientBuilder.DEFAULT_BATCH_SIZE_BYTES))
+            .withBatchDelayMillis(intOption("batch-delay-ms", StitchClientBuilder.DEFAULT_BATCH_DELAY_MILLIS))
+            .withMaxInFlightBatches(intOption("in-flight", 1))
+            .withMaxConnections(intOption("max-connections", StitchClientBuilder.DEFAULT_MAX_CONNECTIONS))
+            .withBackgroundFlush(Boolean.parseBoolean(options.getOrDefault("background-flush", "false")))
+            .withVirtualThreads(Boolean.parseBoolean(options.getOrDefault("virtual-threads", "false")))
+            .withEncoderThreads(intOption("encoder-threads", 0))
+            .withMaxRetries(intOption("retries", 0))
+            .withRetryBackoffMillis(10, 10000)
+            .withMetricsListener(recorder);
+        int gzipMinBytes = intOption("gzip", -1);
+        if (gzipMinBytes >= 0) {
+            builder.withGzipCompression(gzipMinBytes);
+        }
+        final StitchClient stitch = builder.build();
+
+        char[] padding = new char[recordBytes];
+        Arrays.fill(padding, 'x');
+        final String payload = new String(padding);
+        final Histogram pushNanos = new Histogram();
+        final LongAdder pushed = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final AtomicLong ids = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < numThreads; t++) {
+            final int count = numRecords / numThreads + (t < numRecords % numThreads ? 1 : 0);
+            Thread thread = new Thread(() -> {
+                    try {
+                        start.await();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < count; i++) {
+                        Map data = new HashMap();
+                        data.put("id", ids.incrementAndGet());
+                        data.put("payload", payload);
+                        long begin = System.nanoTime();
+                        try {
+                            stitch.push(StitchMessage.newUpsert()
+                                        .withSequence(System.currentTimeMillis())
+                                        .withData(data));
+                            pushed.increment();
+                        }
+                        catch (IOException e) {
+                            errors.increment();
+                        }
+                        pushNanos.record(System.nanoTime() - begin);
+                    }
+                }, "load-" + t);
+            threads.add(thread);
+            thread.start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        IOException closeError = null;
+        try {
+            stitch.close();
+        }
+        catch (IOException e) {
+            closeError = e;
+        }
+
+        Result result = new Result();
+        result.elapsedNanos = System.nanoTime() - begin;
+        result.recordsPushed = pushed.sum() + errors.sum();
+        result.pushErrors = errors.sum();
+        result.closeError = closeError;
+        result.recordsDelivered = recorder.records.sum();
+        result.bytesDelivered = recorder.bytes.sum();
+        result.pushMicros = pushNanos.snapshot(TimeUnit.MICROSECONDS.toNanos(1));
+        result.requestMillis = recorder.requestNanos.snapshot(TimeUnit.MILLISECONDS.toNanos(1));
+        result.responsesByStatus = new HashMap<Integer, Long>();
+        for (Map.Entry<Integer, AtomicLong> entry : recorder.responses.entrySet()) {
+            result.responsesByStatus.put(entry.getKey(), entry.getValue().get());
+        }
+        return result;
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(new LoadGenerator(parseOptions(args)).run());
+    }
+}
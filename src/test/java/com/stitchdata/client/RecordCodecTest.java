@@ -0,0 +1,112 @@
+package com.stitchdata.client;
+
+import java.io.ByteArrayInputStream;
+import java.lang.invoke.MethodHandle;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import com.cognitect.transit.TransitFactory;
+import com.cognitect.transit.impl.WriteHandlerMap;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class RecordCodecTest {
+
+    public static class Widget {
+        public long id;
+        private String name;
+        private boolean active;
+        private String URL = "http://example.com";
+
+        Widget(long id, String name) {
+            this.id = id;
+            this.name = name;
+            this.active = id % 2 == 0;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isActive() {
+            return active;
+        }
+
+        public String getURL() {
+            return URL;
+        }
+
+        public static String getStatic() {
+            return "not a property";
+        }
+    }
+
+    private static Map widgetData(long id, String name) {
+        Map data = new HashMap();
+        data.put("id", id);
+        data.put("name", name);
+        data.put("active", id % 2 == 0);
+        data.put("URL", "http://example.com");
+        return data;
+    }
+
+    @Test
+    public void testFindsFieldsAndGettersInOrder() {
+        RecordCodec codec = RecordCodec.forClass(Widget.class);
+        assertEquals(Arrays.asList("URL", "active", "id", "name"), Arrays.asList(codec.names));
+        assertSame(codec, RecordCodec.forClass(Widget.class));
+
+        Widget widget = new Widget(3, "gear");
+        MethodHandle[] keys = codec.keyGetters(Arrays.asList("id", "name", "active", "missing"));
+        assertEquals(3L, RecordCodec.get(widget, keys[0]));
+        assertEquals("gear", RecordCodec.get(widget, keys[1]));
+        assertEquals(false, RecordCodec.get(widget, keys[2]));
+        assertNull(RecordCodec.get(widget, keys[3]));
+        assertSame(keys, codec.keyGetters(Arrays.asList("id", "name", "active", "missing")));
+    }
+
+    @Test
+    public void testExplainsInaccessibleClass() {
+        // A non-public class in a package java.base doesn't open.
+        // Java 8 lets us in, so there's nothing to explain.
+        Assume.assumeTrue(!System.getProperty("java.specification.version").startsWith("1."));
+        try {
+            RecordCodec.forClass(Collections.unmodifiableList(Arrays.asList(1)).getClass());
+            fail("Expected the class to be inaccessible");
+        }
+        catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("must be open"));
+        }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testRejectsClassWithoutProperties() {
+        RecordCodec.forClass(Object.class);
+    }
+
+    @Test
+    public void testEncodesRecordLikeEquivalentMap() {
+        EntryEncoder encoder = new EntryEncoder(
+            (WriteHandlerMap) TransitFactory.writeHandlerMap(null));
+        String fields = EntryEncoder.encodeFields(Collections.singletonMap("client_id", 1), null);
+        for (long i = 0; i < 3; i++) {
+            byte[] fromRecord = encoder.encodeMessage("upsert", fields, null, i, null, new Widget(i, "w" + i));
+            Map read = (Map) TransitFactory.reader(
+                TransitFactory.Format.JSON, new ByteArrayInputStream(fromRecord)).read();
+            assertEquals(widgetData(i, "w" + i), read.get("data"));
+        }
+    }
+
+    @Test
+    public void testRecordsArePartitionedLikeMaps() {
+        List<String> keyNames = Arrays.asList("id", "name");
+        for (long i = 0; i < 10; i++) {
+            StitchMessage fromRecord = StitchMessage.newUpsert().withRecord(new Widget(i, "w" + i));
+            StitchMessage fromMap = StitchMessage.newUpsert().withData(widgetData(i, "w" + i));
+            assertEquals(StitchClient.partitionHash(fromMap, "widgets", keyNames),
+                         StitchClient.partitionHash(fromRecord, "widgets", keyNames));
+        }
+    }
+}
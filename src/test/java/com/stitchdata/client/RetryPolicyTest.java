@@ -0,0 +1,66 @@
+package com.stitchdata.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class RetryPolicyTest {
+
+    @Test
+    public void testClassifiesFailures() {
+        assertTrue(RetryPolicy.isRetryable(new StitchResponse(503, "", null)));
+        assertTrue(RetryPolicy.isRetryable(new StitchResponse(429, "", null)));
+        assertTrue(RetryPolicy.isRetryable(new StitchResponse(408, "", null)));
+        assertFalse(RetryPolicy.isRetryable(new StitchResponse(400, "", null)));
+        assertFalse(RetryPolicy.isRetryable(new StitchResponse(413, "", null)));
+        assertTrue(RetryPolicy.isRetryable(new IOException("Connection reset")));
+        assertTrue(RetryPolicy.isRetryable(new SocketTimeoutException()));
+        assertFalse(RetryPolicy.isRetryable(new InterruptedIOException()));
+    }
+
+    @Test
+    public void testBackoffIsBoundedAndJittered() {
+        RetryPolicy policy = new RetryPolicy(100, 10, 1000, 1, 1000);
+        long max = 0;
+        for (int i = 0; i < 50; i++) {
+            long delay = policy.nextDelayMillis(1, -1);
+            assertTrue(delay >= 0 && delay <= 20);
+            long capped = policy.nextDelayMillis(20, -1);
+            assertTrue(capped >= 0 && capped <= 1000);
+            max = Math.max(max, capped);
+        }
+        assertTrue(max > 20);
+    }
+
+    @Test
+    public void testWaitsAtLeastRetryAfter() {
+        RetryPolicy policy = new RetryPolicy(100, 10, 1000, 1, 100);
+        assertTrue(policy.nextDelayMillis(0, 500) >= 500);
+        assertEquals(-1, policy.nextDelayMillis(0, 5000));
+        assertTrue(policy.holdMillis(5000) >= 5000);
+    }
+
+    @Test
+    public void testStopsAfterMaxRetries() {
+        RetryPolicy policy = new RetryPolicy(2, 1, 1, 1, 100);
+        assertTrue(policy.nextDelayMillis(0, -1) >= 0);
+        assertTrue(policy.nextDelayMillis(1, -1) >= 0);
+        assertEquals(-1, policy.nextDelayMillis(2, -1));
+    }
+
+    @Test
+    public void testBudgetLimitsRetries() {
+        RetryPolicy policy = new RetryPolicy(100, 1, 1, 0.5, 2);
+        // The reserve allows two retries
+        assertTrue(policy.nextDelayMillis(0, -1) >= 0);
+        assertTrue(policy.nextDelayMillis(0, -1) >= 0);
+        assertEquals(-1, policy.nextDelayMillis(0, -1));
+        // Two more batches earn one more
+        policy.onFirstAttempt();
+        policy.onFirstAttempt();
+        assertTrue(policy.nextDelayMillis(0, -1) >= 0);
+        assertEquals(-1, policy.nextDelayMillis(0, -1));
+    }
+}
@@ -1,24 +1,47 @@
 package com.stitchdata.client;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.io.ByteArrayInputStream;
 import java.io.EOFException;
 import com.cognitect.transit.TransitFactory;
+import com.cognitect.transit.WriteHandler;
 import com.cognitect.transit.Reader;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
 import org.junit.*;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
 import static org.junit.Assert.*;
 
 /**
  * Attempts to exercise concurrent calls to {@link
  * StitchClient#push(StitchMessage)}. Starts four threads that each
- * send 10,000 records to a {@link DummyStitchClient}, which just
+ * send 10,000 records to a client with a {@link DummyTransport}, which just
  * counts the number of records received from each thread. Then we
  * assert that the correct number of records were seen. This does not
  * attempt to guarantee that calls to {@link
@@ -34,22 +57,15 @@ public class StitchClientTest  {
     List<AtomicInteger> numRecordsByThreadId = new ArrayList<AtomicInteger>();
 
     /**
-     * Overrides StitchClient for test purposes. Uses a blank URL and
-     * null values for most of the properties. Overrides sendBatch so
-     * that it expects records that have a "threadId" field, and
-     * updates numRecordsByThreadId to reflect the number of records
-     * seen with that threadId.
+     * Transport for test purposes. Expects records that have a
+     * "threadId" field, and updates numRecordsByThreadId to reflect
+     * the number of records seen with that threadId.
      */
-    private class DummyStitchClient extends StitchClient {
+    private class DummyTransport implements Transport {
 
-        DummyStitchClient(FlushHandler flushHandler) {
-            super("", 0, null, null, null, Arrays.asList(new String[] { "id" }), StitchClientBuilder.DEFAULT_BATCH_SIZE_BYTES, 60000000, flushHandler, null);
-        }
-
-        @Override
-        StitchResponse sendToStitch(String body) throws IOException {
+        public StitchResponse send(byte[] body) throws IOException {
 
-            ByteArrayInputStream bais = new ByteArrayInputStream(body.getBytes());
+            ByteArrayInputStream bais = new ByteArrayInputStream(body);
             Reader reader = TransitFactory.reader(TransitFactory.Format.JSON, bais);
             List records = reader.read();
             int counts[] = new int[NUM_THREADS];
@@ -72,6 +88,21 @@ public class StitchClientTest  {
             // }
             // System.err.println("");
         }
+
+        public void close() {
+        }
+    }
+
+    /**
+     * Returns a builder for a client that sends to the given
+     * transport, with a batch delay long enough that batches are
+     * only sent based on size.
+     */
+    private static StitchClientBuilder dummyClient(Transport transport) {
+        return new StitchClientBuilder()
+            .withTransport(transport)
+            .withKeyNames("id")
+            .withBatchDelayMillis(60000000);
     }
 
     @Before
@@ -125,7 +156,7 @@ public class StitchClientTest  {
     @Test
     public void testConcurrentPushesWithoutCallback() throws IOException {
 
-        try (StitchClient stitch = new DummyStitchClient(null)) {
+        try (StitchClient stitch = dummyClient(new DummyTransport()).build()) {
 
             // Initialize and start all the threads
             List<Thread> threads = new ArrayList<Thread>();
@@ -165,7 +196,9 @@ public class StitchClientTest  {
     public void testConcurrentPushesWithCallback() throws IOException {
 
         SetFlushHandler flushHandler = new SetFlushHandler();
-        try (StitchClient stitch = new DummyStitchClient(flushHandler)) {
+        try (StitchClient stitch = dummyClient(new DummyTransport())
+             .withFlushHandler(flushHandler)
+             .build()) {
 
             // Initialize and start all the threads
             List<Thread> threads = new ArrayList<Thread>();
@@ -192,4 +225,1414 @@ public class StitchClientTest  {
 
         assertEquals(NUM_THREADS * NUM_RECORDS_PER_THREAD, flushHandler.callbackArgsReceived.size());
     }
+
+    @Test
+    public void testBackgroundFlushDeliversWithoutFurtherPushes() throws Exception {
+        SetFlushHandler flushHandler = new SetFlushHandler();
+        try (StitchClient stitch = dummyClient(new DummyTransport())
+             .withFlushHandler(flushHandler)
+             .withBatchDelayMillis(100)
+             .withBackgroundFlush(true)
+             .build()) {
+            Map record = new HashMap();
+            record.put("threadId", 0);
+            for (int i = 0; i < 10; i++) {
+                record.put("recordId", i);
+                stitch.push(StitchMessage.newUpsert()
+                            .withSequence(i)
+                            .withData(record), i);
+            }
+
+            // Nobody calls push or flush again, so the scheduler has
+            // to deliver the records once the batch delay passes.
+            long deadline = System.currentTimeMillis() + 10000;
+            while (flushHandler.callbackArgsReceived.size() < 10 &&
+                   System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(10, flushHandler.callbackArgsReceived.size());
+            assertEquals(10, numRecordsByThreadId.get(0).get());
+        }
+    }
+
+    @Test
+    public void testPushAsyncCompletesFutures() throws Exception {
+        SetFlushHandler flushHandler = new SetFlushHandler();
+        final List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+        try (final StitchClient stitch = dummyClient(new DummyTransport())
+             .withFlushHandler(flushHandler)
+             .withBatchSizeBytes(20000)
+             .withMaxInFlightBatches(3)
+             .build()) {
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int i = 0; i < NUM_THREADS; i++) {
+                final int threadId = i;
+                threads.add(new Thread(() -> {
+                    for (int recordId = 0; recordId < 1000; recordId++) {
+                        Map record = new HashMap();
+                        record.put("threadId", threadId);
+                        record.put("recordId", recordId);
+                        CompletableFuture<Void> future = stitch.pushAsync(
+                            StitchMessage.newUpsert().withSequence(0).withData(record),
+                            String.format("thread-%d-record-%d", threadId, recordId));
+                        synchronized (futures) {
+                            futures.add(future);
+                        }
+                    }
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            // Full batches are delivered without anyone calling flush
+            CompletableFuture.allOf(futures.subList(0, 1000).toArray(new CompletableFuture[0])).get();
+        }
+
+        for (CompletableFuture<Void> future : futures) {
+            assertTrue(future.isDone());
+            assertFalse(future.isCompletedExceptionally());
+        }
+        for (int i = 0; i < NUM_THREADS; i++) {
+            assertEquals(1000, numRecordsByThreadId.get(i).get());
+        }
+        assertEquals(NUM_THREADS * 1000, flushHandler.callbackArgsReceived.size());
+    }
+
+    @Test
+    public void testPushAsyncFailsFutureOnError() throws Exception {
+        StitchClient stitch = dummyClient(new DummyTransport() {
+                @Override
+                public StitchResponse send(byte[] body) {
+                    return new StitchResponse(503, "Service Unavailable", null);
+                }
+            }).build();
+        CompletableFuture<Void> future = stitch.pushAsync(
+            StitchMessage.newUpsert().withSequence(0).withData(new HashMap()));
+        stitch.close();
+        try {
+            future.get();
+            fail("Expected delivery to fail");
+        }
+        catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof StitchException);
+            assertEquals(503, ((StitchException) e.getCause()).getResponse().getHttpStatusCode());
+        }
+    }
+
+    @Test
+    public void testSubscriberBoundsDemandAndPublishesAcknowledgements() throws Exception {
+        final int numMessages = 2000;
+        final AtomicInteger acknowledged = new AtomicInteger();
+        final AtomicInteger maxUnacknowledged = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch completed = new CountDownLatch(1);
+        try (StitchClient stitch = dummyClient(new DummyTransport())
+             .withBatchSizeBytes(2000)
+             .withMaxBufferedRecords(50)
+             .withBackgroundFlush(true)
+             .build()) {
+            StitchSubscriber subscriber = new StitchSubscriber(stitch);
+            subscriber.getAcknowledgements().subscribe(new Subscriber<StitchMessage>() {
+                    private Subscription subscription;
+                    public void onSubscribe(Subscription s) {
+                        subscription = s;
+                        s.request(10);
+                    }
+                    public void onNext(StitchMessage message) {
+                        if (acknowledged.incrementAndGet() % 10 == 0) {
+                            subscription.request(10);
+                        }
+                    }
+                    public void onError(Throwable error) {
+                        failure.set(error);
+                        completed.countDown();
+                    }
+                    public void onComplete() {
+                        completed.countDown();
+                    }
+                });
+
+            // Emits messages on its own thread, as fast as it's asked
+            final long[] requested = new long[1];
+            subscriber.onSubscribe(new Subscription() {
+                    public void request(long n) {
+                        synchronized (requested) {
+                            requested[0] += n;
+                            int unacknowledged = (int) (requested[0] - acknowledged.get());
+                            maxUnacknowledged.accumulateAndGet(unacknowledged, Math::max);
+                            requested.notifyAll();
+                        }
+                    }
+                    public void cancel() {
+                    }
+                });
+            for (int i = 0; i < numMessages; i++) {
+                synchronized (requested) {
+                    while (requested[0] <= i) {
+                        requested.wait();
+                    }
+                }
+                Map record = new HashMap();
+                record.put("threadId", 0);
+                record.put("id", i);
+                subscriber.onNext(StitchMessage.newUpsert().withSequence(i).withData(record));
+            }
+            subscriber.onComplete();
+            assertTrue(completed.await(10, TimeUnit.SECONDS));
+        }
+        assertNull(failure.get());
+        assertEquals(numMessages, acknowledged.get());
+        assertEquals(numMessages, numRecordsByThreadId.get(0).get());
+        assertTrue("Requested " + maxUnacknowledged.get() + " messages ahead",
+                   maxUnacknowledged.get() <= 50);
+    }
+
+    @Test
+    public void testSubscriberReportsFlushFailure() throws Exception {
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch completed = new CountDownLatch(1);
+        try (StitchClient stitch = dummyClient(new DummyTransport())
+             .withFlushHandler(callbackArgs -> {
+                     throw new IllegalStateException("handler");
+                 })
+             .build()) {
+            StitchSubscriber subscriber = new StitchSubscriber(stitch);
+            subscriber.getAcknowledgements().subscribe(new Subscriber<StitchMessage>() {
+                    public void onSubscribe(Subscription s) {
+                        s.request(Long.MAX_VALUE);
+                    }
+                    public void onNext(StitchMessage message) {
+                    }
+                    public void onError(Throwable error) {
+                        failure.set(error);
+                        completed.countDown();
+                    }
+                    public void onComplete() {
+                        completed.countDown();
+                    }
+                });
+            subscriber.onSubscribe(new Subscription() {
+                    public void request(long n) {
+                    }
+                    public void cancel() {
+                    }
+                });
+            subscriber.onNext(recordMessage(0, 0));
+            subscriber.onComplete();
+            assertTrue(completed.await(10, TimeUnit.SECONDS));
+        }
+        catch (IllegalStateException e) {
+            // Thrown again from close
+        }
+        assertNotNull(failure.get());
+        assertEquals("handler", failure.get().getMessage());
+    }
+
+    @Test
+    public void testCloseWaitsForSubscriberFlush() throws Exception {
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final StitchClient stitch = dummyClient(new DummyTransport() {
+                @Override
+                public StitchResponse send(byte[] body) throws IOException {
+                    sending.countDown();
+                    try {
+                        release.await();
+                    }
+                    catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                    return super.send(body);
+                }
+            })
+            .build();
+        final List<Throwable> failures = new CopyOnWriteArrayList<Throwable>();
+        final CountDownLatch completed = new CountDownLatch(2);
+        Subscriber<StitchMessage> acknowledgements = new Subscriber<StitchMessage>() {
+                public void onSubscribe(Subscription s) {
+                    s.request(Long.MAX_VALUE);
+                }
+                public void onNext(StitchMessage message) {
+                }
+                public void onError(Throwable error) {
+                    failures.add(error);
+                    completed.countDown();
+                }
+                public void onComplete() {
+                    completed.countDown();
+                }
+            };
+        Subscription upstream = new Subscription() {
+                public void request(long n) {
+                }
+                public void cancel() {
+                }
+            };
+
+        StitchSubscriber subscriber = new StitchSubscriber(stitch);
+        subscriber.getAcknowledgements().subscribe(acknowledgements);
+        subscriber.onSubscribe(upstream);
+        subscriber.onNext(recordMessage(0, 0));
+        subscriber.onComplete();
+        assertTrue(sending.await(10, TimeUnit.SECONDS));
+
+        Thread closer = new Thread(() -> {
+                try {
+                    stitch.close();
+                }
+                catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+        closer.start();
+        closer.join(200);
+        assertTrue(closer.isAlive());
+        release.countDown();
+        closer.join(10000);
+        assertFalse(closer.isAlive());
+        assertEquals(1, numRecordsByThreadId.get(0).get());
+
+        // Completing once the client is closed fails rather than
+        // flushing a closed client.
+        StitchSubscriber late = new StitchSubscriber(stitch);
+        late.getAcknowledgements().subscribe(acknowledgements);
+        late.onSubscribe(upstream);
+        late.onComplete();
+        assertTrue(completed.await(10, TimeUnit.SECONDS));
+        assertEquals(1, failures.size());
+        assertTrue(failures.get(0) instanceof IOException);
+    }
+
+    @Test
+    public void testPushAllDeliversEveryMessageInOrderPerKey() throws Exception {
+        final ConcurrentHashMap<Long,Long> lastSequenceById = new ConcurrentHashMap<Long,Long>();
+        final AtomicInteger outOfOrder = new AtomicInteger();
+        final AtomicInteger numRecords = new AtomicInteger();
+        final AtomicInteger numAcknowledged = new AtomicInteger();
+        try (StitchClient stitch = dummyClient(new DummyTransport() {
+                @Override
+                public StitchResponse send(byte[] body) throws IOException {
+                    Reader reader = TransitFactory.reader(
+                        TransitFactory.Format.JSON, new ByteArrayInputStream(body));
+                    for (Object record : (List) reader.read()) {
+                        Long sequence = (Long) ((Map) record).get("sequence");
+                        Long id = (Long) ((Map) ((Map) record).get("data")).get("id");
+                        Long last = lastSequenceById.put(id, sequence);
+                        if (last != null && last >= sequence) {
+                            outOfOrder.incrementAndGet();
+                        }
+                        numRecords.incrementAndGet();
+                    }
+                    return new StitchResponse(200, "ok", null);
+                }
+            })
+             .withFlushHandler(callbackArgs -> numAcknowledged.addAndGet(callbackArgs.size()))
+             .withBatchSizeBytes(20000)
+             .withMaxInFlightBatches(4)
+             .build()) {
+            // Spans several chunks, with the last one partly full
+            int numMessages = StitchClient.PUSH_ALL_CHUNK_SIZE * 2 + 100;
+            List<StitchMessage> messages = new ArrayList<StitchMessage>();
+            for (int i = 0; i < numMessages; i++) {
+                Map record = new HashMap();
+                record.put("id", i % 10);
+                messages.add(StitchMessage.newUpsert().withSequence(i).withData(record));
+            }
+            stitch.pushAll(messages.stream());
+
+            // Everything is delivered before pushAll returns
+            assertEquals(numMessages, numRecords.get());
+            assertEquals(numMessages, numAcknowledged.get());
+            assertEquals(0, stitch.getBufferedRecords());
+        }
+        assertEquals(0, outOfOrder.get());
+    }
+
+    @Test
+    public void testPushAllThrowsDeliveryFailure() throws Exception {
+        try (StitchClient stitch = dummyClient(new DummyTransport() {
+                @Override
+                public StitchResponse send(byte[] body) {
+                    return new StitchResponse(503, "Service Unavailable", null);
+                }
+            }).build()) {
+            List<StitchMessage> messages = new ArrayList<StitchMessage>();
+            for (int i = 0; i < 10; i++) {
+                messages.add(StitchMessage.newUpsert().withSequence(i).withData(new HashMap()));
+            }
+            try {
+                stitch.pushAll(messages);
+                fail("Expected delivery to fail");
+            }
+            catch (StitchException e) {
+                assertEquals(503, e.getResponse().getHttpStatusCode());
+            }
+        }
+    }
+
+    @Test
+    public void testPushAllWaitsOnlyForItsOwnMessages() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        StitchClient stitch = dummyClient(new DummyTransport())
+            .withFlushHandler(callbackArgs -> {
+                    if (callbackArgs.contains("other")) {
+                        try {
+                            release.await();
+                        }
+                        catch (InterruptedException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                }, executor)
+            .build();
+        try {
+            // Another thread's record is delivered, and the handler
+            // is stuck acknowledging it.
+            CompletableFuture<Void> other = stitch.pushAsync(recordMessage(0, 0), "other");
+            stitch.makeRoom();
+            other.get(10, TimeUnit.SECONDS);
+
+            // A flush would wait for that handler call; pushAll
+            // only waits for its own messages to be delivered.
+            List<StitchMessage> messages = new ArrayList<StitchMessage>();
+            for (int i = 1; i <= 100; i++) {
+                messages.add(recordMessage(0, i));
+            }
+            stitch.pushAll(messages);
+            assertEquals(101, numRecordsByThreadId.get(0).get());
+        }
+        finally {
+            release.countDown();
+            stitch.close();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testEncoderThreadsPreserveOrderPerKey() throws Exception {
+        final ConcurrentHashMap<Long,Long> lastSequenceById = new ConcurrentHashMap<Long,Long>();
+        final AtomicInteger outOfOrder = new AtomicInteger();
+        final AtomicInteger numRecords = new AtomicInteger();
+        final Set<String> encodedOn = ConcurrentHashMap.newKeySet();
+        final StitchClient stitch = dummyClient(new DummyTransport() {
+                @Override
+                public StitchResponse send(byte[] body) throws IOException {
+                    Reader reader = TransitFactory.reader(
+                        TransitFactory.Format.JSON, new ByteArrayInputStream(body));
+                    for (Object record : (List) reader.read()) {
+                        Long sequence = (Long) ((Map) record).get("sequence");
+                        Long id = (Long) ((Map) ((Map) record).get("data")).get("id");
+                        Long last = lastSequenceById.put(id, sequence);
+                        if (last != null && last >= sequence) {
+                            outOfOrder.incrementAndGet();
+                        }
+                        numRecords.incrementAndGet();
+                    }
+                    return new StitchResponse(200, "ok", null);
+                }
+            })
+            .withBatchSizeBytes(2000)
+            .withMaxInFlightBatches(4)
+            .withEncoderThreads(3, 16)
+            .withMetricsListener(new MetricsListener() {
+                    public void onMessageEncoded(int bytes, long nanos) {
+                        encodedOn.add(Thread.currentThread().getName());
+                    }
+                })
+            .build();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < NUM_THREADS; i++) {
+            final int threadId = i;
+            threads.add(new Thread(() -> {
+                for (int sequence = 0; sequence < 250; sequence++) {
+                    for (int key = 0; key < 10; key++) {
+                        Map record = new HashMap();
+                        record.put("id", threadId * 10 + key);
+                        try {
+                            stitch.push(StitchMessage.newUpsert()
+                                        .withSequence(sequence)
+                                        .withData(record));
+                        }
+                        catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        stitch.close();
+
+        assertEquals(NUM_THREADS * 250 * 10, numRecords.get());
+        assertEquals(0, outOfOrder.get());
+        assertFalse(encodedOn.isEmpty());
+        for (String name : encodedOn) {
+            assertTrue(name, name.startsWith("stitch-encoder-"));
+        }
+    }
+
+    @Test
+    public void testEncoderThreadErrorsAreThrownFromFlush() throws Exception {
+        StitchClient stitch = dummyClient(new DummyTransport())
+            .withMaxBufferedRecords(1)
+            .withBufferFullPolicy(BufferFullPolicy.FAIL)
+            .withEncoderThreads(1)
+            .build();
+        Map record = new HashMap();
+        record.put("threadId", 0);
+        stitch.push(StitchMessage.newUpsert().withSequence(0).withData(record));
+        stitch.push(StitchMessage.newUpsert().withSequence(1).withData(record));
+        try {
+            stitch.flush();
+            fail("Expected the second record not to fit");
+        }
+        catch (BufferFullException e) {
+        }
+        stitch.close();
+        assertEquals(1, numRecordsByThreadId.get(0).get());
+    }
+
+    @Test
+    public void testEncoderThreadsRejectPushAndFlushAfterClose() throws Exception {
+        StitchClient stitch = dummyClient(new DummyTransport())
+            .withEncoderThreads(2, 1)
+            .build();
+        stitch.push(recordMessage(0, 0));
+        stitch.close();
+        assertEquals(1, numRecordsByThreadId.get(0).get());
+
+        // More pushes than the queues hold, so none of them may wait
+        // for a thread that has stopped
+        for (int i = 1; i <= 4; i++) {
+            try {
+                stitch.push(recordMessage(0, i));
+                fail("Expected push to fail after close");
+            }
+            catch (IOException e) {
+            }
+        }
+        try {
+            stitch.pushAsync(recordMessage(0, 5), null).get(5, TimeUnit.SECONDS);
+            fail("Expected pushAsync to fail after close");
+        }
+        catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        try {
+            stitch.flush();
+            fail("Expected flush to fail after close");
+        }
+        catch (IOException e) {
+        }
+        assertEquals(1, numRecordsByThreadId.get(0).get());
+    }
+
+    @Test
+    public void testPushDoesNotWaitForBatchInFlight() throws Exception {
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final StitchClient stitch = dummyClient(new DummyTransport() {
+                @Override
+                public StitchResponse send(byte[] body) throws IOException {
+                    sending.countDown();
+                    try {
+                        release.await();
+                    }
+                    catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                    return super.send(body);
+                }
+            })
+            .withBatchSizeBytes(1)
+            .build();
+
+        // The first push fills a batch and sends it, and is stuck
+        // until we release the transport.
+        Thread sender = new Thread(() -> {
+                try {
+                    stitch.push(recordMessage(0, 0));
+                }
+                catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+        sender.start();
+        assertTrue(sending.await(10, TimeUnit.SECONDS));
+
+        // The buffer is ready, but another push just leaves its
+        // record for the next batch. Both records are still held,
+        // one in flight and one in the buffer.
+        stitch.push(recordMessage(0, 1));
+        assertEquals(2, stitch.getBufferedRecords());
+        assertEquals(0, numRecordsByThreadId.get(0).get());
+
+        release.countDown();
+        sender.join();
+        stitch.close();
+        assertEquals(2, numRecordsByThreadId.get(0).get());
+    }
+
+    @Test
+    public void testFlushHandlerOnExecutorDoesNotHoldUpSends() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Object> acknowledged = new CopyOnWriteArrayList<Object>();
+        final AtomicInteger onFlushCalls = new AtomicInteger();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        StitchClient stitch = dummyClient(new DummyTransport())
+            .withBatchSizeBytes(500)
+            .withFlushHandler(callbackArgs -> {
+                    try {
+                        release.await();
+                    }
+                    catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    onFlushCalls.incrementAndGet();
+                    acknowledged.addAll(callbackArgs);
+                }, executor)
+            .build();
+
+        // Every batch is sent while the handler is stuck on the first
+        for (int i = 0; i < 100; i++) {
+            Map record = new HashMap();
+            record.put("threadId", 0);
+            record.put("id", i);
+            stitch.push(StitchMessage.newUpsert().withSequence(i).withData(record), i);
+        }
+        assertEquals(100 - stitch.getBufferedRecords(), numRecordsByThreadId.get(0).get());
+        assertTrue(numRecordsByThreadId.get(0).get() > 50);
+        assertTrue(acknowledged.isEmpty());
+
+        release.countDown();
+        stitch.close();
+        executor.shutdown();
+
+        List<Object> expected = new ArrayList<Object>();
+        for (int i = 0; i < 100; i++) {
+            expected.add(i);
+        }
+        assertEquals(expected, acknowledged);
+        // Batches that were acknowledged while the handler was stuck
+        // are passed to it together
+        assertTrue(onFlushCalls.get() <= 3);
+    }
+
+    @Test
+    public void testFlushHandlerErrorDoesNotFailDeliveredBatch() throws Exception {
+        final List<Object> failed = new CopyOnWriteArrayList<Object>();
+        StitchClient stitch = dummyClient(new DummyTransport())
+            .withFlushHandler(new FlushHandler() {
+                    public void onFlush(List callbackArgs) {
+                        throw new IllegalStateException("handler");
+                    }
+                    public void onFailure(List callbackArgs, Exception error) {
+                        failed.addAll(callbackArgs);
+                    }
+                })
+            .build();
+        CompletableFuture<Void> future = stitch.pushAsync(recordMessage(0, 0), "a");
+        try {
+            stitch.flush();
+            fail("Expected the handler's exception");
+        }
+        catch (IllegalStateException e) {
+            assertEquals("handler", e.getMessage());
+        }
+        future.get(10, TimeUnit.SECONDS);
+        assertTrue(failed.isEmpty());
+        assertEquals(0, stitch.getBufferedRecords());
+        assertEquals(1, numRecordsByThreadId.get(0).get());
+    }
+
+    @Test
+    public void testFlushHandlerIsToldAboutFailedBatches() throws Exception {
+        final List<Object> failed = new ArrayList<Object>();
+        final AtomicReference<Exception> error = new AtomicReference<Exception>();
+        StitchClient stitch = dummyClient(new DummyTransport() {
+                @Override
+                public StitchResponse send(byte[] body) {
+                    return new StitchResponse(400, "Bad Request", null);
+                }
+            })
+            .withFlushHandler(new FlushHandler() {
+                    public void onFlush(List callbackArgs) {
+                        fail("Nothing was delivered");
+                    }
+                    public void onFailure(List callbackArgs, Exception e) {
+                        failed.addAll(callbackArgs);
+                        error.set(e);
+                    }
+                })
+            .build();
+        stitch.push(StitchMessage.newUpsert().withSequence(0).withData(new HashMap()), "a");
+        stitch.push(StitchMessage.newUpsert().withSequence(1).withData(new HashMap()), "b");
+        try {
+            stitch.flush();
+            fail("Expected delivery to fail");
+        }
+        catch (StitchException e) {
+            assertSame(e, error.get());
+        }
+        assertEquals(Arrays.asList("a", "b"), failed);
+    }
+
+    @Test
+    public void testConcurrentBatchesPreserveOrderPerKey() throws Exception {
+        final ConcurrentHashMap<Long,Long> lastSequenceById = new ConcurrentHashMap<Long,Long>();
+        final AtomicInteger outOfOrder = new AtomicInteger();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final AtomicInteger numRecords = new AtomicInteger();
+
+        final StitchClient stitch = dummyClient(new DummyTransport() {
+                @Override
+                public StitchResponse send(byte[] body) throws IOException {
+                    int current = inFlight.incrementAndGet();
+                    maxInFlight.accumulateAndGet(current, Math::max);
+                    try {
+                        Reader reader = TransitFactory.reader(
+                            TransitFactory.Format.JSON, new ByteArrayInputStream(body));
+                        for (Object record : (List) reader.read()) {
+                            Long sequence = (Long) ((Map) record).get("sequence");
+                            Long id = (Long) ((Map) ((Map) record).get("data")).get("id");
+                            Long last = lastSequenceById.put(id, sequence);
+                            if (last != null && last >= sequence) {
+                                outOfOrder.incrementAndGet();
+                            }
+                            numRecords.incrementAndGet();
+                        }
+                        Thread.sleep(20);
+                    }
+                    catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    finally {
+                        inFlight.decrementAndGet();
+                    }
+                    return new StitchResponse(200, "ok", null);
+                }
+            })
+            .withBatchSizeBytes(2000)
+            .withMaxInFlightBatches(4)
+            .build();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < NUM_THREADS; i++) {
+            final int threadId = i;
+            threads.add(new Thread(() -> {
+                for (int sequence = 0; sequence < 250; sequence++) {
+                    for (int key = 0; key < 10; key++) {
+                        Map record = new HashMap();
+                        record.put("id", threadId * 10 + key);
+                        try {
+                            stitch.push(StitchMessage.newUpsert()
+                                        .withSequence(sequence)
+                                        .withData(record));
+                        }
+                        catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        stitch.close();
+
+        assertEquals(NUM_THREADS * 250 * 10, numRecords.get());
+        assertEquals(0, outOfOrder.get());
+        assertTrue(maxInFlight.get() > 1);
+    }
+
+    private static StitchMessage recordMessage(int threadId, int recordId) {
+        Map record = new HashMap();
+        record.put("threadId", threadId);
+        record.put("recordId", recordId);
+        return StitchMessage.newUpsert().withSequence(recordId).withData(record);
+    }
+
+    @Test
+    public void testCoalescesUpsertsToTheSameRow() throws Exception {
+        final List<Map> records = new CopyOnWriteArrayList<Map>();
+        Transport capture = new Transport() {
+                public StitchResponse send(byte[] body) {
+                    Reader reader = TransitFactory.reader(
+                        TransitFactory.Format.JSON, new ByteArrayInputStream(body));
+                    records.addAll((List<Map>) reader.read());
+                    return new StitchResponse(200, "ok", null);
+                }
+                public void close() {
+                }
+            };
+        SetFlushHandler flushHandler = new SetFlushHandler();
+        try (StitchClient stitch = dummyClient(capture)
+             .withKeyNames("threadId")
+             .withFlushHandler(flushHandler)
+             .withUpsertCoalescing(true)
+             .build()) {
+            for (int i = 0; i < 100; i++) {
+                stitch.push(recordMessage(i % 2, i), i);
+            }
+            assertEquals(2, stitch.getBufferedRecords());
+        }
+
+        assertEquals(2, records.size());
+        assertEquals(98L, records.get(0).get("sequence"));
+        assertEquals(99L, records.get(1).get("sequence"));
+        assertEquals(100, flushHandler.callbackArgsReceived.size());
+    }
+
+    @Test
+    public void testDoesNotCoalesceAcrossSwitchView() throws Exception {
+        final List<Map> records = new CopyOnWriteArrayList<Map>();
+        Transport capture = new Transport() {
+                public StitchResponse send(byte[] body) {
+                    Reader reader = TransitFactory.reader(
+                        TransitFactory.Format.JSON, new ByteArrayInputStream(body));
+                    records.addAll((List<Map>) reader.read());
+                    return new StitchResponse(200, "ok", null);
+                }
+                public void close() {
+                }
+            };
+        try (StitchClient stitch = dummyClient(capture)
+             .withTableName("events")
+             .withKeyNames("threadId")
+             .withUpsertCoalescing(true)
+             .build()) {
+            stitch.push(recordMessage(0, 1).withTableVersion(1L));
+            stitch.push(new StitchMessage()
+                        .withAction(StitchMessage.Action.SWITCH_VIEW)
+                        .withTableVersion(1L));
+            stitch.push(recordMessage(0, 2).withTableVersion(2L));
+            assertEquals(3, stitch.getBufferedRecords());
+        }
+
+        assertEquals(3, records.size());
+        assertEquals("upsert", records.get(0).get("action"));
+        assertEquals(1L, records.get(0).get("table_version"));
+        assertEquals("switch_view", records.get(1).get("action"));
+        assertEquals("upsert", records.get(2).get("action"));
+        assertEquals(2L, records.get(2).get("table_version"));
+    }
+
+    @Test
+    public void testDoesNotCoalesceAcrossTableVersions() throws Exception {
+        try (StitchClient stitch = dummyClient(new DummyTransport())
+             .withTableName("events")
+             .withKeyNames("threadId")
+             .withUpsertCoalescing(true)
+             .build()) {
+            stitch.push(recordMessage(0, 1).withTableVersion(1L));
+            stitch.push(recordMessage(0, 2).withTableVersion(2L));
+            stitch.push(recordMessage(0, 3).withTableVersion(2L));
+            assertEquals(2, stitch.getBufferedRecords());
+        }
+    }
+
+    @Test
+    public void testVirtualThreadsRequireJava21() {
+        Assume.assumeTrue(!VirtualThreadExecutor.isAvailable());
+        try {
+            dummyClient(new DummyTransport()).withVirtualThreads(true).build();
+            fail("Expected virtual threads to be unavailable");
+        }
+        catch (IllegalStateException e) {
+        }
+    }
+
+    @Test
+    public void testVirtualThreadsKeepManyBatchesInFlight() throws Exception {
+        Assume.assumeTrue(VirtualThreadExecutor.isAvailable());
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+        // Platform threads only; virtual threads aren't counted
+        final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        final int platformThreadsBefore = threadBean.getThreadCount();
+        final AtomicInteger peakPlatformThreads = new AtomicInteger();
+        Transport slow = new DummyTransport() {
+                public StitchResponse send(byte[] body) throws IOException {
+                    peak.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                    peakPlatformThreads.accumulateAndGet(threadBean.getThreadCount(), Math::max);
+                    try {
+                        Thread.sleep(200);
+                    }
+                    catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                    finally {
+                        inFlight.decrementAndGet();
+                    }
+                    return super.send(body);
+                }
+            };
+        List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+        try (StitchClient stitch = dummyClient(slow)
+             .withKeyNames("recordId")
+             .withBatchSizeBytes(1)
+             .withMaxInFlightBatches(256)
+             .withVirtualThreads(true)
+             .build()) {
+            for (int i = 0; i < 1000; i++) {
+                futures.add(stitch.pushAsync(recordMessage(0, i)));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
+        }
+        assertEquals(1000, numRecordsByThreadId.get(0).get());
+        assertTrue("Peak in flight was " + peak.get(), peak.get() > 64);
+        // A platform thread per send would have needed a thread for
+        // each batch in flight.
+        assertTrue("Peak platform threads was " + peakPlatformThreads.get(),
+                   peakPlatformThreads.get() - platformThreadsBefore < peak.get() / 2);
+    }
+
+    @Test
+    public void testFailPolicyThrowsWhenFull() throws Exception {
+        try (StitchClient stitch = dummyClient(new DummyTransport())
+             .withMaxBufferedRecords(5)
+             .withBufferFullPolicy(BufferFullPolicy.FAIL)
+             .build()) {
+            for (int i = 0; i < 5; i++) {
+                stitch.push(recordMessage(0, i));
+            }
+            assertEquals(5, stitch.getBufferedRecords());
+            assertTrue(stitch.getBufferedBytes() > 0);
+            try {
+                stitch.push(recordMessage(0, 5));
+                fail("Expected the buffer to be full");
+            }
+            catch (BufferFullException e) {
+            }
+            stitch.flush();
+            assertEquals(0, stitch.getBufferedRecords());
+            assertEquals(0, stitch.getBufferedBytes());
+            stitch.push(recordMessage(0, 6));
+        }
+        assertEquals(6, numRecordsByThreadId.get(0).get());
+    }
+
+    @Test
+    public void testDropOldestNotifiesDropHandler() throws Exception {
+        final List dropped = new CopyOnWriteArrayList();
+        SetFlushHandler flushHandler = new SetFlushHandler();
+        try (StitchClient stitch = dummyClient(new DummyTransport())
+             .withFlushHandler(flushHandler)
+             .withMaxBufferedRecords(3)
+             .withBufferFullPolicy(BufferFullPolicy.DROP_OLDEST)
+             .withDropHandler(callbackArgs -> dropped.addAll(callbackArgs))
+             .build()) {
+            for (int i = 0; i < 5; i++) {
+                stitch.push(recordMessage(0, i), i);
+            }
+            assertEquals(3, stitch.getBufferedRecords());
+        }
+        assertEquals(Arrays.asList(0, 1), dropped);
+        assertEquals(3, flushHandler.callbackArgsReceived.size());
+        assertEquals(3, numRecordsByThreadId.get(0).get());
+    }
+
+    @Test
+    public void testBlockPolicySendsBatchesToMakeRoom() throws Exception {
+        final AtomicInteger maxBuffered = new AtomicInteger();
+        try (StitchClient stitch = dummyClient(new DummyTransport())
+             .withMaxBufferedRecords(10)
+             .build()) {
+            for (int i = 0; i < 100; i++) {
+                stitch.push(recordMessage(0, i));
+                maxBuffered.accumulateAndGet(stitch.getBufferedRecords(), Math::max);
+            }
+        }
+        assertEquals(10, maxBuffered.get());
+        assertEquals(100, numRecordsByThreadId.get(0).get());
+    }
+
+    @Test
+    public void testBlockPolicyTimesOut() throws Exception {
+        final CountDownLatch unblock = new CountDownLatch(1);
+        StitchClient stitch = dummyClient(new DummyTransport() {
+                @Override
+                public StitchResponse send(byte[] body) throws IOException {
+                    try {
+                        unblock.await();
+                    }
+                    catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return super.send(body);
+                }
+            })
+            .withBackgroundFlush(true)
+            .withMaxBufferedRecords(2)
+            .withBlockTimeoutMillis(100)
+            .build();
+        try {
+            stitch.push(recordMessage(0, 0));
+            stitch.push(recordMessage(0, 1));
+            long start = System.currentTimeMillis();
+            try {
+                stitch.push(recordMessage(0, 2));
+                fail("Expected the push to time out");
+            }
+            catch (BufferFullException e) {
+                assertTrue(System.currentTimeMillis() - start >= 100);
+            }
+            CompletableFuture<Void> future = stitch.pushAsync(recordMessage(0, 3));
+            assertTrue(future.isCompletedExceptionally());
+        }
+        finally {
+            unblock.countDown();
+            stitch.close();
+        }
+        assertEquals(2, numRecordsByThreadId.get(0).get());
+        assertEquals(0, stitch.getBufferedBytes());
+    }
+
+    @Test
+    public void testWriteAheadLogReplaysUndeliveredRecords() throws Exception {
+        File directory = Files.createTempDirectory("stitch-wal").toFile();
+        try {
+            // The first client can't deliver anything, and still means
+            // to retry, so its records stay in the log when it is
+            // closed.
+            StitchClient failing = dummyClient(new DummyTransport() {
+                    @Override
+                    public StitchResponse send(byte[] body) {
+                        return new StitchResponse(503, "Service Unavailable", null);
+                    }
+                })
+                .withWriteAheadLog(directory)
+                .withMaxRetries(1)
+                .withRetryBackoffMillis(1, 1)
+                .build();
+            for (int i = 0; i < 5; i++) {
+                failing.push(recordMessage(0, i));
+            }
+            try {
+                failing.close();
+                fail("Expected delivery to fail");
+            }
+            catch (StitchException e) {
+            }
+
+            // Recovered records have no callbackArg
+            final List callbackArgs = new CopyOnWriteArrayList();
+            try (StitchClient stitch = dummyClient(new DummyTransport())
+                 .withWriteAheadLog(directory)
+                 .withFlushHandler(args -> callbackArgs.addAll(args))
+                 .build()) {
+                assertEquals(5, stitch.getBufferedRecords());
+                stitch.push(recordMessage(0, 5), "new");
+            }
+            assertEquals(6, numRecordsByThreadId.get(0).get());
+            assertEquals(Arrays.asList(null, null, null, null, null, "new"), callbackArgs);
+            assertEquals(0, directory.list((dir, name) -> name.endsWith(".wal")).length);
+        }
+        finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testFailedBuildReleasesWriteAheadLog() throws Exception {
+        File directory = Files.createTempDirectory("stitch-wal").toFile();
+        try {
+            Map<Class,WriteHandler<?,?>> writeHandlers = new HashMap<Class,WriteHandler<?,?>>();
+            writeHandlers.put(String.class, new WriteHandler<String,String>() {
+                    public String tag(String s) {
+                        throw new IllegalStateException("Can't write strings");
+                    }
+                    public String rep(String s) {
+                        return s;
+                    }
+                    public String stringRep(String s) {
+                        return s;
+                    }
+                    public <V> WriteHandler<String,V> getVerboseHandler() {
+                        return null;
+                    }
+                });
+            try {
+                dummyClient(new DummyTransport())
+                    .withNamespace("ns")
+                    .withWriteHandlers(writeHandlers)
+                    .withWriteAheadLog(directory)
+                    .build();
+                fail("Expected the client to fail to encode its fields");
+            }
+            catch (RuntimeException e) {
+            }
+
+            // The log was closed, so another client can have it
+            dummyClient(new DummyTransport())
+                .withWriteAheadLog(directory)
+                .build()
+                .close();
+        }
+        finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testRuntimeRejectsConnectionSettings() throws Exception {
+        try (StitchRuntime runtime = new StitchRuntimeBuilder().build()) {
+            try {
+                new StitchClientBuilder()
+                    .withClientId(1)
+                    .withToken("token")
+                    .withNamespace("ns")
+                    .withRuntime(runtime)
+                    .withMaxConnections(10)
+                    .build();
+                fail("Expected connection settings to be rejected");
+            }
+            catch (IllegalArgumentException e) {
+            }
+        }
+    }
+
+    @Test
+    public void testRetriesOnSharedRuntimeDoNotHoldSenderThreads() throws Exception {
+        final AtomicBoolean unavailable = new AtomicBoolean(true);
+        final CountDownLatch failed = new CountDownLatch(1);
+        try (StitchRuntime runtime = new StitchRuntimeBuilder().withSenderThreads(1).build()) {
+            StitchClient failing = dummyClient(new DummyTransport() {
+                    @Override
+                    public StitchResponse send(byte[] body) throws IOException {
+                        if (unavailable.get()) {
+                            failed.countDown();
+                            return new StitchResponse(503, "Service Unavailable", null);
+                        }
+                        return super.send(body);
+                    }
+                })
+                .withRuntime(runtime)
+                .withBackgroundFlush(true)
+                .withBatchDelayMillis(1)
+                .withMaxRetries(100)
+                .withRetryBackoffMillis(10000, 10000)
+                .build();
+            StitchClient healthy = dummyClient(new DummyTransport())
+                .withRuntime(runtime)
+                .withBackgroundFlush(true)
+                .withBatchDelayMillis(1)
+                .build();
+
+            failing.push(recordMessage(0, 0));
+            assertTrue(failed.await(10, TimeUnit.SECONDS));
+
+            // The failing client's retry waits on the runtime's timer,
+            // so the only sender thread is free for the other client.
+            healthy.pushAsync(recordMessage(1, 0)).get(5, TimeUnit.SECONDS);
+            assertEquals(1, numRecordsByThreadId.get(1).get());
+            healthy.close();
+
+            unavailable.set(false);
+            failing.close();
+            assertEquals(1, numRecordsByThreadId.get(0).get());
+        }
+    }
+
+    @Test
+    public void testWriteAheadLogDropsFailedRecords() throws Exception {
+        File directory = Files.createTempDirectory("stitch-wal").toFile();
+        try {
+            StitchClient failing = dummyClient(new DummyTransport() {
+                    @Override
+                    public StitchResponse send(byte[] body) {
+                        return new StitchResponse(503, "Service Unavailable", null);
+                    }
+                })
+                .withWriteAheadLog(directory)
+                .withMaxRetries(1)
+                .withRetryBackoffMillis(1, 1)
+                .build();
+            CompletableFuture<Void> future = failing.pushAsync(recordMessage(0, 0));
+            failing.close();
+            assertTrue(future.isCompletedExceptionally());
+
+            // The caller was told the record failed, so it isn't
+            // sent again.
+            try (StitchClient stitch = dummyClient(new DummyTransport())
+                 .withWriteAheadLog(directory)
+                 .build()) {
+                assertEquals(0, stitch.getBufferedRecords());
+            }
+            assertEquals(0, directory.list((dir, name) -> name.endsWith(".wal")).length);
+        }
+        finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    /**
+     * Transport that responds with the given status codes in turn,
+     * then 200 for every request after that, counting requests.
+     */
+    private class ScriptedTransport extends DummyTransport {
+        final AtomicInteger requests = new AtomicInteger();
+        private final int[] statuses;
+        private final long retryAfterMillis;
+
+        ScriptedTransport(long retryAfterMillis, int... statuses) {
+            this.statuses = statuses;
+            this.retryAfterMillis = retryAfterMillis;
+        }
+
+        @Override
+        public StitchResponse send(byte[] body) throws IOException {
+            int request = requests.getAndIncrement();
+            if (request < statuses.length) {
+                return new StitchResponse(statuses[request], "scripted", null, retryAfterMillis);
+            }
+            return super.send(body);
+        }
+    }
+
+    @Test
+    public void testRetriesTransientFailures() throws Exception {
+        ScriptedTransport transport = new ScriptedTransport(-1, 503, 502);
+        try (StitchClient stitch = dummyClient(transport)
+             .withMaxRetries(3)
+             .withRetryBackoffMillis(1, 10)
+             .build()) {
+            stitch.push(recordMessage(0, 0));
+            stitch.flush();
+        }
+        assertEquals(3, transport.requests.get());
+        assertEquals(1, numRecordsByThreadId.get(0).get());
+    }
+
+    @Test
+    public void testRetryWaitsForRetryAfter() throws Exception {
+        ScriptedTransport transport = new ScriptedTransport(300, 429);
+        try (StitchClient stitch = dummyClient(transport)
+             .withMaxRetries(3)
+             .withRetryBackoffMillis(1, 1000)
+             .build()) {
+            stitch.push(recordMessage(0, 0));
+            long start = System.currentTimeMillis();
+            stitch.flush();
+            assertTrue(System.currentTimeMillis() - start >= 300);
+        }
+        assertEquals(2, transport.requests.get());
+        assertEquals(1, numRecordsByThreadId.get(0).get());
+    }
+
+    @Test
+    public void testKeepsRecordsWhenRetriesRunOut() throws Exception {
+        ScriptedTransport transport = new ScriptedTransport(-1, 503, 503);
+        final List callbackArgs = new CopyOnWriteArrayList();
+        try (StitchClient stitch = dummyClient(transport)
+             .withMaxRetries(1)
+             .withRetryBackoffMillis(1, 10)
+             .withFlushHandler(args -> callbackArgs.addAll(args))
+             .build()) {
+            for (int i = 0; i < 3; i++) {
+                stitch.push(recordMessage(0, i), i);
+            }
+            try {
+                stitch.flush();
+                fail("Expected delivery to fail");
+            }
+            catch (StitchException e) {
+                assertEquals(503, e.getResponse().getHttpStatusCode());
+            }
+            assertEquals(3, stitch.getBufferedRecords());
+            stitch.push(recordMessage(0, 3), 3);
+        }
+        assertEquals(3, transport.requests.get());
+        assertEquals(Arrays.asList(0, 1, 2, 3), callbackArgs);
+    }
+
+    @Test
+    public void testRequeuedUpsertKeepsFuturesOfUpsertsItReplaced() throws Exception {
+        ScriptedTransport transport = new ScriptedTransport(-1, 503, 503);
+        CompletableFuture<Void> replaced;
+        try (StitchClient stitch = dummyClient(transport)
+             .withKeyNames("threadId")
+             .withUpsertCoalescing(true)
+             .withMaxRetries(1)
+             .withRetryBackoffMillis(1, 10)
+             .build()) {
+            replaced = stitch.pushAsync(recordMessage(0, 0), null);
+            stitch.push(recordMessage(0, 1));
+            try {
+                stitch.flush();
+                fail("Expected delivery to fail");
+            }
+            catch (StitchException e) {
+                assertEquals(503, e.getResponse().getHttpStatusCode());
+            }
+            assertEquals(1, stitch.getBufferedRecords());
+            assertFalse(replaced.isDone());
+        }
+        replaced.get(5, TimeUnit.SECONDS);
+        assertEquals(3, transport.requests.get());
+        assertEquals(1, numRecordsByThreadId.get(0).get());
+    }
+
+    @Test
+    public void testDoesNotRetryBadRequests() throws Exception {
+        ScriptedTransport transport = new ScriptedTransport(-1, 400);
+        StitchClient stitch = dummyClient(transport)
+            .withMaxRetries(3)
+            .withRetryBackoffMillis(1, 10)
+            .build();
+        stitch.push(recordMessage(0, 0));
+        try {
+            stitch.close();
+            fail("Expected delivery to fail");
+        }
+        catch (StitchException e) {
+            assertEquals(400, e.getResponse().getHttpStatusCode());
+        }
+        assertEquals(1, transport.requests.get());
+        assertEquals(0, stitch.getBufferedRecords());
+    }
+
+    @Test
+    public void testAdaptiveBatchSizeBacksOffWhenThrottled() throws Exception {
+        ScriptedTransport transport = new ScriptedTransport(-1, 429);
+        try (StitchClient stitch = dummyClient(transport)
+             .withBatchSizeBytes(400000)
+             .withAdaptiveBatchSize(1000, 800000)
+             .build()) {
+            assertEquals(400000, stitch.getEffectiveBatchSizeBytes());
+            stitch.push(recordMessage(0, 0));
+            try {
+                stitch.flush();
+                fail("Expected delivery to fail");
+            }
+            catch (StitchException e) {
+            }
+            assertEquals(200000, stitch.getEffectiveBatchSizeBytes());
+        }
+    }
+
+    @Test
+    public void testJmxMetricsListenerReportsEachStage() throws Exception {
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        JmxMetricsListener metrics = new JmxMetricsListener(server, "test");
+        ScriptedTransport transport = new ScriptedTransport(-1, 503);
+        try (StitchClient stitch = dummyClient(transport)
+             .withMaxRetries(1)
+             .withRetryBackoffMillis(1, 10)
+             .withMetricsListener(metrics)
+             .build()) {
+            for (int i = 0; i < 3; i++) {
+                stitch.push(recordMessage(0, i));
+            }
+            assertEquals(3, server.getAttribute(metrics.getObjectName(), "BufferedRecords"));
+            stitch.flush();
+        }
+
+        assertFalse(server.isRegistered(metrics.getObjectName()));
+        assertEquals(3, metrics.getMessagesEncoded());
+        assertEquals(2, metrics.getRequests());
+        assertEquals(1, metrics.getRetries());
+        assertEquals(1, metrics.getBatchesDelivered());
+        assertEquals(3, metrics.getRecordsDelivered());
+        assertEquals(0, metrics.getBatchesFailed());
+        assertEquals(Long.valueOf(1), metrics.getResponsesByStatus().get(503));
+        assertEquals(Long.valueOf(1), metrics.getResponsesByStatus().get(200));
+        assertEquals(3, metrics.getEncodeMicros().getCount());
+        assertEquals(2, metrics.getRequestMicros().getCount());
+        assertEquals(3, metrics.getBatchRecords().getMax());
+    }
+
+    @Test
+    public void testJmxMetricsListenerPublishesOpenTypes() throws Exception {
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        JmxMetricsListener metrics = new JmxMetricsListener(server, "open types");
+        metrics.onRequest(200, 100, 5000);
+        metrics.onRequest(429, 100, 7000);
+        CompositeData latency = (CompositeData) server.getAttribute(metrics.getObjectName(), "RequestMicros");
+        assertEquals(2L, latency.get("count"));
+        assertEquals(7L, latency.get("max"));
+        TabularData statuses = (TabularData) server.getAttribute(metrics.getObjectName(), "ResponsesByStatus");
+        assertEquals(2, statuses.size());
+        try {
+            new JmxMetricsListener(server, "open types");
+            fail("Expected duplicate name to be rejected");
+        }
+        catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void testEncodesDefaultAndOverriddenEnvelopes() throws Exception {
+        final List<Map> records = new CopyOnWriteArrayList<Map>();
+        Transport capture = new Transport() {
+                public StitchResponse send(byte[] body) {
+                    Reader reader = TransitFactory.reader(
+                        TransitFactory.Format.JSON, new ByteArrayInputStream(body));
+                    records.addAll((List<Map>) reader.read());
+                    return new StitchResponse(200, "ok", null);
+                }
+                public void close() {
+                }
+            };
+        try (StitchClient stitch = new StitchClientBuilder()
+             .withTransport(capture)
+             .withClientId(7)
+             .withNamespace("ns")
+             .withTableName("events")
+             .withKeyNames("id")
+             .build()) {
+            stitch.push(recordMessage(0, 0));
+            for (int i = 0; i < 2; i++) {
+                stitch.push(recordMessage(0, 1)
+                            .withTableName("other")
+                            .withKeyNames("recordId", "threadId"));
+            }
+            stitch.push(new StitchMessage()
+                        .withAction(StitchMessage.Action.SWITCH_VIEW)
+                        .withTableName("other")
+                        .withTableVersion(3L));
+        }
+
+        assertEquals(4, records.size());
+        assertEquals("upsert", records.get(0).get("action"));
+        assertEquals(7L, records.get(0).get("client_id"));
+        assertEquals("ns", records.get(0).get("namespace"));
+        assertEquals("events", records.get(0).get("table_name"));
+        assertEquals(Arrays.asList("id"), records.get(0).get("key_names"));
+        for (int i = 1; i < 3; i++) {
+            assertEquals("other", records.get(i).get("table_name"));
+            assertEquals(Arrays.asList("recordId", "threadId"), records.get(i).get("key_names"));
+            assertEquals(1L, records.get(i).get("sequence"));
+        }
+        assertEquals("switch_view", records.get(3).get("action"));
+        assertEquals("other", records.get(3).get("table_name"));
+        assertEquals(3L, records.get(3).get("table_version"));
+        assertFalse(records.get(3).containsKey("key_names"));
+        assertFalse(records.get(3).containsKey("data"));
+    }
 }
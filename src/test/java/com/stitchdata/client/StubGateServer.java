@@ -0,0 +1,356 @@
+package com.stitchdata.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import com.cognitect.transit.Reader;
+import com.cognitect.transit.TransitFactory;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import javax.json.Json;
+
+/**
+ * Local stand-in for the Stitch import API, for exercising the real
+ * HTTP path under load.
+ *
+ * <p>Serves {@code POST /v2/import/push}. Each request body is
+ * decompressed if necessary and parsed as a transit JSON batch, and
+ * every record is checked the way the gate would check it. Valid
+ * batches get a 200 response with a JSON body; invalid ones a 400.
+ * Bodies larger than the maximum size get a 413.</p>
+ *
+ * <p>Latency and failures can be injected: each request waits a
+ * random time between the minimum and maximum latency, and then fails
+ * with a 503, 429 (with a Retry-After header), or 413 with the
+ * configured probabilities. Settings may be changed while the server
+ * is running.</p>
+ *
+ * <p>Run it on its own with</p>
+ *
+ * <pre>
+ * java -cp ... com.stitchdata.client.StubGateServer --port 8080 \
+ *   --latency-ms 20 --error-rate 0.01 --throttle-rate 0.05
+ * </pre>
+ */
+public class StubGateServer implements Closeable {
+
+    static final String PATH = "/v2/import/push";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private volatile String token;
+    private volatile long minLatencyMillis;
+    private volatile long maxLatencyMillis;
+    private volatile double errorRate;
+    private volatile double throttleRate;
+    private volatile long retryAfterSeconds = 1;
+    private volatile double tooLargeRate;
+    private volatile int maxBodyBytes = Buffer.MAX_BATCH_SIZE_BYTES;
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final ConcurrentHashMap<Integer, AtomicLong> responses =
+        new ConcurrentHashMap<Integer, AtomicLong>();
+
+    /**
+     * Starts a server on the given port of the loopback interface,
+     * or on any free port if port is 0.
+     */
+    public StubGateServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        final AtomicInteger count = new AtomicInteger();
+        executor = Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "stub-gate-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        server.setExecutor(executor);
+        server.createContext(PATH, this::handle);
+        server.start();
+    }
+
+    /**
+     * Returns the URL to pass to {@link
+     * StitchClientBuilder#withPushUrl}.
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + PATH;
+    }
+
+    /**
+     * Only accept requests with this bearer token. By default any
+     * token is accepted.
+     */
+    public StubGateServer withToken(String token) {
+        this.token = token;
+        return this;
+    }
+
+    /**
+     * Wait between minMillis and maxMillis, chosen uniformly at
+     * random, before responding to each request.
+     */
+    public StubGateServer withLatencyMillis(long minMillis, long maxMillis) {
+        this.minLatencyMillis = minMillis;
+        this.maxLatencyMillis = Math.max(minMillis, maxMillis);
+        return this;
+    }
+
+    /**
+     * Respond to this fraction of requests with a 503.
+     */
+    public StubGateServer withErrorRate(double rate) {
+        this.errorRate = rate;
+        return this;
+    }
+
+    /**
+     * Respond to this fraction of requests with a 429 asking the
+     * client to retry after the given number of seconds.
+     */
+    public StubGateServer withThrottleRate(double rate, long retryAfterSeconds) {
+        this.throttleRate = rate;
+        this.retryAfterSeconds = retryAfterSeconds;
+        return this;
+    }
+
+    /**
+     * Respond to this fraction of requests with a 413, regardless of
+     * their size.
+     */
+    public StubGateServer withTooLargeRate(double rate) {
+        this.tooLargeRate = rate;
+        return this;
+    }
+
+    /**
+     * Respond with a 413 to bodies larger than this. Defaults to the
+     * 4 Mb limit of the real API.
+     */
+    public StubGateServer withMaxBodyBytes(int maxBodyBytes) {
+        this.maxBodyBytes = maxBodyBytes;
+        return this;
+    }
+
+    /** Batches accepted. */
+    public long getBatches() {
+        return batches.get();
+    }
+
+    /** Records in batches accepted. */
+    public long getRecords() {
+        return records.get();
+    }
+
+    /** Uncompressed bytes in batches accepted. */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /** Number of responses sent, by status. */
+    public Map<Integer, Long> getResponses() {
+        Map<Integer, Long> result = new TreeMap<Integer, Long>();
+        for (Map.Entry<Integer, AtomicLong> entry : responses.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return result;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "Method not allowed");
+                return;
+            }
+            String expected = token;
+            if (expected != null &&
+                !("Bearer " + expected).equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+                respond(exchange, 401, "Not authorized");
+                return;
+            }
+
+            InputStream in = exchange.getRequestBody();
+            if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                in = new GZIPInputStream(in);
+            }
+            byte[] body = readFully(in);
+
+            long latency = minLatencyMillis;
+            if (maxLatencyMillis > latency) {
+                latency += ThreadLocalRandom.current().nextLong(maxLatencyMillis - latency + 1);
+            }
+            if (latency > 0) {
+                Thread.sleep(latency);
+            }
+
+            double roll = ThreadLocalRandom.current().nextDouble();
+            if (roll < errorRate) {
+                respond(exchange, 503, null);
+                return;
+            }
+            roll -= errorRate;
+            if (roll < throttleRate) {
+                exchange.getResponseHeaders().add("Retry-After", String.valueOf(retryAfterSeconds));
+                respond(exchange, 429, "Too many requests");
+                return;
+            }
+            roll -= throttleRate;
+            if (roll < tooLargeRate || body.length > maxBodyBytes) {
+                respond(exchange, 413, "Request body larger than " + maxBodyBytes + " bytes");
+                return;
+            }
+
+            List batch;
+            try {
+                Reader reader = TransitFactory.reader(
+                    TransitFactory.Format.JSON, new ByteArrayInputStream(body));
+                batch = reader.read();
+            }
+            catch (RuntimeException e) {
+                respond(exchange, 400, "Body is not a transit JSON array");
+                return;
+            }
+            String error = validate(batch);
+            if (error != null) {
+                respond(exchange, 400, error);
+                return;
+            }
+
+            batches.incrementAndGet();
+            records.addAndGet(batch.size());
+            bytes.addAndGet(body.length);
+            respond(exchange, 200, "Batch accepted");
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, null);
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Returns a description of the first problem with the batch, or
+     * null if it is valid.
+     */
+    static String validate(List batch) {
+        if (batch.isEmpty()) {
+            return "Batch is empty";
+        }
+        if (batch.size() > Buffer.MAX_MESSAGES_PER_BATCH) {
+            return "Batch has more than " + Buffer.MAX_MESSAGES_PER_BATCH + " records";
+        }
+        for (Object item : batch) {
+            if (!(item instanceof Map)) {
+                return "Record is not a map";
+            }
+            Map record = (Map) item;
+            Object action = record.get("action");
+            if (!(record.get("client_id") instanceof Number)) {
+                return "Record has no client_id";
+            }
+            if (!(record.get("namespace") instanceof String)) {
+                return "Record has no namespace";
+            }
+            if (!(record.get("table_name") instanceof String)) {
+                return "Record has no table_name";
+            }
+            if ("upsert".equals(action)) {
+                Object keyNames = record.get("key_names");
+                Object data = record.get("data");
+                if (!(keyNames instanceof List) || ((List) keyNames).isEmpty()) {
+                    return "Upsert has no key_names";
+                }
+                if (!(data instanceof Map)) {
+                    return "Upsert has no data";
+                }
+                if (!(record.get("sequence") instanceof Number)) {
+                    return "Upsert has no sequence";
+                }
+                for (Object keyName : (List) keyNames) {
+                    if (((Map) data).get(keyName) == null) {
+                        return "Data has no value for key " + keyName;
+                    }
+                }
+            }
+            else if (!"switch_view".equals(action)) {
+                return "Unknown action " + action;
+            }
+        }
+        return null;
+    }
+
+    private void respond(HttpExchange exchange, int status, String message) throws IOException {
+        responses.computeIfAbsent(status, s -> new AtomicLong()).incrementAndGet();
+        byte[] response = new byte[0];
+        if (message != null) {
+            String json = Json.createObjectBuilder()
+                .add("status", status == 200 ? "OK" : "ERROR")
+                .add("message", message)
+                .build()
+                .toString();
+            response = json.getBytes("UTF-8");
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+        }
+        exchange.sendResponseHeaders(status, response.length == 0 ? -1 : response.length);
+        if (response.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(response);
+            }
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            baos.write(buf, 0, n);
+        }
+        return baos.toByteArray();
+    }
+
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Configures a server from command-line style options. Also used
+     * by {@link LoadGenerator} for its embedded server.
+     */
+    StubGateServer configure(Map<String, String> options) {
+        long latency = Long.parseLong(options.getOrDefault("latency-ms", "0"));
+        long maxLatency = Long.parseLong(options.getOrDefault("max-latency-ms", String.valueOf(latency)));
+        return withLatencyMillis(latency, maxLatency)
+            .withErrorRate(Double.parseDouble(options.getOrDefault("error-rate", "0")))
+            .withThrottleRate(Double.parseDouble(options.getOrDefault("throttle-rate", "0")),
+                              Long.parseLong(options.getOrDefault("retry-after-seconds", "1")))
+            .withTooLargeRate(Double.parseDouble(options.getOrDefault("too-large-rate", "0")));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = LoadGenerator.parseOptions(args);
+        StubGateServer server = new StubGateServer(Integer.parseInt(options.getOrDefault("port", "8080")))
+            .configure(options);
+        System.out.println("Listening on " + server.getUrl());
+        Thread.currentThread().join();
+    }
+}
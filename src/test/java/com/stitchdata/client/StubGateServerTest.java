@@ -0,0 +1,147 @@
+package com.stitchdata.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Sends batches over HTTP from a real {@link StitchClient} to a
+ * {@link StubGateServer}.
+ */
+public class StubGateServerTest {
+
+    private StubGateServer server;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new StubGateServer(0).withToken("secret");
+    }
+
+    @After
+    public void stopServer() {
+        server.close();
+    }
+
+    private StitchClientBuilder client() {
+        return new StitchClientBuilder()
+            .withPushUrl(server.getUrl())
+            .withToken("secret")
+            .withClientId(1)
+            .withNamespace("test")
+            .withTableName("events")
+            .withKeyNames("id");
+    }
+
+    private static StitchMessage message(int id) {
+        Map data = new HashMap();
+        data.put("id", id);
+        return StitchMessage.newUpsert().withSequence(id).withData(data);
+    }
+
+    @Test
+    public void testAcceptsValidBatches() throws IOException {
+        try (StitchClient stitch = client().withBatchSizeBytes(1000).build()) {
+            for (int i = 0; i < 100; i++) {
+                stitch.push(message(i));
+            }
+        }
+        assertEquals(100, server.getRecords());
+        assertTrue(server.getBatches() > 1);
+        assertEquals(Long.valueOf(server.getBatches()), server.getResponses().get(200));
+    }
+
+    @Test
+    public void testRejectsInvalidRecords() throws IOException {
+        StitchClient stitch = client().build();
+        stitch.push(StitchMessage.newUpsert().withSequence(1).withData(new HashMap()));
+        try {
+            stitch.close();
+            fail("Expected the batch to be rejected");
+        }
+        catch (StitchException e) {
+            assertEquals(400, e.getResponse().getHttpStatusCode());
+            assertEquals("Data has no value for key id", e.getResponse().getContent().getString("message"));
+        }
+    }
+
+    @Test
+    public void testRetriesInjectedThrottling() throws IOException {
+        server.withThrottleRate(0.5, 0);
+        try (StitchClient stitch = client()
+             .withBatchSizeBytes(0)
+             .withMaxRetries(20)
+             .withRetryBackoffMillis(1, 5)
+             .withRetryBudget(1, 100)
+             .build()) {
+            for (int i = 0; i < 20; i++) {
+                stitch.push(message(i));
+            }
+        }
+        assertEquals(20, server.getRecords());
+    }
+
+    @Test
+    public void testRejectsOversizedBodies() throws IOException {
+        server.withMaxBodyBytes(100);
+        StitchClient stitch = client().build();
+        for (int i = 0; i < 10; i++) {
+            stitch.push(message(i));
+        }
+        try {
+            stitch.close();
+            fail("Expected the batch to be rejected");
+        }
+        catch (StitchException e) {
+            assertEquals(413, e.getResponse().getHttpStatusCode());
+        }
+    }
+
+    @Test
+    public void testLoadGeneratorReportsDeliveries() throws Exception {
+        Map<String, String> options = LoadGenerator.parseOptions(new String[] {
+                "--threads", "2", "--records", "1000", "--batch-size-bytes", "20000",
+                "--in-flight", "2", "--background-flush" });
+        LoadGenerator.Result result = new LoadGenerator(options).run();
+        assertNull(result.closeError);
+        assertEquals(1000, result.recordsPushed);
+        assertEquals(1000, result.recordsDelivered);
+        assertEquals(1000, result.pushMicros.getCount());
+        assertTrue(result.bytesDelivered > 1000 * 200);
+    }
+
+    @Test
+    public void testClientsShareRuntime() throws Exception {
+        List<StitchClient> clients = new ArrayList<StitchClient>();
+        List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+        try (StitchRuntime runtime = new StitchRuntimeBuilder()
+             .withSenderThreads(2)
+             .withMaxConnections(2)
+             .build()) {
+            for (int c = 0; c < 50; c++) {
+                clients.add(client()
+                            .withRuntime(runtime)
+                            .withClientId(c)
+                            .withBatchSizeBytes(1000)
+                            .withBatchDelayMillis(100)
+                            .build());
+            }
+            for (int i = 0; i < 20; i++) {
+                for (StitchClient stitch : clients) {
+                    futures.add(stitch.pushAsync(message(i)));
+                }
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+            for (StitchClient stitch : clients) {
+                stitch.close();
+            }
+        }
+        assertEquals(50 * 20, server.getRecords());
+    }
+}
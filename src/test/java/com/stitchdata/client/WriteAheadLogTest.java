@@ -0,0 +1,176 @@
+package com.stitchdata.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class WriteAheadLogTest {
+
+    private static final int SEGMENT_BYTES = WriteAheadLog.HEADER_BYTES + Buffer.MAX_BATCH_SIZE_BYTES;
+
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("stitch-wal").toFile();
+    }
+
+    @After
+    public void deleteDirectory() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    static Buffer.Entry entry(String value) throws IOException {
+        return new Buffer.Entry(value.getBytes("UTF-8"), value);
+    }
+
+    private List<String> segmentNames() {
+        List<String> names = new ArrayList<String>();
+        for (String name : directory.list()) {
+            if (name.endsWith(".wal")) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    private static List<String> recoveredValues(WriteAheadLog log) throws IOException {
+        List<String> values = new ArrayList<String>();
+        for (WriteAheadLog.Recovered recovered : log.recover()) {
+            values.add(new String(recovered.entry.bytes, "UTF-8") + "/" + recovered.partitionHash);
+        }
+        return values;
+    }
+
+    @Test
+    public void testRecoversUnacknowledgedEntries() throws IOException {
+        List<Buffer.Entry> entries = Arrays.asList(entry("a"), entry("b"), entry("c"));
+        try (WriteAheadLog log = new WriteAheadLog(directory, SEGMENT_BYTES)) {
+            for (int i = 0; i < entries.size(); i++) {
+                log.append(entries.get(i), i);
+            }
+            log.acknowledge(entries.subList(0, 1));
+        }
+
+        try (WriteAheadLog log = new WriteAheadLog(directory, SEGMENT_BYTES)) {
+            // "a" was acknowledged, but its segment still held
+            // entries that weren't, so the whole segment is replayed.
+            assertEquals(Arrays.asList("a/0", "b/1", "c/2"), recoveredValues(log));
+            List<Buffer.Entry> recovered = new ArrayList<Buffer.Entry>();
+            for (WriteAheadLog.Recovered r : log.recover()) {
+                recovered.add(r.entry);
+            }
+            log.acknowledge(recovered);
+        }
+        assertEquals(new ArrayList<String>(), segmentNames());
+    }
+
+    @Test
+    public void testSkipsCorruptEntries() throws IOException {
+        try (WriteAheadLog log = new WriteAheadLog(directory, SEGMENT_BYTES)) {
+            log.append(entry("first"), 0);
+            log.append(entry("second"), 0);
+            log.append(entry("third"), 0);
+        }
+        String segment = segmentNames().get(0);
+        try (RandomAccessFile raf = new RandomAccessFile(new File(directory, segment), "rw")) {
+            // Flip a byte in the body of the second entry
+            raf.seek(WriteAheadLog.recordBytes("first".length()) + WriteAheadLog.HEADER_BYTES);
+            raf.write('S');
+        }
+        try (WriteAheadLog log = new WriteAheadLog(directory, SEGMENT_BYTES)) {
+            assertEquals(Arrays.asList("first/0", "third/0"), recoveredValues(log));
+        }
+    }
+
+    @Test
+    public void testSkipsRegionsThatWereNeverWritten() throws IOException {
+        try (WriteAheadLog log = new WriteAheadLog(directory, SEGMENT_BYTES)) {
+            log.append(entry("first"), 1);
+            log.append(entry("second"), 2);
+            log.append(entry("third"), 3);
+        }
+        String segment = segmentNames().get(0);
+        try (RandomAccessFile raf = new RandomAccessFile(new File(directory, segment), "rw")) {
+            // As if the process died after the second producer
+            // claimed its region, but before it wrote anything, while
+            // the third finished writing
+            raf.seek(WriteAheadLog.recordBytes("first".length()));
+            raf.write(new byte[WriteAheadLog.recordBytes("second".length())]);
+        }
+        try (WriteAheadLog log = new WriteAheadLog(directory, SEGMENT_BYTES)) {
+            assertEquals(Arrays.asList("first/1", "third/3"), recoveredValues(log));
+        }
+    }
+
+    @Test
+    public void testDeletesSegmentsOnceAcknowledged() throws IOException {
+        byte[] big = new byte[Buffer.MAX_BATCH_SIZE_BYTES / 3];
+        List<Buffer.Entry> entries = new ArrayList<Buffer.Entry>();
+        try (WriteAheadLog log = new WriteAheadLog(directory, SEGMENT_BYTES)) {
+            for (int i = 0; i < 3; i++) {
+                Buffer.Entry entry = new Buffer.Entry(big, null);
+                log.append(entry, 0);
+                entries.add(entry);
+            }
+            assertEquals(2, segmentNames().size());
+            log.acknowledge(entries.subList(0, 1));
+            assertEquals(2, segmentNames().size());
+            log.acknowledge(entries.subList(1, 2));
+            assertEquals(1, segmentNames().size());
+        }
+        assertEquals(1, segmentNames().size());
+    }
+
+    @Test
+    public void testReleasesSealedSegmentsAcrossManyRolls() throws IOException {
+        // Each entry takes more than half a segment, so every append
+        // after the first rolls to a new one.
+        byte[] big = new byte[Buffer.MAX_BATCH_SIZE_BYTES / 2 + 1];
+        List<WriteAheadLog.Segment> segments = new ArrayList<WriteAheadLog.Segment>();
+        try (WriteAheadLog log = new WriteAheadLog(directory, SEGMENT_BYTES)) {
+            for (int i = 0; i < 32; i++) {
+                Buffer.Entry entry = new Buffer.Entry(big, null);
+                log.append(entry, i);
+                segments.add(entry.segment);
+                if (i % 2 == 0) {
+                    log.acknowledge(Collections.singletonList(entry));
+                }
+            }
+            for (WriteAheadLog.Segment segment : segments.subList(0, 31)) {
+                assertFalse(segment.isMapped());
+            }
+            assertTrue(segments.get(31).isMapped());
+            assertEquals(16, segmentNames().size());
+        }
+        assertFalse(segments.get(31).isMapped());
+
+        try (WriteAheadLog log = new WriteAheadLog(directory, SEGMENT_BYTES)) {
+            List<Buffer.Entry> recovered = new ArrayList<Buffer.Entry>();
+            for (WriteAheadLog.Recovered r : log.recover()) {
+                assertEquals(1, r.partitionHash % 2);
+                recovered.add(r.entry);
+            }
+            assertEquals(16, recovered.size());
+            log.acknowledge(recovered);
+        }
+        assertEquals(new ArrayList<String>(), segmentNames());
+    }
+
+    @Test(expected=IOException.class)
+    public void testOnlyOneClientPerDirectory() throws IOException {
+        try (WriteAheadLog log = new WriteAheadLog(directory, SEGMENT_BYTES)) {
+            new WriteAheadLog(directory, SEGMENT_BYTES);
+        }
+    }
+}